@@ -0,0 +1,128 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Benchmarks the transaction validation hot paths of {@link TxHandler} and
+ * {@link MaxFeeTxHandler}. Workload parameters:
+ * <ul>
+ * <li>{@code inputs} - inputs per transaction (default 2)
+ * <li>{@code txs} - transactions per epoch (default 100)
+ * <li>{@code conflicts} - percentage of extra transactions, each double spending two of the epoch
+ * and paying more than either but less than both (default 0)
+ * <li>{@code budget} - time budget of {@link MaxFeeTxHandler} in milliseconds (default 100)
+ * <li>{@code sigcache} - false to clear the signature cache before every operation (default
+ * true)
+ * </ul>
+ * Benchmarks: {@code getRawTx}, {@code getRawDataToSign}, {@code isValidTx},
+ * {@code handleTxs}, {@code handleTxsParallel}, {@code maxFeeHandleTxs},
+ * {@code maxFeeHandleTxsParallel}, {@code maxFeeGreedy}. The total fees of the transactions chosen
+ * by the max-fee handler with and without its search are printed after them.
+ */
+public class TxHandlerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args);
+        KeyPair key = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        for (int inputs : bench.ints("inputs", "2")) {
+            for (int txs : bench.ints("txs", "100")) {
+                for (int conflicts : bench.ints("conflicts", "0")) {
+                    run(bench, key, inputs, txs, conflicts);
+                }
+            }
+        }
+    }
+
+    private static void run(Bench bench, KeyPair key, int inputs, int txs, int conflicts)
+            throws Exception {
+        String label = "inputs=" + inputs + " txs=" + txs + " conflicts=" + conflicts;
+
+        // one funding transaction whose outputs are spent by the epoch
+        Transaction funding = new Transaction();
+        for (int i = 0; i < inputs * txs; i++)
+            funding.addOutput(10 * Transaction.COIN, key.getPublic());
+        funding.finalize();
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < funding.numOutputs(); i++)
+            pool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+
+        final Transaction[] epoch = new Transaction[txs];
+        for (int t = 0; t < txs; t++) {
+            Transaction tx = new Transaction();
+            for (int i = 0; i < inputs; i++)
+                tx.addInput(funding.getHash(), t * inputs + i);
+            tx.addOutput((10 * inputs - 1) * Transaction.COIN, key.getPublic());
+            sign(tx, key.getPrivate());
+            epoch[t] = tx;
+        }
+
+        // each spends the first input of two neighbouring transactions of the epoch, which only
+        // a choice looking beyond a single double spent output leaves out
+        int numConflicts = Math.min(txs / 2, txs * conflicts / 100);
+        final Transaction[] conflicting = new Transaction[txs + numConflicts];
+        System.arraycopy(epoch, 0, conflicting, 0, txs);
+        for (int c = 0; c < numConflicts; c++) {
+            int t = c * (txs / numConflicts);
+            Transaction tx = new Transaction();
+            tx.addInput(funding.getHash(), t * inputs);
+            tx.addInput(funding.getHash(), (t + 1) * inputs);
+            tx.addOutput(20 * Transaction.COIN - 3 * Transaction.COIN / 2, key.getPublic());
+            sign(tx, key.getPrivate());
+            conflicting[txs + c] = tx;
+        }
+
+        final int[] next = new int[1];
+        Bench.Setup<Transaction> anyTx = () -> epoch[next[0]++ % epoch.length];
+        bench.measure("getRawTx", label, anyTx, tx -> tx.getRawTx());
+        bench.measure("getRawDataToSign", label, anyTx, tx -> tx.getRawDataToSign(0));
+
+        TxHandler validator = new TxHandler(pool);
+        bench.measure("isValidTx", label, cold(bench, anyTx), tx -> validator.isValidTx(tx));
+
+        bench.measure("handleTxs", label, cold(bench, () -> new TxHandler(pool)),
+                handler -> handler.handleTxs(epoch.clone()));
+        bench.measure("handleTxsParallel", label, cold(bench, () -> new TxHandler(pool)),
+                handler -> handler.handleTxs(epoch.clone(), ForkJoinPool.commonPool()));
+        final long budget = Long.parseLong(bench.get("budget", "100"));
+        bench.measure("maxFeeHandleTxs", label,
+                cold(bench, () -> new MaxFeeTxHandler(pool, budget)),
+                handler -> handler.handleTxs(conflicting.clone()));
+        bench.measure("maxFeeHandleTxsParallel", label,
+                cold(bench, () -> new MaxFeeTxHandler(pool, budget)),
+                handler -> handler.handleTxs(conflicting.clone(), ForkJoinPool.commonPool()));
+        bench.measure("maxFeeGreedy", label, cold(bench, () -> new MaxFeeTxHandler(pool, 0)),
+                handler -> handler.handleTxs(conflicting.clone()));
+        if (bench.enabled("maxFeeHandleTxs") || bench.enabled("maxFeeGreedy")) {
+            MaxFeeSelector search = new MaxFeeSelector(pool, conflicting);
+            search.select(budget);
+            MaxFeeSelector greedy = new MaxFeeSelector(pool, conflicting);
+            greedy.select(0);
+            System.out.printf("%-28s %-36s search %.1f greedy %.1f%n", "maxFeeTotalFee", label,
+                    (double) search.getTotalFee() / Transaction.COIN,
+                    (double) greedy.getTotalFee() / Transaction.COIN);
+        }
+    }
+
+    /** with {@code sigcache=false} every operation starts from an empty signature cache */
+    private static <T> Bench.Setup<T> cold(Bench bench, Bench.Setup<T> setup) {
+        if (Boolean.parseBoolean(bench.get("sigcache", "true")))
+            return setup;
+        return () -> {
+            T state = setup.create();
+            SignatureCache.getInstance().clear();
+            return state;
+        };
+    }
+
+    static void sign(Transaction tx, PrivateKey sk) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < tx.numInputs(); i++) {
+            sig.initSign(sk);
+            sig.update(tx.getRawDataToSign(i));
+            tx.addSignature(sig.sign(), i);
+        }
+        tx.finalize();
+    }
+}
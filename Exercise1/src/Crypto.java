@@ -1,11 +1,41 @@
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class Crypto {
 
+    /** signature and digest engines, one per thread so the provider lookup is done only once */
+    private static final ThreadLocal<Signature> SIGNATURE = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance("SHA256withRSA");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /** smallest number of signatures handed to one task by {@link #verifyAll} */
+    private static final int MIN_BATCH = 4;
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,16 +43,12 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
+        Signature sig = SIGNATURE.get();
         try {
             sig.initVerify(pubKey);
         } catch (InvalidKeyException e) {
             e.printStackTrace();
+            return false;
         }
         try {
             sig.update(message);
@@ -33,4 +59,108 @@ public class Crypto {
         return false;
 
     }
+
+    /**
+     * Verifies many signatures at once using the common fork/join pool.
+     *
+     * @see #verifyAll(PublicKey[], byte[][], byte[][], ForkJoinPool)
+     */
+    public static BitSet verifyAll(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures) {
+        return verifyAll(pubKeys, messages, signatures, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Checks {@code signatures[i]} of {@code messages[i]} under {@code pubKeys[i]} for every
+     * {@code i}, splitting the work into batches run on {@code pool}, or on this thread if it is
+     * null. Called from a task running on {@code pool}, the batches are forked and joined from
+     * that task, so no worker of the pool is left blocked waiting for the others.
+     *
+     * @return a bit set where bit {@code i} is set if and only if the ith signature is valid
+     * @throws IllegalArgumentException if the arrays differ in length
+     */
+    public static BitSet verifyAll(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures,
+            ForkJoinPool pool) {
+        int n = pubKeys.length;
+        if (messages.length != n || signatures.length != n)
+            throw new IllegalArgumentException("keys, messages and signatures differ in length");
+        boolean[] valid = new boolean[n];
+        invoke(new VerifyTask(pubKeys, messages, signatures, valid, 0, n, batchSize(n, pool)), pool);
+        BitSet result = new BitSet(n);
+        for (int i = 0; i < n; i++) {
+            if (valid[i])
+                result.set(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return this thread's SHA-256 digest, reset. It must be used up (by calling
+     *         {@code digest()}) before anything else on the same thread asks for it again.
+     */
+    public static MessageDigest sha256() {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md;
+    }
+
+    /** @return the SHA-256 hash of {@code data} */
+    public static byte[] sha256(byte[] data) {
+        return sha256().digest(data);
+    }
+
+    /** @return the number of items below which a task on {@code pool} is not split any further */
+    private static int batchSize(int n, ForkJoinPool pool) {
+        if (pool == null)
+            return Math.max(1, n);
+        int parallelism = pool.getParallelism();
+        return Math.max(MIN_BATCH, (n + 4 * parallelism - 1) / (4 * parallelism));
+    }
+
+    /**
+     * Runs {@code task} to completion on {@code pool}, directly if this thread is one of its
+     * workers, as {@link ForkJoinTask#invoke()} forks and joins the subtasks without blocking the
+     * worker. With a null pool the task is not split and runs on this thread.
+     */
+    private static void invoke(RecursiveAction task, ForkJoinPool pool) {
+        if (pool == null || ForkJoinTask.getPool() == pool)
+            task.invoke();
+        else
+            pool.invoke(task);
+    }
+
+    /** Verifies signatures {@code from} to {@code to}, halving the range down to {@code batch} */
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PublicKey[] pubKeys;
+        private final byte[][] messages;
+        private final byte[][] signatures;
+        private final boolean[] valid;
+        private final int from;
+        private final int to;
+        private final int batch;
+
+        private VerifyTask(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures,
+                boolean[] valid, int from, int to, int batch) {
+            this.pubKeys = pubKeys;
+            this.messages = messages;
+            this.signatures = signatures;
+            this.valid = valid;
+            this.from = from;
+            this.to = to;
+            this.batch = batch;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > batch) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(pubKeys, messages, signatures, valid, from, mid, batch),
+                        new VerifyTask(pubKeys, messages, signatures, valid, mid, to, batch));
+                return;
+            }
+            for (int i = from; i < to; i++)
+                valid[i] = verifySignature(pubKeys[i], messages[i], signatures[i]);
+        }
+    }
 }
@@ -0,0 +1,646 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Chooses the subset of an epoch of transactions that are valid together and pay the highest total
+ * fee. A transaction can only be chosen with the transactions of the epoch whose outputs it spends,
+ * and no two chosen transactions may spend the same output, so the choice is made over two graphs:
+ * the dependency graph, from each transaction to its parents in the epoch, and the conflict graph,
+ * between transactions spending the same output.
+ *
+ * <p>
+ * A greedy pass first takes transactions, with the ancestors they need, highest fee first. A local
+ * search then adds left out transactions with their ancestors, evicting the chosen transactions
+ * they conflict with and their descendants, whenever that raises the total fee. Finally each group
+ * of transactions linked by conflicts or dependencies that is small enough is searched exactly by
+ * branch and bound. The search stops when its time budget runs out, keeping the best choice found
+ * so far.
+ */
+public class MaxFeeSelector {
+
+    /** largest group of linked transactions searched exactly */
+    private static final int EXACT_LIMIT = 64;
+
+    private final Transaction[] txs;
+    /** whether each transaction is valid on its own, with valid parents */
+    private final boolean[] valid;
+    private final long[] fee;
+    /** the transactions of the epoch each transaction spends outputs of, and those spending its */
+    private final int[][] parents;
+    private final int[][] children;
+    /** ids of the outputs each transaction spends, and the valid transactions spending each id */
+    private final int[][] spends;
+    private final int[][] spenders;
+    /** whether each transaction spends an output another valid transaction spends */
+    private final boolean[] conflicted;
+    /** the valid transactions, each after its parents */
+    private final int[] order;
+
+    private final boolean[] selected;
+    /** the selected transaction spending each output id, or -1 */
+    private final int[] spentBy;
+    private long totalFee;
+    private long deadline;
+
+    /** marks of the transactions and outputs visited by the current move */
+    private final int[] txMark;
+    private final int[] outputMark;
+    private int stamp;
+
+    /**
+     * Checks every transaction of {@code txs} on its own against {@code utxoPool} and the outputs
+     * of the other transactions, and builds the dependency and conflict graphs
+     */
+    public MaxFeeSelector(UTXOPool utxoPool, Transaction[] txs) {
+        this.txs = txs;
+        int n = txs.length;
+        valid = new boolean[n];
+        fee = new long[n];
+        parents = new int[n][];
+        children = new int[n][];
+        spends = new int[n][];
+
+        HashMap<ByteBuffer, Integer> byHash = new HashMap<>(2 * n);
+        for (int i = 0; i < n; i++) {
+            byte[] hash = txs[i].getHash();
+            // a copy of a transaction would spend the same outputs, so only the first is kept
+            valid[i] = hash != null && byHash.putIfAbsent(ByteBuffer.wrap(hash), i) == null;
+        }
+        HashMap<UTXO, Integer> outputIds = new HashMap<>(2 * n);
+        ArrayList<ArrayList<Integer>> childLists = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            childLists.add(new ArrayList<Integer>());
+        for (int i = 0; i < n; i++) {
+            spends[i] = new int[0];
+            parents[i] = new int[0];
+            try {
+                if (valid[i])
+                    valid[i] = check(i, utxoPool, byHash, outputIds, childLists);
+            } catch (ArithmeticException e) {
+                // its values add up to more than a long holds
+                valid[i] = false;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            children[i] = new int[childLists.get(i).size()];
+            for (int k = 0; k < children[i].length; k++)
+                children[i][k] = childLists.get(i).get(k);
+        }
+
+        // Kahn's algorithm; a transaction with an invalid parent is invalid too
+        int[] waiting = new int[n];
+        int[] queue = new int[n];
+        int head = 0, tail = 0;
+        for (int i = 0; i < n; i++) {
+            waiting[i] = parents[i].length;
+            if (waiting[i] == 0)
+                queue[tail++] = i;
+        }
+        while (head < tail) {
+            int i = queue[head++];
+            for (int c : children[i]) {
+                if (!valid[i])
+                    valid[c] = false;
+                if (--waiting[c] == 0)
+                    queue[tail++] = c;
+            }
+        }
+        int numValid = 0;
+        for (int k = 0; k < tail; k++) {
+            if (valid[queue[k]])
+                queue[numValid++] = queue[k];
+        }
+        order = Arrays.copyOf(queue, numValid);
+        // transactions left waiting are on a cycle, which no block can hold
+        boolean[] ordered = new boolean[n];
+        for (int i : order)
+            ordered[i] = true;
+        for (int i = 0; i < n; i++)
+            valid[i] &= ordered[i];
+
+        int[] counts = new int[outputIds.size()];
+        for (int i : order) {
+            for (int o : spends[i])
+                counts[o]++;
+        }
+        spenders = new int[counts.length][];
+        for (int o = 0; o < counts.length; o++)
+            spenders[o] = new int[counts[o]];
+        Arrays.fill(counts, 0);
+        conflicted = new boolean[n];
+        for (int i : order) {
+            for (int o : spends[i])
+                spenders[o][counts[o]++] = i;
+        }
+        for (int[] s : spenders) {
+            for (int i : s)
+                conflicted[i] |= s.length > 1;
+        }
+
+        selected = new boolean[n];
+        spentBy = new int[counts.length];
+        Arrays.fill(spentBy, -1);
+        txMark = new int[n];
+        outputMark = new int[counts.length];
+    }
+
+    /**
+     * @return the chosen transactions, each after its parents, searching for a better choice than
+     *         the greedy one for at most {@code timeBudgetMillis} milliseconds
+     */
+    public Transaction[] select(long timeBudgetMillis) {
+        deadline = System.nanoTime() + timeBudgetMillis * 1000000L;
+        greedy();
+        boolean anyConflict = false;
+        for (boolean c : conflicted)
+            anyConflict |= c;
+        // without conflicts the greedy pass takes every valid transaction
+        if (anyConflict && timeBudgetMillis > 0) {
+            localSearch();
+            exactSearch();
+        }
+        ArrayList<Transaction> chosen = new ArrayList<>();
+        for (int i : order) {
+            if (selected[i])
+                chosen.add(txs[i]);
+        }
+        return chosen.toArray(new Transaction[chosen.size()]);
+    }
+
+    /** @return the total fee paid by the transactions chosen by {@link #select(long)} */
+    public long getTotalFee() {
+        return totalFee;
+    }
+
+    /**
+     * @return true if transaction {@code i} is valid on its own, recording its fee, parents and the
+     *         ids of the outputs it spends
+     */
+    private boolean check(int i, UTXOPool utxoPool, HashMap<ByteBuffer, Integer> byHash,
+            HashMap<UTXO, Integer> outputIds, ArrayList<ArrayList<Integer>> childLists) {
+        Transaction tx = txs[i];
+        int[] ids = new int[tx.numInputs()];
+        ArrayList<Integer> txParents = new ArrayList<>();
+        long sumInputValue = 0;
+        for (int k = 0; k < ids.length; k++) {
+            Transaction.Input in = tx.getInput(k);
+            if (in.prevTxHash == null)
+                return false;
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            Transaction.Output output = utxoPool.getTxOutput(ut);
+            if (output == null) {
+                Integer p = byHash.get(ByteBuffer.wrap(in.prevTxHash));
+                if (p == null || in.outputIndex < 0 || in.outputIndex >= txs[p].numOutputs())
+                    return false;
+                output = txs[p].getOutput(in.outputIndex);
+                if (!txParents.contains(p))
+                    txParents.add(p);
+            }
+            if (!SignatureCache.getInstance().verifySignature(output.address, tx.getRawDataToSign(k), in.signature))
+                return false;
+            Integer id = outputIds.get(ut);
+            if (id == null) {
+                id = outputIds.size();
+                outputIds.put(ut, id);
+            }
+            for (int j = 0; j < k; j++) {
+                if (ids[j] == id)
+                    return false;
+            }
+            ids[k] = id;
+            sumInputValue = Math.addExact(sumInputValue, output.value);
+        }
+        long sumOutputValue = 0;
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0)
+                return false;
+            sumOutputValue = Math.addExact(sumOutputValue, output.value);
+        }
+        if (sumInputValue < sumOutputValue)
+            return false;
+
+        fee[i] = sumInputValue - sumOutputValue;
+        spends[i] = ids;
+        parents[i] = new int[txParents.size()];
+        for (int k = 0; k < parents[i].length; k++) {
+            parents[i][k] = txParents.get(k);
+            childLists.get(txParents.get(k)).add(i);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the transactions with the ancestors they need, those paying the most with their
+     * parents first, skipping any that would conflict with what has been taken
+     */
+    private void greedy() {
+        final long[] rank = new long[txs.length];
+        Integer[] candidates = new Integer[order.length];
+        for (int k = 0; k < order.length; k++) {
+            int i = order[k];
+            rank[i] = fee[i];
+            for (int p : parents[i])
+                rank[i] += fee[p];
+            candidates[k] = i;
+        }
+        Arrays.sort(candidates, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(rank[b], rank[a]);
+            }
+        });
+        // transactions conflicting with a taken one, and their descendants, can no longer be taken;
+        // marking them keeps a long chain below one from being walked again for every member
+        boolean[] dead = new boolean[txs.length];
+        for (int i : candidates) {
+            if (selected[i] || dead[i])
+                continue;
+            ArrayList<Integer> closure = closure(i);
+            if (closure == null) {
+                kill(i, dead);
+                continue;
+            }
+            for (int c : closure) {
+                select(c);
+                for (int o : spends[c]) {
+                    for (int s : spenders[o]) {
+                        if (s != c)
+                            kill(s, dead);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Marks transaction {@code i} and its descendants as dead, if they are not already */
+    private void kill(int i, boolean[] dead) {
+        if (dead[i])
+            return;
+        dead[i] = true;
+        ArrayList<Integer> stack = new ArrayList<>();
+        stack.add(i);
+        while (!stack.isEmpty()) {
+            for (int d : children[stack.remove(stack.size() - 1)]) {
+                if (!dead[d]) {
+                    dead[d] = true;
+                    stack.add(d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Improves the choice by two kinds of moves, made whenever they raise the total fee, until no
+     * such move is left or the time runs out: adding a left out transaction with its ancestors in
+     * place of the transactions it conflicts with and their descendants, and dropping a chosen
+     * transaction with its descendants to take the best of what it conflicted with instead
+     */
+    private void localSearch() {
+        Integer[] candidates = new Integer[order.length];
+        for (int k = 0; k < order.length; k++)
+            candidates[k] = order[k];
+        Arrays.sort(candidates, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(fee[b], fee[a]);
+            }
+        });
+        boolean improved = true;
+        int steps = 0;
+        while (improved) {
+            improved = false;
+            for (int i : candidates) {
+                if ((++steps & 255) == 0 && System.nanoTime() > deadline)
+                    return;
+                if (selected[i])
+                    improved |= conflicted[i] && replace(i);
+                else
+                    improved |= add(i);
+            }
+        }
+    }
+
+    /**
+     * Adds transaction {@code i} and its ancestors, evicting what they conflict with, if that
+     * raises the total fee
+     *
+     * @return true if the choice changed
+     */
+    private boolean add(int i) {
+        ArrayList<Integer> closure = closure(i);
+        if (closure == null)
+            return false;
+        ArrayList<Integer> evicted = evictions(closure);
+        long gain = 0;
+        for (int c : closure) {
+            // evicting a parent it keeps would leave it spending outputs no longer there
+            for (int p : parents[c]) {
+                if (selected[p] && txMark[p] == stamp)
+                    return false;
+            }
+            gain += fee[c];
+        }
+        for (int e : evicted)
+            gain -= fee[e];
+        if (gain <= 0)
+            return false;
+        apply(closure, evicted);
+        return true;
+    }
+
+    /**
+     * Drops the chosen transaction {@code i} and its descendants, then greedily takes the left out
+     * transactions spending the outputs they spent, keeping the change only if it raises the total
+     * fee
+     *
+     * @return true if the choice changed
+     */
+    private boolean replace(int i) {
+        ArrayList<Integer> single = new ArrayList<>();
+        single.add(i);
+        ArrayList<Integer> dropped = descendants(single);
+        dropped.add(i);
+        long gain = 0;
+        for (int d : dropped) {
+            gain -= fee[d];
+            deselect(d);
+        }
+        ArrayList<Integer> candidates = new ArrayList<>();
+        for (int d : dropped) {
+            for (int o : spends[d]) {
+                for (int s : spenders[o]) {
+                    if (s != d)
+                        candidates.add(s);
+                }
+            }
+        }
+        Collections.sort(candidates, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(fee[b], fee[a]);
+            }
+        });
+        ArrayList<Integer> taken = new ArrayList<>();
+        for (int c : candidates) {
+            if (selected[c])
+                continue;
+            ArrayList<Integer> closure = closure(c);
+            // taking i back would only undo the move
+            if (closure == null || txMark[i] == stamp || !evictions(closure).isEmpty())
+                continue;
+            for (int a : closure) {
+                gain += fee[a];
+                select(a);
+                taken.add(a);
+            }
+        }
+        if (gain > 0)
+            return true;
+        apply(dropped, taken);
+        return false;
+    }
+
+    /**
+     * @return transaction {@code i} and its ancestors not selected yet, or null if two of them
+     *         spend the same output
+     */
+    private ArrayList<Integer> closure(int i) {
+        stamp++;
+        ArrayList<Integer> closure = new ArrayList<>();
+        closure.add(i);
+        txMark[i] = stamp;
+        for (int k = 0; k < closure.size(); k++) {
+            int c = closure.get(k);
+            for (int o : spends[c]) {
+                if (outputMark[o] == stamp)
+                    return null;
+                outputMark[o] = stamp;
+            }
+            for (int p : parents[c]) {
+                if (!selected[p] && txMark[p] != stamp) {
+                    txMark[p] = stamp;
+                    closure.add(p);
+                }
+            }
+        }
+        return closure;
+    }
+
+    /**
+     * @return the selected transactions conflicting with {@code closure}, and their descendants,
+     *         all marked with the current stamp
+     */
+    private ArrayList<Integer> evictions(ArrayList<Integer> closure) {
+        ArrayList<Integer> conflicts = new ArrayList<>();
+        for (int c : closure) {
+            for (int o : spends[c]) {
+                if (spentBy[o] >= 0 && !conflicts.contains(spentBy[o]))
+                    conflicts.add(spentBy[o]);
+            }
+        }
+        ArrayList<Integer> evicted = descendants(conflicts);
+        evicted.addAll(conflicts);
+        return evicted;
+    }
+
+    /**
+     * @return the selected descendants of the transactions of {@code txs} not in {@code txs},
+     *         marking both with a new stamp
+     */
+    private ArrayList<Integer> descendants(ArrayList<Integer> txs) {
+        stamp++;
+        for (int t : txs)
+            txMark[t] = stamp;
+        ArrayList<Integer> found = new ArrayList<>();
+        ArrayList<Integer> stack = new ArrayList<>(txs);
+        while (!stack.isEmpty()) {
+            for (int d : children[stack.remove(stack.size() - 1)]) {
+                if (selected[d] && txMark[d] != stamp) {
+                    txMark[d] = stamp;
+                    found.add(d);
+                    stack.add(d);
+                }
+            }
+        }
+        return found;
+    }
+
+    private void apply(ArrayList<Integer> added, ArrayList<Integer> removed) {
+        for (int r : removed)
+            deselect(r);
+        for (int a : added)
+            select(a);
+    }
+
+    private void select(int i) {
+        selected[i] = true;
+        totalFee += fee[i];
+        for (int o : spends[i])
+            spentBy[o] = i;
+    }
+
+    private void deselect(int i) {
+        selected[i] = false;
+        totalFee -= fee[i];
+        for (int o : spends[i])
+            spentBy[o] = -1;
+    }
+
+    /**
+     * Searches every group of transactions linked by conflicts or dependencies that has a conflict
+     * and at most {@code EXACT_LIMIT} transactions for the best choice within it
+     */
+    private void exactSearch() {
+        int[] root = new int[txs.length];
+        for (int i = 0; i < root.length; i++)
+            root[i] = i;
+        for (int i : order) {
+            for (int p : parents[i])
+                union(root, i, p);
+        }
+        for (int[] s : spenders) {
+            for (int k = 1; k < s.length; k++)
+                union(root, s[0], s[k]);
+        }
+        HashMap<Integer, ArrayList<Integer>> groups = new HashMap<>();
+        for (int i : order) {
+            int r = find(root, i);
+            ArrayList<Integer> group = groups.get(r);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(r, group);
+            }
+            group.add(i);
+        }
+        for (ArrayList<Integer> group : groups.values()) {
+            boolean hasConflict = false;
+            for (int i : group)
+                hasConflict |= conflicted[i];
+            if (hasConflict && group.size() <= EXACT_LIMIT) {
+                if (System.nanoTime() > deadline)
+                    return;
+                new BranchAndBound(group).run();
+            }
+        }
+    }
+
+    private static int find(int[] root, int i) {
+        while (root[i] != i) {
+            root[i] = root[root[i]];
+            i = root[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] root, int a, int b) {
+        root[find(root, a)] = find(root, b);
+    }
+
+    /**
+     * Exhaustive search over one group, deciding its transactions one by one in dependency order,
+     * and giving up on a branch once even taking every transaction still open could not beat the
+     * best choice found
+     */
+    private class BranchAndBound {
+        private final int[] group;
+        /** position of each transaction in {@code group}, for those in it */
+        private final HashMap<Integer, Integer> position;
+        /** number of reasons each transaction cannot be taken: a conflict or a parent left out */
+        private final int[] blocked;
+        private final boolean[] taken;
+        private final boolean[] bestTaken;
+        private long best;
+        private long nodes;
+        private boolean found;
+        private boolean aborted;
+
+        private BranchAndBound(ArrayList<Integer> members) {
+            group = new int[members.size()];
+            position = new HashMap<>(2 * group.length);
+            for (int j = 0; j < group.length; j++) {
+                group[j] = members.get(j);
+                position.put(group[j], j);
+            }
+            blocked = new int[group.length];
+            taken = new boolean[group.length];
+            bestTaken = new boolean[group.length];
+            for (int i : group) {
+                if (selected[i])
+                    best += fee[i];
+            }
+        }
+
+        private void run() {
+            long open = 0;
+            for (int i : group)
+                open += fee[i];
+            search(0, 0, open);
+            if (!found)
+                return;
+            for (int i : group) {
+                if (selected[i])
+                    deselect(i);
+            }
+            for (int j = 0; j < group.length; j++) {
+                if (bestTaken[j])
+                    select(group[j]);
+            }
+        }
+
+        /**
+         * decides the transactions from position {@code j} on, {@code open} being the total fee of
+         * those not blocked
+         */
+        private void search(int j, long taken, long open) {
+            if (aborted || ((++nodes & 1023) == 0 && System.nanoTime() > deadline)) {
+                aborted = true;
+                return;
+            }
+            if (taken + open <= best)
+                return;
+            if (j == group.length) {
+                best = taken;
+                found = true;
+                System.arraycopy(this.taken, 0, bestTaken, 0, group.length);
+                return;
+            }
+            int i = group[j];
+            if (blocked[j] > 0) {
+                search(j + 1, taken, open + block(children[i], j + 1, 1));
+                block(children[i], j + 1, -1);
+                return;
+            }
+            open -= fee[i];
+            // take it: every other spender of its outputs is blocked
+            long lost = 0;
+            for (int o : spends[i])
+                lost += block(spenders[o], j + 1, 1);
+            this.taken[j] = true;
+            search(j + 1, taken + fee[i], open + lost);
+            this.taken[j] = false;
+            for (int o : spends[i])
+                block(spenders[o], j + 1, -1);
+            // leave it out: its children are blocked
+            search(j + 1, taken, open + block(children[i], j + 1, 1));
+            block(children[i], j + 1, -1);
+        }
+
+        /**
+         * Adds {@code delta} to the blocked count of every transaction of {@code txs} at position
+         * {@code from} or later, which are still to be decided
+         *
+         * @return the change in the total fee of those not blocked
+         */
+        private long block(int[] txs, int from, int delta) {
+            long change = 0;
+            for (int t : txs) {
+                Integer p = position.get(t);
+                if (p == null || p < from || (delta > 0 ? blocked[p]++ : --blocked[p]) != 0)
+                    continue;
+                change += delta > 0 ? -fee[t] : fee[t];
+            }
+            return change;
+        }
+    }
+}
@@ -1,98 +1,133 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class MaxFeeTxHandler {
+    /** default time {@link MaxFeeSelector} may search for a better choice of transactions */
+    public static final long TIME_BUDGET_MILLIS = 100;
+    /** number of transactions in a level below which their signatures are verified on this thread */
+    private static final int VALIDATE_THRESHOLD = 8;
+
     private UTXOPool utxoPool;
+    /** index of {@code utxoPool} by address, or null */
+    private AddressIndex addressIndex;
+    private long timeBudgetMillis;
 
     public MaxFeeTxHandler(UTXOPool utxoPool) {
-        this.utxoPool = new UTXOPool(utxoPool);
+        this(utxoPool, TIME_BUDGET_MILLIS);
     }
 
-    public boolean isValidTx(Transaction tx) {
-        double sumInputValue = 0;
-        int inputIdx = 0;
-        UTXOPool doubleSpent = new UTXOPool();
-        for(Transaction.Input input : tx.getInputs()) {
-            UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
-            // 1. Output claimed by input is in current UTXO pool
-            if (!utxoPool.contains(ut)) return false;
-            Transaction.Output output = utxoPool.getTxOutput(ut);
-            // 2. Signature is valid and 3. No double spent
-            if (!Crypto.verifySignature(output.address, tx.getRawDataToSign(inputIdx), input.signature)
-                    || doubleSpent.contains(ut)) return false;
-            sumInputValue += output.value;
-            doubleSpent.addUTXO(ut, output);
-            inputIdx++;
-        }
+    /**
+     * Same as {@link #MaxFeeTxHandler(UTXOPool)}, searching each epoch for the transactions paying
+     * the highest total fee for at most {@code timeBudgetMillis} milliseconds; with 0 they are
+     * chosen greedily
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, long timeBudgetMillis) {
+        this.utxoPool = new UTXOPool(utxoPool);
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
 
-        // 4. All of tx output values are non-negative
-        double sumOutputValue = 0;
-        for(Transaction.Output output : tx.getOutputs()) {
-            if (output.value < 0) return false;
-            sumOutputValue += output.value;
-        }
+    /**
+     * Same as {@link #MaxFeeTxHandler(UTXOPool, long)}, also keeping {@code addressIndex}, an
+     * index of {@code utxoPool}, up to date with every change {@link #handleTxs} makes to the pool
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, long timeBudgetMillis, AddressIndex addressIndex) {
+        this(utxoPool, timeBudgetMillis);
+        this.addressIndex = addressIndex;
+    }
 
-        // 5. Sum of all
-        return sumInputValue >= sumOutputValue;
+    public boolean isValidTx(Transaction tx) {
+        return isValidTx(tx, null);
     }
 
-    public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        HashMap<ByteArrayWrapper, Node> transactionGraph = new HashMap<>(possibleTxs.length);
-        HashMap<OutputPair, ArrayList<Transaction>> collisionLists = new HashMap<>();
-
-        // Transaction collisions
-        for (Transaction transaction : possibleTxs) {
-            for (Transaction.Input input : transaction.getInputs()) {
-                OutputPair op = new OutputPair(input.prevTxHash, input.outputIndex);
-                if (!collisionLists.containsKey(op)) collisionLists.put(op, new ArrayList<>());
-                collisionLists.get(op).add(transaction);
+    /**
+     * Same as {@link #isValidTx(Transaction)}, taking the signature of input {@code i} as valid
+     * if and only if {@code validSignatures[i]} is, unless {@code validSignatures} is null
+     */
+    private boolean isValidTx(Transaction tx, boolean[] validSignatures) {
+        try {
+            long sumInputValue = 0;
+            int inputIdx = 0;
+            UTXOPool doubleSpent = new UTXOPool();
+            for(Transaction.Input input : tx.getInputs()) {
+                UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
+                // 1. Output claimed by input is in current UTXO pool
+                if (!utxoPool.contains(ut)) return false;
+                Transaction.Output output = utxoPool.getTxOutput(ut);
+                // 2. Signature is valid and 3. No double spent
+                boolean validSignature = validSignatures != null
+                        ? validSignatures[inputIdx]
+                        : SignatureCache.getInstance().verifySignature(output.address, tx.getRawDataToSign(inputIdx), input.signature);
+                if (!validSignature || doubleSpent.contains(ut)) return false;
+                sumInputValue = Math.addExact(sumInputValue, output.value);
+                doubleSpent.addUTXO(ut, output);
+                inputIdx++;
             }
-        }
 
-        ArrayList<Transaction> maxPossibleTxs = new ArrayList<>();
-        for (ArrayList<Transaction> collisionList : collisionLists.values()) {
-            if (collisionList.size() > 1) {
-                System.out.println("Collisions: "+collisionList.size());
-                maxPossibleTxs.add(findMaxFromCollisions(collisionList));
-            } else {
-                maxPossibleTxs.add(collisionList.get(0));
+            // 4. All of tx output values are non-negative
+            long sumOutputValue = 0;
+            for(Transaction.Output output : tx.getOutputs()) {
+                if (output.value < 0) return false;
+                sumOutputValue = Math.addExact(sumOutputValue, output.value);
             }
-        }
-
-
-        // Insert transactions to hashmap
-        for (Transaction transaction : maxPossibleTxs) {
-            Node txNode = new Node(transaction);
-            transactionGraph.put(new ByteArrayWrapper(transaction.getHash()), txNode);
-        }
 
-        // Build graph of transactions
-        for (Transaction transaction : maxPossibleTxs) {
-            Node txNode = transactionGraph.get(new ByteArrayWrapper(transaction.getHash()));
-            for (Transaction.Input input : transaction.getInputs()) {
-                if (transactionGraph.containsKey(new ByteArrayWrapper(input.prevTxHash))) {
-                    transactionGraph.get(new ByteArrayWrapper(input.prevTxHash)).addNeighbor(txNode);
-                }
-            }
+            // 5. Sum of all
+            return sumInputValue >= sumOutputValue;
+        } catch (ArithmeticException e) {
+            // the values add up to more than a long holds
+            return false;
         }
+    }
 
-        // Perform Topological sort in transactions graph
-        Stack<Transaction> sorted = this.topologicalSort(transactionGraph);
+    /**
+     * Handles an epoch of proposed transactions, returning the mutually valid subset paying the
+     * highest total fee that {@link MaxFeeSelector} finds within the time budget, each after the
+     * transactions it spends outputs of, and updating the current UTXO pool accordingly. Conflicts
+     * are found through a hashed index of the outputs spent and the transactions are ordered over
+     * int indexes without recursion, so an epoch takes time linear in its size apart from the
+     * search, even with long chains of transactions spending each other's outputs.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        return handleTxs(possibleTxs, null);
+    }
 
-        // Get valid transactions
-        ArrayList<Transaction> validTransactions = new ArrayList<>();
-        while (!sorted.isEmpty()) {
-            Transaction tx = sorted.pop();
-            if (this.isValidTx(tx)) {
+    /**
+     * Same as {@link #handleTxs(Transaction[])}, but validates the chosen transactions level by
+     * level on {@code pool}: a level holds the transactions whose parents in the epoch are all in
+     * earlier levels, so its transactions never spend each other's outputs and are all checked
+     * against the UTXO pool left by the earlier levels, their signatures verified in one batch. The pool is then updated with the
+     * level's valid transactions in the order {@link MaxFeeSelector} gave them, a transaction
+     * spending an output already spent by an earlier one of its level being dropped, so the
+     * accepted transactions are the same as without {@code pool}.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs, ForkJoinPool pool) {
+        // Mutually valid transactions paying the highest total fee, parents first
+        Transaction[] sorted = new MaxFeeSelector(utxoPool, possibleTxs).select(timeBudgetMillis);
+
+        ArrayList<Transaction> validTransactions = new ArrayList<>(sorted.length);
+        for (ArrayList<Transaction> level : levels(sorted)) {
+            boolean[][] validSignatures = pool != null && level.size() > VALIDATE_THRESHOLD
+                    ? verifySignatures(level, pool)
+                    : new boolean[level.size()][];
+            boolean[] valid = new boolean[level.size()];
+            for (int i = 0; i < valid.length; i++)
+                valid[i] = this.isValidTx(level.get(i), validSignatures[i]);
+
+            for (int i = 0; i < valid.length; i++) {
+                Transaction tx = level.get(i);
+                if (!valid[i] || !unspent(tx))
+                    continue;
                 // Remove all input transactions
                 for (Transaction.Input input : tx.getInputs()) {
                     UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
-                    this.utxoPool.removeUTXO(ut);
+                    removeUTXO(ut);
                 }
 
                 // Add all unspent outputs
                 int idxOutput = 0;
                 for (Transaction.Output output : tx.getOutputs()) {
-                    this.utxoPool.addUTXO(new UTXO(tx.getHash(), idxOutput), output);
+                    addUTXO(new UTXO(tx.getHash(), idxOutput), output);
                     idxOutput++;
                 }
                 validTransactions.add(tx);
@@ -102,142 +137,100 @@ public class MaxFeeTxHandler {
         return validTransactions.toArray(new Transaction[validTransactions.size()]);
     }
 
-    private Transaction findMaxFromCollisions(ArrayList<Transaction> collisions) {
-        double fee = Double.NEGATIVE_INFINITY;
-        Transaction max = null;
-        for (Transaction tx : collisions) {
-            double sumInputValue = 0;
-            int inputIdx = 0;
-            for(Transaction.Input input : tx.getInputs()) {
-                UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
-                Transaction.Output output = utxoPool.getTxOutput(ut);
-                // 2. Signature is valid and 3. No double spent
-                if (!Crypto.verifySignature(output.address, tx.getRawDataToSign(inputIdx), input.signature)) continue;
-                sumInputValue += output.value;
-                inputIdx++;
-            }
-
-            // 4. All of tx output values are non-negative
-            double sumOutputValue = 0;
-            for(Transaction.Output output : tx.getOutputs()) {
-                if (output.value < 0) continue;
-                sumOutputValue += output.value;
-            }
-
-            // 5. Sum of all
-            double feeTmp = sumInputValue - sumOutputValue;
-            if (feeTmp > fee) {
-                fee = feeTmp;
-                max = tx;
-            }
+    private void removeUTXO(UTXO ut) {
+        if (addressIndex != null) {
+            Transaction.Output spent = utxoPool.getTxOutput(ut);
+            if (spent != null)
+                addressIndex.remove(ut, spent);
         }
-
-        return max;
+        utxoPool.removeUTXO(ut);
     }
 
-    private Stack<Transaction> topologicalSort(HashMap<ByteArrayWrapper, Node> graph) {
-        Stack<Transaction> sorted = new Stack<>();
-        // Initialize visited table
-        HashMap<ByteArrayWrapper, Boolean> visited = new HashMap<>(graph.size());
-        for (ByteArrayWrapper key : graph.keySet()) {
-            visited.put(key, false);
+    /** adds {@code ut}, which replaces the output of a transaction with the same hash, if any */
+    private void addUTXO(UTXO ut, Transaction.Output output) {
+        if (addressIndex != null) {
+            Transaction.Output replaced = utxoPool.getTxOutput(ut);
+            if (replaced != null)
+                addressIndex.remove(ut, replaced);
+            addressIndex.add(ut, output);
         }
-
-        for (Node txNode : graph.values()) {
-            if (!visited.get(new ByteArrayWrapper(txNode.tx.getHash()))) {
-                dfs(txNode, visited, sorted);
-            }
-        }
-
-        return sorted;
+        utxoPool.addUTXO(ut, output);
     }
 
-    private void dfs(Node txNode, HashMap<ByteArrayWrapper, Boolean> visited, Stack<Transaction> sorted) {
-        for (Node neighbor : txNode.neighbors) {
-            if (!visited.get(new ByteArrayWrapper(neighbor.tx.getHash()))) {
-                dfs(neighbor, visited, sorted);
+    /**
+     * @return {@code sorted}, whose transactions each come after their parents, grouped into
+     *         levels: a transaction is in the level after the last one holding one of its parents
+     */
+    private static ArrayList<ArrayList<Transaction>> levels(Transaction[] sorted) {
+        HashMap<ByteBuffer, Integer> levelOf = new HashMap<>(2 * sorted.length);
+        ArrayList<ArrayList<Transaction>> levels = new ArrayList<>();
+        for (Transaction tx : sorted) {
+            int level = 0;
+            for (Transaction.Input input : tx.getInputs()) {
+                Integer parent = levelOf.get(ByteBuffer.wrap(input.prevTxHash));
+                if (parent != null && parent >= level)
+                    level = parent + 1;
             }
+            levelOf.put(ByteBuffer.wrap(tx.getHash()), level);
+            if (level == levels.size())
+                levels.add(new ArrayList<Transaction>());
+            levels.get(level).add(tx);
         }
-        visited.put(new ByteArrayWrapper(txNode.tx.getHash()), true);
-        sorted.push(txNode.tx);
+        return levels;
     }
 
-    private class OutputPair {
-        private byte[] txHash;
-        private int index;
-
-        private OutputPair(byte[] txHash, int index) {
-            this.txHash = txHash;
-            this.index = index;
-        }
-
-        @Override
-        public boolean equals(Object other) {
-            if (this == other) return true;
-            if (!(other instanceof OutputPair)) return false;
-            OutputPair that = (OutputPair) other;
-            if (this.index != that.index) return false;
-            if (!Arrays.equals(this.txHash, that.txHash)) return false;
-
-            return true;
+    /** @return true if every output {@code tx} spends is still in the current UTXO pool */
+    private boolean unspent(Transaction tx) {
+        for (Transaction.Input input : tx.getInputs()) {
+            if (!utxoPool.contains(new UTXO(input.prevTxHash, input.outputIndex)))
+                return false;
         }
+        return true;
     }
 
-    private class Node {
-        private Transaction tx;
-        private ArrayList<Node> neighbors;
-
-        private Node(Transaction tx) {
-            this.tx = tx;
-            this.neighbors = new ArrayList<>();
+    /**
+     * @return for each transaction of {@code level}, whether the signature of each of its inputs is
+     *         valid against the output it spends in the current UTXO pool, all verified in one
+     *         batch on {@code pool}. An input spending an output not in the pool is left invalid.
+     */
+    private boolean[][] verifySignatures(ArrayList<Transaction> level, ForkJoinPool pool) {
+        int numInputs = 0;
+        for (Transaction tx : level)
+            numInputs += tx.numInputs();
+        // signature j of the batch is that of input inputOf[j] of transaction txOf[j]
+        PublicKey[] pubKeys = new PublicKey[numInputs];
+        byte[][] messages = new byte[numInputs][];
+        byte[][] signatures = new byte[numInputs][];
+        int[] txOf = new int[numInputs];
+        int[] inputOf = new int[numInputs];
+        int count = 0;
+        boolean[][] validSignatures = new boolean[level.size()][];
+        for (int t = 0; t < level.size(); t++) {
+            Transaction tx = level.get(t);
+            validSignatures[t] = new boolean[tx.numInputs()];
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                Transaction.Output output = utxoPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex));
+                if (output == null)
+                    continue;
+                pubKeys[count] = output.address;
+                messages[count] = tx.getRawDataToSign(i);
+                signatures[count] = input.signature;
+                txOf[count] = t;
+                inputOf[count] = i;
+                count++;
+            }
         }
 
-        private void addNeighbor(Node txNode) {
-            this.neighbors.add(txNode);
-        }
+        BitSet valid = SignatureCache.getInstance().verifyAll(Arrays.copyOf(pubKeys, count),
+                Arrays.copyOf(messages, count), Arrays.copyOf(signatures, count), pool);
+        for (int j = valid.nextSetBit(0); j >= 0; j = valid.nextSetBit(j + 1))
+            validSignatures[txOf[j]][inputOf[j]] = true;
+        return validSignatures;
     }
 
-    private class ByteArrayWrapper {
-
-        private byte[] contents;
-
-        public ByteArrayWrapper(byte[] b) {
-            contents = new byte[b.length];
-            for (int i = 0; i < contents.length; i++)
-                contents[i] = b[i];
-        }
-
-        public boolean equals(Object other) {
-            if (other == null) {
-                return false;
-            }
-            if (getClass() != other.getClass()) {
-                return false;
-            }
-
-            ByteArrayWrapper otherB = (ByteArrayWrapper) other;
-            byte[] b = otherB.contents;
-            if (contents == null) {
-                if (b == null)
-                    return true;
-                else
-                    return false;
-            } else {
-                if (b == null)
-                    return false;
-                else {
-                    if (contents.length != b.length)
-                        return false;
-                    for (int i = 0; i < b.length; i++)
-                        if (contents[i] != b[i])
-                            return false;
-                    return true;
-                }
-            }
-        }
-
-        public int hashCode() {
-            return Arrays.hashCode(contents);
-        }
+    /** @return the index kept up to date by this handler, or null */
+    public AddressIndex getAddressIndex() {
+        return addressIndex;
     }
 }
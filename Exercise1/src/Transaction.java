@@ -1,12 +1,13 @@
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
 public class Transaction {
 
+    /** number of base units in one coin; amounts are whole numbers of base units */
+    public static final long COIN = 100000000;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -28,25 +29,52 @@ public class Transaction {
                 signature = null;
             else
                 signature = Arrays.copyOf(sig, sig.length);
+            rawTx = null;
+        }
+
+        /** @return the number of bytes this input takes in {@link #getRawTx()} */
+        private int rawLength() {
+            return (prevTxHash == null ? 0 : prevTxHash.length) + Integer.SIZE / 8
+                    + (signature == null ? 0 : signature.length);
         }
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units, {@link Transaction#COIN} to a coin */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
-        public Output(double v, PublicKey addr) {
+        /** encoded form of {@code address}, and the key it was taken from */
+        private byte[] addressBytes;
+        private PublicKey encodedAddress;
+
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
+
+        /** @return the encoded form of {@code address} */
+        private byte[] getAddressBytes() {
+            if (encodedAddress != address) {
+                addressBytes = address.getEncoded();
+                encodedAddress = address;
+            }
+            return addressBytes;
+        }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /**
+     * Serialized transaction and serialized outputs, built on first use and dropped whenever the
+     * transaction is changed through its methods. Inputs and outputs should therefore not be
+     * modified through their public fields once the transaction has been serialized.
+     */
+    private volatile byte[] rawTx;
+    private volatile byte[] rawOutputs;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -62,15 +90,19 @@ public class Transaction {
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        rawTx = null;
     }
 
-    public void addOutput(double value, PublicKey address) {
+    public void addOutput(long value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        rawTx = null;
+        rawOutputs = null;
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        rawTx = null;
     }
 
     public void removeInput(UTXO ut) {
@@ -79,6 +111,7 @@ public class Transaction {
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
+                rawTx = null;
                 return;
             }
         }
@@ -86,86 +119,82 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        byte[] outputsData = getRawOutputs();
+        ByteBuffer sigData = ByteBuffer.allocate((prevTxHash == null ? 0 : prevTxHash.length)
+                + Integer.SIZE / 8 + outputsData.length);
         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        sigData.put(outputsData);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
+        rawTx = null;
     }
 
+    /** @return a copy of the serialized transaction, which the caller is free to change */
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
+        return rawTxBytes().clone();
+    }
+
+    /**
+     * @return the serialized transaction itself, cached until the transaction changes and never
+     *         copied, for hashing and writing blocks. It must not be changed.
+     */
+    byte[] rawTxBytes() {
+        byte[] tx = rawTx;
+        if (tx == null) {
+            byte[] outputsData = getRawOutputs();
+            int length = outputsData.length;
+            for (Input in : inputs)
+                length += in.rawLength();
+            ByteBuffer rawData = ByteBuffer.allocate(length);
+            for (Input in : inputs) {
+                if (in.prevTxHash != null)
+                    rawData.put(in.prevTxHash);
+                rawData.putInt(in.outputIndex);
+                if (in.signature != null)
+                    rawData.put(in.signature);
             }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
-
+            rawData.put(outputsData);
+            tx = rawData.array();
+            rawTx = tx;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
         return tx;
     }
 
-    public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+    /** @return the serialized outputs, shared by {@link #getRawTx()} and every signed input */
+    private byte[] getRawOutputs() {
+        byte[] data = rawOutputs;
+        return data != null ? data : buildRawOutputs();
+    }
+
+    /** synchronized as the outputs cache their encoded keys without any locking of their own */
+    private synchronized byte[] buildRawOutputs() {
+        byte[] data = rawOutputs;
+        if (data == null) {
+            int length = 0;
+            for (Output op : outputs)
+                length += Long.SIZE / 8 + op.getAddressBytes().length;
+            ByteBuffer rawData = ByteBuffer.allocate(length);
+            for (Output op : outputs) {
+                rawData.putLong(op.value);
+                rawData.put(op.getAddressBytes());
+            }
+            data = rawData.array();
+            rawOutputs = data;
         }
+        return data;
+    }
+
+    public void finalize() {
+        hash = Crypto.sha256(rawTxBytes());
     }
 
     public void setHash(byte[] h) {
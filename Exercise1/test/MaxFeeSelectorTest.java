@@ -0,0 +1,167 @@
+import static org.junit.Assert.assertEquals;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaxFeeSelectorTest {
+
+    private static final int OUTPUTS = 4;
+    private static final long VALUE = 100;
+
+    private KeyPair scrooge;
+    private Transaction root;
+    private UTXOPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        scrooge = gen.generateKeyPair();
+        root = new Transaction();
+        for (int i = 0; i < OUTPUTS; i++)
+            root.addOutput(VALUE, scrooge.getPublic());
+        root.finalize();
+        pool = new UTXOPool();
+        for (int i = 0; i < OUTPUTS; i++)
+            pool.addUTXO(new UTXO(root.getHash(), i), root.getOutput(i));
+    }
+
+    /** @return a transaction spending {@code spent} into two outputs of {@code value} each */
+    private Transaction spend(List<UTXO> spent, long value) throws Exception {
+        Transaction tx = new Transaction();
+        for (UTXO ut : spent)
+            tx.addInput(ut.getTxHash(), ut.getIndex());
+        tx.addOutput(value, scrooge.getPublic());
+        tx.addOutput(value, scrooge.getPublic());
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < tx.numInputs(); i++) {
+            sig.initSign(scrooge.getPrivate());
+            sig.update(tx.getRawDataToSign(i));
+            tx.addSignature(sig.sign(), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    private Transaction spend(UTXO spent, long value) throws Exception {
+        List<UTXO> inputs = new ArrayList<>();
+        inputs.add(spent);
+        return spend(inputs, value);
+    }
+
+    /**
+     * @return the total fee of {@code txs}, applied to {@code pool} in any order that works, or -1
+     *         if they are not all valid together
+     */
+    private static long feeOf(UTXOPool pool, List<Transaction> txs) {
+        UTXOPool p = new UTXOPool(pool);
+        List<Transaction> left = new ArrayList<>(txs);
+        long fee = 0;
+        boolean progress = true;
+        while (!left.isEmpty() && progress) {
+            progress = false;
+            for (int t = 0; t < left.size(); t++) {
+                Transaction tx = left.get(t);
+                if (!new TxHandler(p).isValidTx(tx))
+                    continue;
+                for (Transaction.Input in : tx.getInputs()) {
+                    UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+                    fee += p.getTxOutput(ut).value;
+                    p.removeUTXO(ut);
+                }
+                for (int i = 0; i < tx.numOutputs(); i++) {
+                    fee -= tx.getOutput(i).value;
+                    p.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+                }
+                left.remove(t--);
+                progress = true;
+            }
+        }
+        return left.isEmpty() ? fee : -1;
+    }
+
+    /** @return the highest total fee of any subset of {@code txs} valid together */
+    private static long bestFee(UTXOPool pool, Transaction[] txs) {
+        long best = 0;
+        for (int mask = 1; mask < 1 << txs.length; mask++) {
+            List<Transaction> subset = new ArrayList<>();
+            for (int i = 0; i < txs.length; i++) {
+                if ((mask >> i & 1) != 0)
+                    subset.add(txs[i]);
+            }
+            best = Math.max(best, feeOf(pool, subset));
+        }
+        return best;
+    }
+
+    @Test
+    public void searchBeatsGreedyWhenTwoTransactionsPayMoreThanTheOneBetweenThem() throws Exception {
+        UTXO first = new UTXO(root.getHash(), 0);
+        UTXO second = new UTXO(root.getHash(), 1);
+        List<UTXO> both = new ArrayList<>();
+        both.add(first);
+        both.add(second);
+        // pays the highest fee, 10, but conflicts with two transactions paying 6 each
+        Transaction greedyChoice = spend(both, (2 * VALUE - 10) / 2);
+        Transaction left = spend(first, (VALUE - 6) / 2);
+        Transaction right = spend(second, (VALUE - 6) / 2);
+        Transaction[] txs = { greedyChoice, left, right };
+
+        MaxFeeSelector greedy = new MaxFeeSelector(pool, txs);
+        greedy.select(0);
+        assertEquals(10, greedy.getTotalFee());
+
+        MaxFeeSelector search = new MaxFeeSelector(pool, txs);
+        Transaction[] chosen = search.select(1000);
+        assertEquals(12, search.getTotalFee());
+        assertEquals(new HashSet<>(Arrays.asList(left, right)), new HashSet<>(Arrays.asList(chosen)));
+    }
+
+    @Test
+    public void choiceIsOptimalOnSmallConflictGraphs() throws Exception {
+        Random random = new Random(20);
+        for (int run = 0; run < 40; run++) {
+            List<UTXO> available = new ArrayList<>();
+            List<Long> values = new ArrayList<>();
+            for (int i = 0; i < OUTPUTS; i++) {
+                available.add(new UTXO(root.getHash(), i));
+                values.add(VALUE);
+            }
+            int n = 4 + random.nextInt(6);
+            Transaction[] txs = new Transaction[n];
+            for (int t = 0; t < n; t++) {
+                List<UTXO> inputs = new ArrayList<>();
+                long in = 0;
+                for (int k = 1 + random.nextInt(2); k > 0; k--) {
+                    int j = random.nextInt(available.size());
+                    if (inputs.contains(available.get(j)))
+                        continue;
+                    inputs.add(available.get(j));
+                    in += values.get(j);
+                }
+                // now and then a transaction paying out more than it spends
+                long fee = random.nextInt(10) == 0 ? -2 : random.nextInt(5) * 2;
+                long value = (in - fee) / 2;
+                txs[t] = spend(inputs, value);
+                for (int i = 0; i < 2; i++) {
+                    available.add(new UTXO(txs[t].getHash(), i));
+                    values.add(value);
+                }
+            }
+
+            MaxFeeSelector selector = new MaxFeeSelector(pool, txs);
+            List<Transaction> chosen = Arrays.asList(selector.select(1000));
+            assertEquals("run " + run, selector.getTotalFee(), feeOf(pool, chosen));
+            assertEquals("run " + run, bestFee(pool, txs), selector.getTotalFee());
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaxFeeTxHandlerTest {
+
+    private static final int OUTPUTS = 20;
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private Transaction root;
+    private UTXOPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        scrooge = gen.generateKeyPair();
+        alice = gen.generateKeyPair();
+        root = new Transaction();
+        for (int i = 0; i < OUTPUTS; i++)
+            root.addOutput(10 * Transaction.COIN, scrooge.getPublic());
+        root.finalize();
+        pool = new UTXOPool();
+        for (int i = 0; i < OUTPUTS; i++)
+            pool.addUTXO(new UTXO(root.getHash(), i), root.getOutput(i));
+    }
+
+    private Transaction pay(byte[] prevTxHash, int index, KeyPair from, long value) throws Exception {
+        return pay(prevTxHash, index, from, alice, value);
+    }
+
+    private Transaction pay(byte[] prevTxHash, int index, KeyPair from, KeyPair to, long value)
+            throws Exception {
+        List<UTXO> spent = new ArrayList<>();
+        spent.add(new UTXO(prevTxHash, index));
+        List<KeyPair> owners = new ArrayList<>();
+        owners.add(from);
+        return spend(spent, owners, to, 1, value);
+    }
+
+    /**
+     * @return a transaction spending {@code spent}, each input signed by the key at the same
+     *         index of {@code owners}, into {@code outputs} outputs of {@code value} each paid to {@code to}
+     */
+    private static Transaction spend(List<UTXO> spent, List<KeyPair> owners, KeyPair to,
+            int outputs, long value) throws Exception {
+        Transaction tx = new Transaction();
+        for (UTXO ut : spent)
+            tx.addInput(ut.getTxHash(), ut.getIndex());
+        for (int i = 0; i < outputs; i++)
+            tx.addOutput(value, to.getPublic());
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < tx.numInputs(); i++) {
+            sig.initSign(owners.get(i).getPrivate());
+            sig.update(tx.getRawDataToSign(i));
+            tx.addSignature(sig.sign(), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** @return a key small enough to sign tens of thousands of transactions in a few seconds */
+    private static KeyPair smallKey() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(512);
+        return gen.generateKeyPair();
+    }
+
+    /**
+     * @return the transactions accepted the way handleTxs did before the selector ordered them:
+     *         its choice sorted parents first, in passes over the transactions left, then
+     *         validated one by one in that order
+     */
+    private static Transaction[] validatedInDependencyOrder(UTXOPool pool, Transaction[] txs) {
+        Transaction[] chosen = new MaxFeeSelector(pool, txs).select(0);
+        HashSet<ByteBuffer> unplaced = new HashSet<>();
+        for (Transaction tx : chosen)
+            unplaced.add(ByteBuffer.wrap(tx.getHash()));
+        // children first, so the passes do not lean on the order the selector gives
+        List<Transaction> left = new ArrayList<>(Arrays.asList(chosen));
+        Collections.reverse(left);
+        List<Transaction> sorted = new ArrayList<>();
+        while (!left.isEmpty()) {
+            List<Transaction> placed = new ArrayList<>();
+            List<Transaction> next = new ArrayList<>();
+            for (Transaction tx : left) {
+                boolean ready = true;
+                for (Transaction.Input in : tx.getInputs())
+                    ready &= !unplaced.contains(ByteBuffer.wrap(in.prevTxHash));
+                (ready ? placed : next).add(tx);
+            }
+            assertFalse("transactions spending each other in a cycle", placed.isEmpty());
+            for (Transaction tx : placed)
+                unplaced.remove(ByteBuffer.wrap(tx.getHash()));
+            sorted.addAll(placed);
+            left = next;
+        }
+        return new TxHandler(pool).handleTxs(sorted.toArray(new Transaction[sorted.size()]));
+    }
+
+    @Test
+    public void parallelValidationAcceptsTheSameTransactions() throws Exception {
+        Transaction[] txs = new Transaction[OUTPUTS + 2];
+        for (int i = 0; i < OUTPUTS; i++)
+            txs[i] = pay(root.getHash(), i, scrooge, 9 * Transaction.COIN);
+        Transaction badSignature = pay(root.getHash(), 0, alice, Transaction.COIN);
+        // spends an output of an accepted transaction, so it is validated in a later level
+        Transaction child = pay(txs[1].getHash(), 0, alice, 8 * Transaction.COIN);
+        txs[OUTPUTS] = badSignature;
+        txs[OUTPUTS + 1] = child;
+
+        Transaction[] sequential = new MaxFeeTxHandler(pool).handleTxs(txs);
+        Transaction[] parallel = new MaxFeeTxHandler(pool).handleTxs(txs, ForkJoinPool.commonPool());
+        assertEquals(OUTPUTS + 1, sequential.length);
+        assertEquals(new HashSet<>(Arrays.asList(sequential)), new HashSet<>(Arrays.asList(parallel)));
+        assertFalse(Arrays.asList(parallel).contains(badSignature));
+    }
+
+    @Test
+    public void addressIndexFollowsAcceptedTransactions() throws Exception {
+        Transaction tx = pay(root.getHash(), 0, scrooge, 9 * Transaction.COIN);
+        Transaction child = pay(tx.getHash(), 0, alice, 8 * Transaction.COIN);
+        AddressIndex index = new AddressIndex(pool);
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(pool, 0, index);
+        assertEquals(2, handler.handleTxs(new Transaction[] { tx, child }).length);
+        assertEquals((OUTPUTS - 1) * 10 * Transaction.COIN, index.getBalance(scrooge.getPublic()));
+        assertEquals(8 * Transaction.COIN, index.getBalance(alice.getPublic()));
+        assertEquals(Arrays.asList(new UTXO(child.getHash(), 0)), index.getUTXOs(alice.getPublic()));
+    }
+
+    /** the parents first order used to recurse once per transaction of a chain */
+    @Test
+    public void longChainInReverseOrderIsAcceptedWhole() throws Exception {
+        KeyPair small = smallKey();
+        Transaction[] chain = new Transaction[30000];
+        chain[0] = pay(root.getHash(), 0, scrooge, small, 10 * Transaction.COIN - 1);
+        for (int i = 1; i < chain.length; i++)
+            chain[i] = pay(chain[i - 1].getHash(), 0, small, small, 10 * Transaction.COIN - 1 - i);
+        Transaction[] reversed = new Transaction[chain.length];
+        for (int i = 0; i < chain.length; i++)
+            reversed[i] = chain[chain.length - 1 - i];
+
+        assertArrayEquals(chain, new MaxFeeTxHandler(pool, 0).handleTxs(reversed));
+        assertArrayEquals(chain, new MaxFeeTxHandler(pool, 0).handleTxs(reversed, ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * An epoch of chains that fork, spend outputs twice, pay more than they spend or carry a
+     * signature by the wrong key
+     */
+    @Test
+    public void largeEpochIsAcceptedAsValidatingTheChoiceInDependencyOrderAcceptsIt() throws Exception {
+        KeyPair small = smallKey();
+        KeyPair other = smallKey();
+        Random random = new Random(21);
+        List<UTXO> outputs = new ArrayList<>();
+        List<Long> values = new ArrayList<>();
+        List<KeyPair> owners = new ArrayList<>();
+        List<Integer> unspent = new ArrayList<>();
+        for (int i = 0; i < OUTPUTS; i++) {
+            unspent.add(outputs.size());
+            outputs.add(new UTXO(root.getHash(), i));
+            values.add(10 * Transaction.COIN);
+            owners.add(scrooge);
+        }
+        Transaction[] txs = new Transaction[5000];
+        for (int t = 0; t < txs.length; t++) {
+            List<UTXO> spent = new ArrayList<>();
+            List<KeyPair> signers = new ArrayList<>();
+            long in = 0;
+            // a transaction likely to be rejected, or to push out another, is never spent from
+            boolean leaf = false;
+            for (int k = random.nextInt(10) == 0 ? 2 : 1; k > 0 && !unspent.isEmpty(); k--) {
+                // now and then any output, spent already or not, else one of the newest not
+                // spent yet, so chains grow deep
+                int j;
+                if (random.nextInt(20) == 0) {
+                    j = random.nextInt(outputs.size());
+                    leaf = true;
+                } else {
+                    j = unspent.remove(unspent.size() - 1 - random.nextInt(Math.min(unspent.size(), 40)));
+                }
+                if (spent.contains(outputs.get(j)))
+                    continue;
+                spent.add(outputs.get(j));
+                boolean forged = random.nextInt(50) == 0;
+                signers.add(forged ? other : owners.get(j));
+                leaf |= forged;
+                in += values.get(j);
+            }
+            long fee = random.nextInt(50) == 0 ? -2 : random.nextInt(10);
+            leaf |= fee < 0;
+            int numOutputs = 1 + random.nextInt(2);
+            long value = Math.max(0, in - fee) / numOutputs;
+            txs[t] = spend(spent, signers, small, numOutputs, value);
+            for (int i = 0; i < numOutputs; i++) {
+                if (!leaf)
+                    unspent.add(outputs.size());
+                outputs.add(new UTXO(txs[t].getHash(), i));
+                values.add(value);
+                owners.add(small);
+            }
+        }
+        List<Transaction> shuffled = new ArrayList<>(Arrays.asList(txs));
+        Collections.shuffle(shuffled, random);
+        txs = shuffled.toArray(new Transaction[txs.length]);
+
+        HashSet<Transaction> expected = new HashSet<>(Arrays.asList(validatedInDependencyOrder(pool, txs)));
+        Transaction[] sequential = new MaxFeeTxHandler(pool, 0).handleTxs(txs);
+        Transaction[] parallel = new MaxFeeTxHandler(pool, 0).handleTxs(txs, ForkJoinPool.commonPool());
+        assertTrue(expected.size() > txs.length / 5);
+        assertEquals(expected, new HashSet<>(Arrays.asList(sequential)));
+        assertArrayEquals(sequential, parallel);
+    }
+}
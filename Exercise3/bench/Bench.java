@@ -0,0 +1,128 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Small benchmark harness used by the benchmarks in this directory. Benchmark classes take
+ * {@code key=value} arguments; a comma separated value (e.g. {@code txs=100,1000}) makes the
+ * benchmark run once per value. Common keys:
+ * <ul>
+ * <li>{@code bench} - comma separated benchmark names to run (default: all)
+ * <li>{@code warmup} - warmup iterations (default 3)
+ * <li>{@code iterations} - measured iterations (default 5)
+ * <li>{@code time} - minimum measured milliseconds per iteration (default 500)
+ * </ul>
+ * Every operation is timed on its own with {@code System.nanoTime()} after an untimed setup,
+ * and the bytes it allocated are read from the thread allocation counter, so results are
+ * reported as ns/op and B/op.
+ *
+ * <p>
+ * JMH is not used because it refuses benchmark classes in the default package, which is where
+ * all the exercise classes live.
+ *
+ * <p>
+ * Each exercise keeps its own copy of this class, as it does of {@code Transaction} and
+ * {@code Crypto}: every exercise builds and runs on its own, without depending on another
+ * module. Changes made here should be made to the other copies too.
+ */
+public class Bench {
+
+    /** Creates the state for one operation, not timed */
+    public interface Setup<T> {
+        T create() throws Exception;
+    }
+
+    /** The measured operation; its result is consumed so it cannot be optimized away */
+    public interface Op<T> {
+        Object run(T state) throws Exception;
+    }
+
+    private final HashMap<String, String> params;
+    private final String[] selected;
+    private final int warmup;
+    private final int iterations;
+    private final long timeNanos;
+    private final com.sun.management.ThreadMXBean threads;
+    private int sink;
+
+    public Bench(String[] args) {
+        params = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("expected key=value, got " + arg);
+            params.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        selected = params.containsKey("bench") ? params.get("bench").split(",") : null;
+        warmup = Integer.parseInt(get("warmup", "3"));
+        iterations = Integer.parseInt(get("iterations", "5"));
+        timeNanos = Long.parseLong(get("time", "500")) * 1000000L;
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    public String get(String key, String def) {
+        String value = params.get(key);
+        return value == null ? def : value;
+    }
+
+    /** @return every value of the (possibly comma separated) parameter {@code key} */
+    public int[] ints(String key, String def) {
+        String[] parts = get(key, def).split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    public boolean enabled(String name) {
+        if (selected == null) return true;
+        for (String s : selected) {
+            if (s.equals(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs {@code op} repeatedly, each time on a fresh state from {@code setup}, and prints the
+     * time and allocation per operation. {@code label} describes the workload parameters.
+     */
+    public <T> void measure(String name, String label, Setup<T> setup, Op<T> op) throws Exception {
+        if (!enabled(name)) return;
+        List<Double> nsPerOp = new ArrayList<>();
+        long totalOps = 0;
+        long totalBytes = 0;
+        long threadId = Thread.currentThread().getId();
+        for (int it = 0; it < warmup + iterations; it++) {
+            long elapsed = 0;
+            long bytes = 0;
+            long ops = 0;
+            while (elapsed < timeNanos || ops == 0) {
+                T state = setup.create();
+                long a0 = threads.getThreadAllocatedBytes(threadId);
+                long t0 = System.nanoTime();
+                Object result = op.run(state);
+                long t1 = System.nanoTime();
+                long a1 = threads.getThreadAllocatedBytes(threadId);
+                if (result != null) sink ^= result.hashCode();
+                elapsed += t1 - t0;
+                bytes += a1 - a0;
+                ops++;
+            }
+            if (it >= warmup) {
+                nsPerOp.add((double) elapsed / ops);
+                totalOps += ops;
+                totalBytes += bytes;
+            }
+        }
+        double mean = 0;
+        for (double v : nsPerOp) mean += v;
+        mean /= nsPerOp.size();
+        double var = 0;
+        for (double v : nsPerOp) var += (v - mean) * (v - mean);
+        double err = nsPerOp.size() > 1 ? Math.sqrt(var / (nsPerOp.size() - 1)) : 0;
+        System.out.printf("%-28s %-36s %14.1f +- %10.1f ns/op %14d B/op%n",
+                name, label, mean, err, totalBytes / totalOps);
+        if (sink == 42) System.out.print("");
+    }
+}
@@ -0,0 +1,182 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Benchmarks transaction and block validation hot paths of the block chain. Workload parameters:
+ * <ul>
+ * <li>{@code inputs} - inputs per transaction (default 2)
+ * <li>{@code txs} - transactions per block (default 100)
+ * <li>{@code depth} - blocks on top of the funding block before the measured block (default 10)
+ * <li>{@code forks} - sibling blocks added on top of the tip by {@code addBlock} (default 1)
+ * <li>{@code sigcache} - false to clear the signature cache before every operation (default
+ * true)
+ * </ul>
+ * Benchmarks: {@code getRawTx}, {@code getRawDataToSign}, {@code blockFinalize},
+ * {@code isValidTx}, {@code handleTxs}, {@code handleTxsParallel}, {@code addBlock},
+ * {@code createBlock}, {@code getBlockTemplate}, {@code signFinalizeEach} (signing a transaction
+ * of {@code inputs} inputs, hashing it after every signature), {@code buildSigned} and
+ * {@code buildSignedParallel} (the same with {@link ImmutableTransaction.Builder}).
+ */
+public class BlockChainBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args);
+        KeyPair key = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        for (int inputs : bench.ints("inputs", "2")) {
+            for (int txs : bench.ints("txs", "100")) {
+                for (int depth : bench.ints("depth", "10")) {
+                    for (int forks : bench.ints("forks", "1")) {
+                        run(bench, key, inputs, txs, depth, forks);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void run(Bench bench, KeyPair key, int inputs, int txs, int depth, int forks)
+            throws Exception {
+        String label = "inputs=" + inputs + " txs=" + txs + " depth=" + depth + " forks=" + forks;
+
+        // genesis -> funding block (splits the genesis coinbase) -> depth empty blocks
+        final List<Block> chain = new ArrayList<>();
+        Block genesis = new Block(null, key.getPublic());
+        genesis.finalize();
+        Transaction funding = new Transaction();
+        funding.addInput(genesis.getCoinbase().getHash(), 0);
+        long value = Block.COINBASE / (inputs * txs);
+        for (int i = 0; i < inputs * txs; i++)
+            funding.addOutput(value, key.getPublic());
+        sign(funding, key.getPrivate());
+        Block block = new Block(genesis.getHash(), key.getPublic());
+        block.addTransaction(funding);
+        block.finalize();
+        chain.add(block);
+        for (int d = 0; d < depth; d++) {
+            block = new Block(block.getHash(), key.getPublic());
+            block.finalize();
+            chain.add(block);
+        }
+        final Block tip = block;
+
+        final List<Transaction> epoch = new ArrayList<>();
+        for (int t = 0; t < txs; t++) {
+            Transaction tx = new Transaction();
+            for (int i = 0; i < inputs; i++)
+                tx.addInput(funding.getHash(), t * inputs + i);
+            tx.addOutput(value * inputs / 2, key.getPublic());
+            sign(tx, key.getPrivate());
+            epoch.add(tx);
+        }
+
+        // sibling blocks over the tip; rotating the transactions gives each a distinct hash
+        final Block[] siblings = new Block[forks];
+        for (int f = 0; f < forks; f++) {
+            List<Transaction> rotated = new ArrayList<>(epoch);
+            Collections.rotate(rotated, f);
+            siblings[f] = new Block(tip.getHash(), key.getPublic());
+            for (Transaction tx : rotated)
+                siblings[f].addTransaction(tx);
+            siblings[f].finalize();
+        }
+
+        Bench.Setup<BlockChain> freshChain = () -> {
+            BlockChain bc = new BlockChain(genesis);
+            for (Block b : chain)
+                if (!bc.addBlock(b)) throw new IllegalStateException("setup block rejected");
+            return bc;
+        };
+
+        final int[] next = new int[1];
+        Bench.Setup<Transaction> anyTx = () -> epoch.get(next[0]++ % epoch.size());
+        bench.measure("getRawTx", label, anyTx, tx -> tx.getRawTx());
+        bench.measure("getRawDataToSign", label, anyTx, tx -> tx.getRawDataToSign(0));
+        bench.measure("blockFinalize", label, () -> siblings[0], b -> {
+            b.finalize();
+            return b.getHash();
+        });
+
+        UTXOPool tipPool = freshChain.create().getMaxHeightUTXOPool();
+        TxHandler validator = new TxHandler(tipPool);
+        bench.measure("isValidTx", label, cold(bench, anyTx), tx -> validator.isValidTx(tx));
+        final Transaction[] txArray = epoch.toArray(new Transaction[0]);
+        bench.measure("handleTxs", label, cold(bench, () -> new TxHandler(tipPool)),
+                handler -> handler.handleTxs(txArray.clone()));
+        bench.measure("handleTxsParallel", label, cold(bench, () -> new TxHandler(tipPool)),
+                handler -> handler.handleTxs(txArray.clone(), ForkJoinPool.commonPool()));
+
+        bench.measure("addBlock", label, cold(bench, freshChain), bc -> {
+            boolean added = true;
+            for (Block b : siblings)
+                added &= bc.addBlock(b);
+            if (!added) throw new IllegalStateException("block rejected");
+            return bc;
+        });
+        bench.measure("createBlock", label, cold(bench, () -> {
+            BlockHandler handler = new BlockHandler(freshChain.create());
+            for (Transaction tx : epoch)
+                handler.processTx(tx);
+            return handler;
+        }), handler -> handler.createBlock(key.getPublic()));
+        // a template kept up to date since the last block, as a miner asking for new work sees it
+        final BlockHandler templateHandler = new BlockHandler(freshChain.create());
+        templateHandler.getBlockTemplate(key.getPublic());
+        for (Transaction tx : epoch)
+            templateHandler.processTx(tx);
+        bench.measure("getBlockTemplate", label, () -> templateHandler,
+                handler -> handler.getBlockTemplate(key.getPublic()));
+
+        final PrivateKey[] keys = new PrivateKey[inputs];
+        Arrays.fill(keys, key.getPrivate());
+        bench.measure("signFinalizeEach", label, () -> {
+            Transaction tx = new Transaction();
+            for (int i = 0; i < inputs; i++)
+                tx.addInput(funding.getHash(), i);
+            tx.addOutput(value * inputs / 2, key.getPublic());
+            return tx;
+        }, tx -> {
+            for (int i = 0; i < inputs; i++) {
+                tx.addSignature(Crypto.sign(key.getPrivate(), tx.getRawDataToSign(i)), i);
+                tx.finalize();
+            }
+            return tx;
+        });
+        Bench.Setup<ImmutableTransaction.Builder> unsigned = () -> {
+            ImmutableTransaction.Builder builder = new ImmutableTransaction.Builder();
+            for (int i = 0; i < inputs; i++)
+                builder.addInput(funding.getHash(), i);
+            return builder.addOutput(value * inputs / 2, key.getPublic());
+        };
+        bench.measure("buildSigned", label, unsigned,
+                builder -> builder.signAll(keys, null).build());
+        bench.measure("buildSignedParallel", label, unsigned,
+                builder -> builder.signAll(keys, ForkJoinPool.commonPool()).build());
+    }
+
+    /** with {@code sigcache=false} every operation starts from an empty signature cache */
+    private static <T> Bench.Setup<T> cold(Bench bench, Bench.Setup<T> setup) {
+        if (Boolean.parseBoolean(bench.get("sigcache", "true")))
+            return setup;
+        return () -> {
+            T state = setup.create();
+            SignatureCache.getInstance().clear();
+            return state;
+        };
+    }
+
+    static void sign(Transaction tx, PrivateKey sk) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < tx.numInputs(); i++) {
+            sig.initSign(sk);
+            sig.update(tx.getRawDataToSign(i));
+            tx.addSignature(sig.sign(), i);
+        }
+        tx.finalize();
+    }
+}
@@ -0,0 +1,119 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks reading {@link ImmutableTransaction}s on the paths that validate, pool and mine
+ * them, against plain {@link Transaction}s with the same contents. Workload parameters:
+ * <ul>
+ * <li>{@code inputs} - inputs per transaction (default 2)
+ * <li>{@code outputs} - outputs per transaction (default 2)
+ * <li>{@code txs} - transactions per epoch (default 100)
+ * </ul>
+ * Every benchmark runs once on plain transactions ({@code kind=plain}) and once on immutable
+ * ones ({@code kind=immutable}), each operation going through the whole epoch. Benchmarks:
+ * {@code readInputs} (every input through {@code getInputs} and {@code getInput}),
+ * {@code readOutputs} (the same for outputs), {@code getHash}, {@code getRawLength},
+ * {@code handleTxs}, {@code poolAdd} (adding the epoch to an empty {@link TransactionPool}) and
+ * {@code blockFinalize} (a block of the epoch).
+ */
+public class ImmutableTransactionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args);
+        KeyPair key = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        for (int inputs : bench.ints("inputs", "2")) {
+            for (int outputs : bench.ints("outputs", "2")) {
+                for (int txs : bench.ints("txs", "100")) {
+                    run(bench, key, inputs, outputs, txs);
+                }
+            }
+        }
+    }
+
+    private static void run(Bench bench, KeyPair key, int inputs, int outputs, int txs)
+            throws Exception {
+        Block genesis = new Block(null, key.getPublic());
+        genesis.finalize();
+        Transaction funding = new Transaction();
+        funding.addInput(genesis.getCoinbase().getHash(), 0);
+        long value = Block.COINBASE / (inputs * txs);
+        for (int i = 0; i < inputs * txs; i++)
+            funding.addOutput(value, key.getPublic());
+        BlockChainBenchmark.sign(funding, key.getPrivate());
+        final UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < funding.numOutputs(); i++)
+            pool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+
+        final List<Transaction> plain = new ArrayList<>();
+        final List<Transaction> immutable = new ArrayList<>();
+        for (int t = 0; t < txs; t++) {
+            ImmutableTransaction.Builder builder = new ImmutableTransaction.Builder();
+            for (int i = 0; i < inputs; i++)
+                builder.addInput(funding.getHash(), t * inputs + i);
+            for (int o = 0; o < outputs; o++)
+                builder.addOutput(value * inputs / outputs / 2, key.getPublic());
+            for (int i = 0; i < inputs; i++)
+                builder.sign(key.getPrivate(), i);
+            ImmutableTransaction tx = builder.build();
+            immutable.add(tx);
+            plain.add(new Transaction(tx));
+        }
+
+        String workload = "inputs=" + inputs + " outputs=" + outputs + " txs=" + txs;
+        measure(bench, workload + " kind=plain", plain, pool, key);
+        measure(bench, workload + " kind=immutable", immutable, pool, key);
+    }
+
+    private static void measure(Bench bench, String label, final List<Transaction> epoch,
+            final UTXOPool pool, final KeyPair key) throws Exception {
+        bench.measure("readInputs", label, () -> epoch, txs -> {
+            long sum = 0;
+            for (Transaction tx : txs) {
+                for (Transaction.Input in : tx.getInputs())
+                    sum += in.outputIndex;
+                for (int i = 0; i < tx.numInputs(); i++)
+                    sum += tx.getInput(i).prevTxHash[0];
+            }
+            return sum;
+        });
+        bench.measure("readOutputs", label, () -> epoch, txs -> {
+            long sum = 0;
+            for (Transaction tx : txs) {
+                for (Transaction.Output op : tx.getOutputs())
+                    sum += op.value;
+                for (int i = 0; i < tx.numOutputs(); i++)
+                    sum += tx.getOutput(i).value;
+            }
+            return sum;
+        });
+        bench.measure("getHash", label, () -> epoch, txs -> {
+            int sum = 0;
+            for (Transaction tx : txs)
+                sum += tx.getHash()[0];
+            return sum;
+        });
+        bench.measure("getRawLength", label, () -> epoch, txs -> {
+            long sum = 0;
+            for (Transaction tx : txs)
+                sum += tx.getRawLength();
+            return sum;
+        });
+        final Transaction[] txArray = epoch.toArray(new Transaction[0]);
+        bench.measure("handleTxs", label, () -> new TxHandler(pool),
+                handler -> handler.handleTxs(txArray.clone()));
+        bench.measure("poolAdd", label, TransactionPool::new, txPool -> {
+            for (Transaction tx : epoch)
+                txPool.addTransaction(tx);
+            return txPool;
+        });
+        final Block block = new Block(null, key.getPublic());
+        for (Transaction tx : epoch)
+            block.addTransaction(tx);
+        bench.measure("blockFinalize", label, () -> block, b -> {
+            b.finalize();
+            return b.getHash();
+        });
+    }
+}
@@ -0,0 +1,71 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The UTXOs of a pool grouped by the address they pay to, with the balance of each address, so a
+ * wallet can find what an address may spend without going through the whole pool. It is kept up
+ * to date by a {@link TxHandler} created with it, or by {@link BlockChain} for its max height pool
+ * (see {@link BlockChain#getAddressIndex()}), which moves the index with the pool as blocks are
+ * connected and disconnected.
+ */
+public class AddressIndex {
+
+    private HashMap<PublicKey, Holdings> holdings;
+
+    /** Creates an empty index, for an empty pool */
+    public AddressIndex() {
+        holdings = new HashMap<>();
+    }
+
+    /** Creates an index of every UTXO in {@code utxoPool} */
+    public AddressIndex(UTXOPool utxoPool) {
+        this();
+        for (UTXO ut : utxoPool.getAllUTXO())
+            add(ut, utxoPool.getTxOutput(ut));
+    }
+
+    /** Records that {@code utxo}, with output {@code txOut}, was added to the pool */
+    public void add(UTXO utxo, Transaction.Output txOut) {
+        Holdings h = holdings.get(txOut.address);
+        if (h == null) {
+            h = new Holdings();
+            holdings.put(txOut.address, h);
+        }
+        if (h.utxos.add(utxo))
+            h.balance += txOut.value;
+    }
+
+    /** Records that {@code utxo}, with output {@code txOut}, was removed from the pool */
+    public void remove(UTXO utxo, Transaction.Output txOut) {
+        Holdings h = holdings.get(txOut.address);
+        if (h == null || !h.utxos.remove(utxo))
+            return;
+        h.balance -= txOut.value;
+        if (h.utxos.isEmpty())
+            holdings.remove(txOut.address);
+    }
+
+    /** @return a new list of the UTXOs paying to {@code address} */
+    public ArrayList<UTXO> getUTXOs(PublicKey address) {
+        Holdings h = holdings.get(address);
+        return h == null ? new ArrayList<UTXO>() : new ArrayList<UTXO>(h.utxos);
+    }
+
+    /** @return the sum of the values of the UTXOs paying to {@code address} */
+    public long getBalance(PublicKey address) {
+        Holdings h = holdings.get(address);
+        return h == null ? 0 : h.balance;
+    }
+
+    /** @return the number of addresses with at least one UTXO */
+    public int numAddresses() {
+        return holdings.size();
+    }
+
+    private static class Holdings {
+        private HashSet<UTXO> utxos = new HashSet<>();
+        private long balance;
+    }
+}
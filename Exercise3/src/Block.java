@@ -1,23 +1,64 @@
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Block {
 
-    public static final double COINBASE = 25;
+    public static final long COINBASE = 25 * Transaction.COIN;
 
     private byte[] hash;
     private byte[] prevBlockHash;
     private Transaction coinbase;
-    private ArrayList<Transaction> txs;
+    private TransactionList txs;
+    /** first byte hashed for a leaf and for an inner node, so neither can pass for the other */
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    /**
+     * Levels of the Merkle tree over the transaction hashes, leaves first and the root last. A
+     * level with an odd number of nodes moves its last node up unchanged rather than pairing it
+     * with itself, so a list of transactions and the same list with its last ones repeated do not
+     * have the same root.
+     */
+    private ArrayList<ArrayList<byte[]>> merkleTree;
+    /** copies of the transaction hashes the leaves were computed from, to detect changes */
+    private ArrayList<byte[]> merkleTxHashes;
+    /**
+     * changes to the transaction list and to transactions in any block when the leaves were last
+     * known to match the transactions; while neither has moved the tree is current
+     */
+    private int merkleListChanges;
+    private long merkleBlockTxChanges;
+
+    /**
+     * the transactions of a block, counting every change made to the list other than through a
+     * sub list
+     */
+    private static class TransactionList extends ArrayList<Transaction> {
+        private static final long serialVersionUID = 1L;
+
+        /** {@code set} is the one change {@link ArrayList} leaves out of its count */
+        @Override
+        public Transaction set(int index, Transaction tx) {
+            modCount++;
+            return super.set(index, tx);
+        }
+
+        int changes() {
+            return modCount;
+        }
+    }
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
-        txs = new ArrayList<Transaction>();
+        txs = new TransactionList();
+        merkleTree = new ArrayList<ArrayList<byte[]>>();
+        merkleTxHashes = new ArrayList<byte[]>();
     }
 
     public Transaction getCoinbase() {
@@ -40,34 +81,152 @@ public class Block {
         return txs.get(index);
     }
 
+    /** {@code tx} should already be finalized, its hash is what the block commits to */
     public void addTransaction(Transaction tx) {
+        long blockTxChanges = Transaction.blockTxChanges();
+        boolean current = isMerkleTreeCurrent();
+        tx.addedToBlock();
         txs.add(tx);
+        addMerkleLeaf(tx);
+        if (current)
+            markMerkleTreeCurrent(blockTxChanges);
     }
 
-    public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
-        if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
+    /**
+     * @return a block over the same block as this one, with the same transactions, whose coinbase
+     *         goes to {@code address}. It shares the Merkle tree already computed over them, so
+     *         only its hash is left to compute.
+     */
+    public Block copy(PublicKey address) {
+        Block block = new Block(prevBlockHash, address);
+        block.txs.addAll(txs);
+        getMerkleRoot();
+        for (ArrayList<byte[]> level : merkleTree)
+            block.merkleTree.add(new ArrayList<byte[]>(level));
+        block.merkleTxHashes.addAll(merkleTxHashes);
+        block.merkleListChanges = block.txs.changes();
+        block.merkleBlockTxChanges = merkleBlockTxChanges;
+        return block;
+    }
+
+    /** @return the root of the Merkle tree over the transaction hashes, or null if there are none */
+    public byte[] getMerkleRoot() {
+        long blockTxChanges = Transaction.blockTxChanges();
+        if (!isMerkleTreeCurrent()) {
+            // the transaction list or a transaction hash was changed after the leaf was added
+            merkleTree.clear();
+            merkleTxHashes.clear();
+            for (Transaction tx : txs) {
+                tx.addedToBlock();
+                addMerkleLeaf(tx);
+            }
+            markMerkleTreeCurrent(blockTxChanges);
+        }
+        if (merkleTree.size() == 0)
+            return null;
+        return merkleTree.get(merkleTree.size() - 1).get(0);
+    }
+
+    /**
+     * @return true if the leaves are those of the transactions now in the block, in order. The
+     *         leaves are only compared with the transactions again when the list or a transaction
+     *         in some block has changed since they were last found to match.
+     */
+    private boolean isMerkleTreeCurrent() {
+        long blockTxChanges = Transaction.blockTxChanges();
+        if (merkleListChanges == txs.changes() && merkleBlockTxChanges == blockTxChanges)
+            return true;
+        if (merkleTxHashes.size() != txs.size())
+            return false;
         for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
+            // one put in through the list is only counted from now on
+            txs.get(i).addedToBlock();
+            if (!Arrays.equals(merkleTxHashes.get(i), txHash(txs.get(i))))
+                return false;
+        }
+        markMerkleTreeCurrent(blockTxChanges);
+        return true;
+    }
+
+    /**
+     * Records the leaves as matching the transactions, as checked or built once the count of
+     * changes to transactions in blocks was {@code blockTxChanges}
+     */
+    private void markMerkleTreeCurrent(long blockTxChanges) {
+        merkleListChanges = txs.changes();
+        merkleBlockTxChanges = blockTxChanges;
+    }
+
+    private static byte[] txHash(Transaction tx) {
+        byte[] hash = tx.hashBytes();
+        return hash != null ? hash : Crypto.sha256(tx.rawTxBytes());
+    }
+
+    /**
+     * Appends the hash of {@code tx} as the next leaf and recomputes its ancestors, which are the
+     * only nodes that change.
+     */
+    private void addMerkleLeaf(Transaction tx) {
+        byte[] txHash = txHash(tx).clone();
+        merkleTxHashes.add(txHash);
+        MessageDigest md = Crypto.sha256();
+        md.update(LEAF_PREFIX);
+        md.update(txHash);
+        byte[] leaf = md.digest();
+        if (merkleTree.size() == 0)
+            merkleTree.add(new ArrayList<byte[]>());
+        merkleTree.get(0).add(leaf);
+        int index = merkleTree.get(0).size() - 1;
+        for (int level = 0; merkleTree.get(level).size() > 1; level++) {
+            ArrayList<byte[]> children = merkleTree.get(level);
+            if (merkleTree.size() == level + 1)
+                merkleTree.add(new ArrayList<byte[]>());
+            ArrayList<byte[]> parents = merkleTree.get(level + 1);
+            index >>= 1;
+            byte[] parent = children.get(2 * index);
+            if (2 * index + 1 < children.size()) {
+                md.update(NODE_PREFIX);
+                md.update(parent);
+                md.update(children.get(2 * index + 1));
+                parent = md.digest();
             }
+            if (index < parents.size())
+                parents.set(index, parent);
+            else
+                parents.add(parent);
         }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
-        return raw;
+    }
+
+    /**
+     * @return the block header: the previous block hash, the Merkle root of the transactions and
+     *         the coinbase hash. This is what the block hash is computed over.
+     */
+    public byte[] getRawHeader() {
+        byte[] merkleRoot = getMerkleRoot();
+        byte[] coinbaseHash = coinbase.hashBytes();
+        ByteBuffer header = ByteBuffer.allocate((prevBlockHash == null ? 0 : prevBlockHash.length)
+                + (merkleRoot == null ? 0 : merkleRoot.length) + coinbaseHash.length);
+        if (prevBlockHash != null)
+            header.put(prevBlockHash);
+        if (merkleRoot != null)
+            header.put(merkleRoot);
+        header.put(coinbaseHash);
+        return header.array();
+    }
+
+    public byte[] getRawBlock() {
+        int length = prevBlockHash == null ? 0 : prevBlockHash.length;
+        for (Transaction tx : txs)
+            length += tx.getRawLength();
+        ByteBuffer rawBlock = ByteBuffer.allocate(length);
+        if (prevBlockHash != null)
+            rawBlock.put(prevBlockHash);
+        for (Transaction tx : txs)
+            rawBlock.put(tx.rawTxBytes());
+        return rawBlock.array();
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        hash = Crypto.sha256(getRawHeader());
     }
 }
@@ -2,34 +2,150 @@
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
+    /** rough size of a node without its transactions, and of one entry of an undo record */
+    private static final long NODE_BYTES = 160;
+    private static final long UNDO_ENTRY_BYTES = 112;
     private HashMap<ByteArrayWrapper, Node> blockchain;
+    /** the same nodes as {@code blockchain}, by height */
+    private TreeMap<Integer, ArrayList<Node>> heights;
     private TransactionPool txPool;
-    private Node maxHeightNode;
+    private volatile Node maxHeightNode;
+    /**
+     * UTXO set at the max height block, the only full pool kept. It is moved from block to block in
+     * place, and the pool at any other block is rebuilt from a copy of it with the undo records of
+     * the blocks in between.
+     */
+    private UTXOPool maxHeightUTXOPool;
+    /** index of {@code maxHeightUTXOPool} by address, moved with it from block to block */
+    private AddressIndex addressIndex;
+    /** the store of the max height pool, published after every block; null if coinCache is used */
+    private ConcurrentUTXOStore tipStore;
+    /** the cache the max height pool is kept in when it is backed by a coin database, or null */
+    private CachedUTXOStore coinCache;
+    private int maxRetainedBlocks = Integer.MAX_VALUE;
+    private long maxRetainedBytes = Long.MAX_VALUE;
+    private long retainedBytes;
+    private long prunedBlocks;
 
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
+        // persistent, so copies of the tip pool made for validation share its structure
+        tipStore = new ConcurrentUTXOStore();
+        init(genesisBlock, new UTXOPool(tipStore));
+    }
+
+    /**
+     * create a block chain with just a genesis block whose max height UTXO set is kept in the empty
+     * store {@code coinDatabase}, behind a write-back cache of about {@code cacheSize} UTXOs.
+     * The changes of each block that becomes the max height block are written to the database,
+     * and the database flushed if it is {@link java.io.Flushable}, as soon as the block is
+     * connected, so the database always holds the UTXO set after a whole block.
+     */
+    public BlockChain(Block genesisBlock, UTXOStore coinDatabase, int cacheSize) {
+        coinCache = new CachedUTXOStore(coinDatabase, cacheSize);
+        init(genesisBlock, new UTXOPool(coinCache));
+    }
+
+    /**
+     * create a block chain starting at the block of {@code snapshot}, with the UTXO set kept in the
+     * store the snapshot was loaded into. Blocks below it are not known, so no block can be added
+     * on a branch forking off below it.
+     */
+    public BlockChain(UTXOSnapshot snapshot) {
+        tipStore = new ConcurrentUTXOStore(snapshot.getStore());
+        start(new Node(snapshot.getBlock(), snapshot.getHeight()), new UTXOPool(tipStore));
+    }
+
+    /**
+     * create a block chain starting at the block of {@code snapshot}, using the store the snapshot
+     * was loaded into as the coin database behind a write-back cache of about {@code cacheSize}
+     * UTXOs
+     * 
+     * @see #BlockChain(Block, UTXOStore, int)
+     */
+    public BlockChain(UTXOSnapshot snapshot, int cacheSize) {
+        coinCache = new CachedUTXOStore(snapshot.getStore(), cacheSize);
+        start(new Node(snapshot.getBlock(), snapshot.getHeight()), new UTXOPool(coinCache));
+    }
+
+    private void init(Block genesisBlock, UTXOPool utxoPool) {
+        TxHandler txHandler = new TxHandler(utxoPool);
+        txHandler.handleTxs(genesisBlock.getTransactions().toArray(new Transaction[0]));
+        Node node = new Node(genesisBlock, null, utxoPool, txHandler);
+        node.undo.connect(utxoPool, null);
+        start(node, utxoPool);
+    }
+
+    /** Starts the chain at {@code node}, with {@code utxoPool} the UTXO set after it */
+    private void start(Node node, UTXOPool utxoPool) {
         txPool = new TransactionPool();
-        Node node = new Node(genesisBlock, null);
         blockchain = new HashMap<>();
-        blockchain.put(new ByteArrayWrapper(genesisBlock.getHash()), node);
+        heights = new TreeMap<>();
+        addNode(node);
+        maxHeightUTXOPool = utxoPool;
+        addressIndex = new AddressIndex(utxoPool);
+        if (tipStore != null)
+            tipStore.publish();
+        else
+            coinCache.flush();
         maxHeightNode = node;
     }
 
-    /** Get the maximum height block */
+    /**
+     * Get the maximum height block. The pool published for it is already out, so
+     * {@link #getMaxHeightUTXOPool()} called afterwards returns the pool after this block or
+     * after a later one.
+     */
     public Block getMaxHeightBlock() {
         return maxHeightNode.block;
     }
 
-    /** Get the UTXOPool for mining a new block on top of max height block */
+    /**
+     * Get the UTXOPool for mining a new block on top of max height block. It is a copy the caller
+     * may change without affecting the chain, and it never changes on its own. Unless the chain
+     * keeps its UTXO set in a coin database, the copy is taken from the snapshot published after
+     * the last block, so any thread may get and use one while blocks are being added. With a coin
+     * database it is a copy of the cache in front of it, which keeps the old outputs of the UTXOs
+     * later blocks change.
+     */
     public UTXOPool getMaxHeightUTXOPool() {
-        return maxHeightNode.txHandler.getUTXOPool();
+        if (tipStore != null)
+            return new UTXOPool(tipStore.getSnapshot().copy());
+        return new UTXOPool(maxHeightUTXOPool);
+    }
+
+    /**
+     * @return the index by address of the UTXO pool at the max height block, kept up to date as
+     *         blocks are connected and disconnected, also when the chain moves to another branch.
+     *         It is the chain's own index, not a copy: it must not be changed, nor read while a
+     *         block is being added.
+     */
+    public AddressIndex getAddressIndex() {
+        return addressIndex;
+    }
+
+    /**
+     * @return true if {@code utxo} is unspent at the max height block. It reads the chain's own
+     *         UTXO pool, so it must not be called while a block is being added.
+     */
+    public boolean isUnspent(UTXO utxo) {
+        return maxHeightUTXOPool.contains(utxo);
     }
 
     /** Get the transaction pool to mine a new block */
@@ -47,48 +163,431 @@ public class BlockChain {
      * CUT_OFF_AGE + 1}. As soon as {@code height > CUT_OFF_AGE + 1}, you cannot create a new block
      * at height 2.
      * 
-     * @return true if block is successfully added
+     * @return true if block is successfully added, false if it is invalid or already known
      */
     public boolean addBlock(Block block) {
+        if (block.getHash() == null || blockchain.containsKey(new ByteArrayWrapper(block.getHash())))
+            return false;
         if (block.getPrevBlockHash() == null || block.getPrevBlockHash().length == 0) return false;
         Node prev = blockchain.get(new ByteArrayWrapper(block.getPrevBlockHash()));
         if (prev == null || prev.height + 1 <= maxHeightNode.height - CUT_OFF_AGE) return false;
-        Node node = new Node(block, prev);
-        if (!node.valid) return false;
-        if (node.height > maxHeightNode.height) maxHeightNode = node;
-        for (Transaction tx : block.getTransactions()) {
-            txPool.removeTransaction(tx.getHash());
+        UTXOPool utxoPool = utxoPoolAt(prev);
+        TxHandler txHandler = new TxHandler(utxoPool);
+        Transaction[] txs = block.getTransactions().toArray(new Transaction[0]);
+        if (txHandler.handleTxs(txs, ForkJoinPool.commonPool()).length != txs.length) return false;
+        Node node = new Node(block, prev, utxoPool, txHandler);
+        if (node.height > maxHeightNode.height) {
+            Node oldTip = maxHeightNode;
+            move(maxHeightUTXOPool, addressIndex, maxHeightNode, node);
+            // the pool goes out before the block, so a reader that sees the new block and then
+            // asks for the pool never gets the pool of an older one
+            if (tipStore != null)
+                tipStore.publish();
+            else
+                coinCache.flush();
+            maxHeightNode = node;
+            if (prev == oldTip)
+                removeConfirmed(block);
+            else
+                resetPool(oldTip);
         }
-        blockchain.put(new ByteArrayWrapper(block.getHash()), node);
+        addNode(node);
+        prune();
 
         return true;
     }
 
-    /** Add a transaction to the transaction pool */
-    public void addTransaction(Transaction tx) {
-        txPool.addTransaction(tx);
+    /**
+     * Saves the max height block, its height and the UTXO set after it to {@code file}, from which
+     * {@link UTXOSnapshot#read(File)} loads them to start a new block chain
+     */
+    public void writeSnapshot(File file) throws IOException {
+        UTXOSnapshot.write(file, maxHeightNode.block, maxHeightNode.height, maxHeightUTXOPool);
+    }
+
+    /**
+     * Add a transaction to the transaction pool if it is valid on top of the max height block,
+     * possibly spending the outputs of other transactions in the pool, spends no output that a
+     * transaction in the pool already spends and pays at least the minimum fee rate of the pool.
+     * The pool thus only holds transactions that can all go in the next block together.
+     * 
+     * @return true if the transaction has been added
+     */
+    public boolean addTransaction(Transaction tx) {
+        if (tx.hashBytes() == null || txPool.getTransaction(tx.hashBytes()) != null)
+            return false;
+        long fee = validate(tx);
+        if (fee < 0)
+            return false;
+        return txPool.addTransaction(tx, fee);
+    }
+
+    /**
+     * Limits the blocks kept in memory. Blocks that can no longer be built on, those more than
+     * {@code CUT_OFF_AGE} below the max height and those on branches forking off below that, are
+     * always dropped. On top of that, side branches are dropped, lowest first, while more than
+     * {@code maxBlocks} blocks or an estimated {@code maxBytes} bytes are kept. The chain up to the
+     * max height block is never dropped.
+     */
+    public void setRetentionBudget(int maxBlocks, long maxBytes) {
+        maxRetainedBlocks = maxBlocks;
+        maxRetainedBytes = maxBytes;
+        prune();
+    }
+
+    /**
+     * Limits the memory taken by the transaction pool to an estimated {@code maxBytes} bytes and
+     * makes its transactions expire {@code expiryMillis} milliseconds after they were added
+     * 
+     * @see TransactionPool#setLimits(long, long)
+     */
+    public void setTransactionPoolLimits(long maxBytes, long expiryMillis) {
+        txPool.setLimits(maxBytes, expiryMillis);
+    }
+
+    /**
+     * Writes the pending changes to the max height UTXO set to the coin database, if the chain has
+     * one. There are none between blocks, as each block is flushed once it is connected.
+     */
+    public void flush() {
+        if (coinCache != null)
+            coinCache.flush();
+    }
+
+    /** @return the number of blocks dropped from memory so far */
+    public long getPrunedBlockCount() {
+        return prunedBlocks;
+    }
+
+    /** @return the number of blocks currently kept in memory */
+    public int getRetainedBlockCount() {
+        return blockchain.size();
+    }
+
+    /** @return an estimate of the memory used by the blocks currently kept, in bytes */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    private void addNode(Node node) {
+        blockchain.put(new ByteArrayWrapper(node.block.getHash()), node);
+        ArrayList<Node> level = heights.get(node.height);
+        if (level == null) {
+            level = new ArrayList<>();
+            heights.put(node.height, level);
+        }
+        level.add(node);
+        retainedBytes += node.bytes;
+    }
+
+    /** Drops {@code node} from the block map; the caller removes it from {@code heights} */
+    private void dropNode(Node node) {
+        node.pruned = true;
+        blockchain.remove(new ByteArrayWrapper(node.block.getHash()));
+        retainedBytes -= node.bytes;
+        prunedBlocks++;
+    }
+
+    private void prune() {
+        // the oldest block a new block may still be built on; nothing else at or below it is needed
+        Node root = maxHeightNode;
+        while (root.prev != null && root.height > maxHeightNode.height - CUT_OFF_AGE)
+            root = root.prev;
+        Map<Integer, ArrayList<Node>> below = heights.headMap(root.height);
+        for (ArrayList<Node> level : below.values()) {
+            for (Node node : level)
+                dropNode(node);
+        }
+        below.clear();
+        ArrayList<Node> rootLevel = heights.get(root.height);
+        if (rootLevel.size() > 1) {
+            for (Node node : rootLevel) {
+                if (node != root)
+                    dropNode(node);
+            }
+            rootLevel.clear();
+            rootLevel.add(root);
+        }
+        root.prev = null;
+        dropOrphans(root.height);
+
+        if (blockchain.size() <= maxRetainedBlocks && retainedBytes <= maxRetainedBytes)
+            return;
+        HashSet<Node> mainChain = new HashSet<>();
+        for (Node node = maxHeightNode; node != null; node = node.prev)
+            mainChain.add(node);
+        while (blockchain.size() > maxRetainedBlocks || retainedBytes > maxRetainedBytes) {
+            Node victim = null;
+            for (ArrayList<Node> level : heights.values()) {
+                for (Node node : level) {
+                    if (!mainChain.contains(node)) {
+                        victim = node;
+                        break;
+                    }
+                }
+                if (victim != null)
+                    break;
+            }
+            if (victim == null)
+                return;
+            dropNode(victim);
+            heights.get(victim.height).remove(victim);
+            dropOrphans(victim.height);
+        }
+    }
+
+    /** Drops every block above {@code height} whose parent has been dropped */
+    private void dropOrphans(int height) {
+        Iterator<ArrayList<Node>> levels = heights.tailMap(height, false).values().iterator();
+        while (levels.hasNext()) {
+            ArrayList<Node> level = levels.next();
+            Iterator<Node> nodes = level.iterator();
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                if (node.prev != null && node.prev.pruned) {
+                    dropNode(node);
+                    nodes.remove();
+                }
+            }
+            if (level.isEmpty())
+                levels.remove();
+        }
+    }
+
+    /**
+     * @return the input values of {@code tx} minus its output values if it is valid on top of the
+     *         max height block and the transactions in the pool and spends nothing they spend; -1
+     *         otherwise
+     */
+    private long validate(Transaction tx) {
+        try {
+            long fee = 0;
+            HashSet<UTXO> spent = new HashSet<>();
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input in = tx.getInput(i);
+                if (in.prevTxHash == null || in.signature == null)
+                    return -1;
+                UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+                if (!spent.add(ut) || txPool.getSpender(ut) != null)
+                    return -1;
+                Transaction.Output output = maxHeightUTXOPool.getTxOutput(ut);
+                if (output == null) {
+                    Transaction parent = txPool.getTransaction(in.prevTxHash);
+                    if (parent == null || in.outputIndex < 0 || in.outputIndex >= parent.numOutputs())
+                        return -1;
+                    output = parent.getOutput(in.outputIndex);
+                }
+                if (!SignatureCache.getInstance().verifySignature(output.address, tx.getRawDataToSign(i), in.signature))
+                    return -1;
+                fee = Math.addExact(fee, output.value);
+            }
+            for (Transaction.Output out : tx.getOutputs()) {
+                if (out.value < 0)
+                    return -1;
+                fee = Math.subtractExact(fee, out.value);
+            }
+            return fee < 0 ? -1 : fee;
+        } catch (ArithmeticException e) {
+            // the values add up to more than a long holds
+            return -1;
+        }
+    }
+
+    /**
+     * Takes the transactions of {@code block}, just connected on top of the previous max height
+     * block, out of the pool, along with the pool transactions spending the same outputs as one of
+     * them and their descendants
+     */
+    private void removeConfirmed(Block block) {
+        for (Transaction tx : block.getTransactions()) {
+            if (txPool.getTransaction(tx.hashBytes()) != null) {
+                txPool.removeTransaction(tx.hashBytes());
+                continue;
+            }
+            for (Transaction.Input in : tx.getInputs()) {
+                Transaction conflict = txPool.getSpender(new UTXO(in.prevTxHash, in.outputIndex));
+                if (conflict != null)
+                    txPool.removeTransactionAndDescendants(conflict.hashBytes());
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the pool after the max height block moved from {@code oldTip} to another branch:
+     * the transactions of the blocks left behind, oldest first, and then those of the pool are
+     * added again, keeping those still valid on top of the new max height block
+     */
+    private void resetPool(Node oldTip) {
+        HashSet<Node> mainChain = new HashSet<>();
+        for (Node node = maxHeightNode; node != null; node = node.prev)
+            mainChain.add(node);
+        ArrayList<Node> abandoned = new ArrayList<>();
+        for (Node node = oldTip; node != null && !mainChain.contains(node); node = node.prev)
+            abandoned.add(node);
+        ArrayList<Transaction> txs = new ArrayList<>();
+        for (int i = abandoned.size() - 1; i >= 0; i--)
+            txs.addAll(abandoned.get(i).block.getTransactions());
+        ArrayList<Transaction> pooled = txPool.getTransactionsByFeeRate(Long.MAX_VALUE);
+        // parents come before their children, so removing from the end never leaves an orphan
+        for (int i = pooled.size() - 1; i >= 0; i--)
+            txPool.removeTransaction(pooled.get(i).hashBytes());
+        txs.addAll(pooled);
+        for (Transaction tx : txs)
+            addTransaction(tx);
+    }
+
+    /**
+     * @return a copy of the UTXO pool after {@code node}, made by disconnecting the blocks from the
+     *         max height block down to the fork point and reconnecting the blocks up to
+     *         {@code node}
+     */
+    private UTXOPool utxoPoolAt(Node node) {
+        UTXOPool utxoPool = new UTXOPool(maxHeightUTXOPool);
+        move(utxoPool, null, maxHeightNode, node);
+        return utxoPool;
+    }
+
+    /**
+     * Moves {@code utxoPool} from the pool after {@code from} to the pool after {@code to},
+     * keeping {@code index}, its index by address if not null, up to date
+     */
+    private void move(UTXOPool utxoPool, AddressIndex index, Node from, Node to) {
+        if (from == to)
+            return;
+        Node tip = from;
+        Node target = to;
+        // blocks to reconnect, from the target down to the fork point
+        ArrayList<Node> branch = new ArrayList<>();
+        while (target.height > tip.height) {
+            branch.add(target);
+            target = target.prev;
+        }
+        while (tip.height > target.height) {
+            tip.undo.disconnect(utxoPool, index);
+            tip = tip.prev;
+        }
+        while (tip != target) {
+            tip.undo.disconnect(utxoPool, index);
+            tip = tip.prev;
+            branch.add(target);
+            target = target.prev;
+        }
+        for (int i = branch.size() - 1; i >= 0; i--)
+            branch.get(i).undo.connect(utxoPool, index);
     }
 
     private class Node {
         private Block block;
-        private TxHandler txHandler;
+        private Node prev;
         private int height;
-        private boolean valid;
+        private BlockUndo undo;
+        /** estimated memory held by this node */
+        private long bytes;
+        private boolean pruned;
 
-        public Node(Block block, Node prev) {
+        /**
+         * {@code utxoPool} is the pool before {@code block} and {@code txHandler} the handler that
+         * accepted all of its transactions
+         */
+        public Node(Block block, Node prev, UTXOPool utxoPool, TxHandler txHandler) {
             this.block = block;
-            valid = false;
+            this.prev = prev;
             height = 1;
-            UTXOPool utxoPool = new UTXOPool();
             if (prev != null) {
                 height += prev.height;
-                utxoPool = prev.txHandler.getUTXOPool();
             }
-            txHandler = new TxHandler(utxoPool);
-            int length = txHandler.handleTxs(block.getTransactions().toArray(new Transaction[0])).length;
-            if (length == block.getTransactions().size()) valid = true;
             Transaction coinbase = block.getCoinbase();
-            txHandler.getUTXOPool().addUTXO(new UTXO(coinbase.getHash(), 0), coinbase.getOutput(0));
+            txHandler.getUTXOPool().addUTXO(new UTXO(coinbase.hashBytes(), 0), coinbase.getOutput(0));
+            undo = new BlockUndo(block, utxoPool, txHandler.getUTXOPool());
+            bytes = NODE_BYTES + undo.utxos.length * UNDO_ENTRY_BYTES;
+            for (Transaction tx : block.getTransactions())
+                bytes += tx.getRawLength();
+        }
+
+        /** a node with no parent and nothing to undo, for a block whose pool is already known */
+        public Node(Block block, int height) {
+            this.block = block;
+            this.height = height;
+            undo = new BlockUndo();
+            bytes = NODE_BYTES;
+            for (Transaction tx : block.getTransactions())
+                bytes += tx.getRawLength();
+        }
+    }
+
+    /**
+     * The UTXOs whose outputs differ between the pool of a block and the pool of its parent, with
+     * the output on each side (null if the UTXO is not in that pool), enough to move a pool across
+     * the block in either direction. Recording both sides also covers a block whose coinbase has the
+     * same hash as an earlier one, which replaces a UTXO instead of creating it.
+     */
+    private static class BlockUndo {
+        private UTXO[] utxos;
+        private Transaction.Output[] before;
+        private Transaction.Output[] after;
+
+        /** an empty record, for a block that is never disconnected */
+        private BlockUndo() {
+            utxos = new UTXO[0];
+            before = new Transaction.Output[0];
+            after = new Transaction.Output[0];
+        }
+
+        /** {@code utxoPool} is the pool before {@code block} and {@code newPool} the pool after it */
+        private BlockUndo(Block block, UTXOPool utxoPool, UTXOPool newPool) {
+            LinkedHashSet<UTXO> touched = new LinkedHashSet<>();
+            for (Transaction tx : block.getTransactions()) {
+                for (Transaction.Input input : tx.getInputs())
+                    touched.add(new UTXO(input.prevTxHash, input.outputIndex));
+                for (int i = 0; i < tx.numOutputs(); i++)
+                    touched.add(new UTXO(tx.hashBytes(), i));
+            }
+            touched.add(new UTXO(block.getCoinbase().getHash(), 0));
+
+            ArrayList<UTXO> changed = new ArrayList<>(touched.size());
+            for (UTXO ut : touched) {
+                if (utxoPool.getTxOutput(ut) != newPool.getTxOutput(ut))
+                    changed.add(ut);
+            }
+            utxos = changed.toArray(new UTXO[0]);
+            before = new Transaction.Output[utxos.length];
+            after = new Transaction.Output[utxos.length];
+            for (int i = 0; i < utxos.length; i++) {
+                before[i] = utxoPool.getTxOutput(utxos[i]);
+                after[i] = newPool.getTxOutput(utxos[i]);
+            }
+        }
+
+        /**
+         * Moves {@code utxoPool} from the parent's pool to this block's pool, and {@code index}
+         * with it if not null
+         */
+        private void connect(UTXOPool utxoPool, AddressIndex index) {
+            apply(utxoPool, index, before, after);
+        }
+
+        /**
+         * Moves {@code utxoPool} from this block's pool back to the parent's pool, and
+         * {@code index} with it if not null
+         */
+        private void disconnect(UTXOPool utxoPool, AddressIndex index) {
+            apply(utxoPool, index, after, before);
+        }
+
+        private void apply(UTXOPool utxoPool, AddressIndex index, Transaction.Output[] from,
+                Transaction.Output[] to) {
+            for (int i = 0; i < utxos.length; i++) {
+                if (index != null) {
+                    if (from[i] != null)
+                        index.remove(utxos[i], from[i]);
+                    if (to[i] != null)
+                        index.add(utxos[i], to[i]);
+                }
+                if (to[i] == null)
+                    utxoPool.removeUTXO(utxos[i]);
+                else
+                    utxoPool.addUTXO(utxos[i], to[i]);
+            }
         }
     }
-}
\ No newline at end of file
+}
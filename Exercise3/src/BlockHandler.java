@@ -1,47 +1,170 @@
 
 import java.security.PublicKey;
+import java.util.HashSet;
 
 public class BlockHandler {
+    /** default upper bound on the serialized size of the transactions of a created block */
+    public static final long TARGET_BLOCK_BYTES = 1000000;
+
     private BlockChain blockChain;
+    private long targetBlockBytes;
+    /**
+     * the transactions of the next block, kept up to date as transactions are processed and only
+     * selected from the pool again once it is stale
+     */
+    private Block template;
+    private HashSet<ByteArrayWrapper> templateHashes;
+    /** the outputs the template spends, and those it creates */
+    private HashSet<UTXO> templateSpent;
+    private HashSet<UTXO> templateOutputs;
+    private long templateBytes;
+    /** lowest fee per byte paid by a transaction in the template */
+    private double templateMinFeeRate;
+    /**
+     * the max height block and the pool removal count the template was built for: it is stale once
+     * either changes, or once a transaction paying more than one in it was left out
+     */
+    private Block templateParent;
+    private long templateRemovals;
 
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
+        this(blockChain, TARGET_BLOCK_BYTES);
+    }
+
+    /**
+     * same as {@link #BlockHandler(BlockChain)}, creating blocks whose transactions take at most
+     * {@code targetBlockBytes} bytes
+     */
+    public BlockHandler(BlockChain blockChain, long targetBlockBytes) {
         this.blockChain = blockChain;
+        this.targetBlockBytes = targetBlockBytes;
     }
 
     /**
-     * add {@code block} to the block chain if it is valid.
+     * add {@code block} to the block chain if it is valid, choosing the transactions of the block
+     * template again if it changed the max height block
      * 
      * @return true if the block is valid and has been added, false otherwise
      */
     public boolean processBlock(Block block) {
-        if (block == null)
+        if (block == null || !blockChain.addBlock(block))
             return false;
-        return blockChain.addBlock(block);
+        if (template != null && isTemplateStale())
+            buildTemplate(template.getCoinbase().getOutput(0).address);
+        return true;
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * create a new {@code block} over the max height {@code block}, with the transactions of the
+     * pool paying the highest fee per byte that fit in the target block size, and add it to the
+     * block chain
+     * 
+     * @return the block, or null if the block chain did not accept it
+     */
     public Block createBlock(PublicKey myAddress) {
-        Block parent = blockChain.getMaxHeightBlock();
-        byte[] parentHash = parent.getHash();
-        Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
-        TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
-        for (int i = 0; i < rTxs.length; i++)
-            current.addTransaction(rTxs[i]);
-
-        current.finalize();
-        if (blockChain.addBlock(current))
+        Block current = getBlockTemplate(myAddress);
+        if (processBlock(current))
             return current;
         else
             return null;
     }
 
-    /** process a {@code Transaction} */
-    public void processTx(Transaction tx) {
-        blockChain.addTransaction(tx);
+    /**
+     * @return a finalized block over the max height {@code block}, paying its coinbase to
+     *         {@code myAddress}, with the transactions {@link #createBlock(PublicKey)} would put in
+     *         it. Transactions processed since the last call are appended to the ones already
+     *         chosen, so unless the pool has changed in another way this costs little more than
+     *         computing the block hash. The block chain only lets valid, mutually consistent
+     *         transactions into the pool, so their signatures and values are not checked again.
+     *         As the pool can also be changed directly, a transaction only goes in if every
+     *         output it spends is unspent at the max height block or created by an earlier
+     *         transaction of the block, and spent by no other.
+     */
+    public Block getBlockTemplate(PublicKey myAddress) {
+        if (isTemplateStale())
+            buildTemplate(myAddress);
+        Block current = template.copy(myAddress);
+        current.finalize();
+        return current;
+    }
+
+    /**
+     * process a {@code Transaction}, appending it to the block template if it made it into the
+     * transaction pool and fits
+     * 
+     * @return true if it has been added to the transaction pool
+     */
+    public boolean processTx(Transaction tx) {
+        if (!blockChain.addTransaction(tx))
+            return false;
+        if (isTemplateStale())
+            return true;
+        TransactionPool txPool = blockChain.getTransactionPool();
+        double feeRate = (double) txPool.getFee(tx.hashBytes()) / tx.getRawLength();
+        boolean parentsIn = true;
+        for (Transaction.Input in : tx.getInputs()) {
+            if (txPool.getTransaction(in.prevTxHash) != null
+                    && !templateHashes.contains(new ByteArrayWrapper(in.prevTxHash)))
+                parentsIn = false;
+        }
+        if (parentsIn && templateBytes + tx.getRawLength() <= targetBlockBytes) {
+            addToTemplate(tx, feeRate);
+        } else if (feeRate > templateMinFeeRate) {
+            // it may be worth more than what is in the template, choose again on the next block
+            templateParent = null;
+        }
+        return true;
+    }
+
+    private boolean isTemplateStale() {
+        return templateParent != blockChain.getMaxHeightBlock()
+                || templateRemovals != blockChain.getTransactionPool().getRemovalCount();
+    }
+
+    /** Chooses the transactions of the template from the pool again */
+    private void buildTemplate(PublicKey myAddress) {
+        TransactionPool txPool = blockChain.getTransactionPool();
+        templateParent = blockChain.getMaxHeightBlock();
+        templateRemovals = txPool.getRemovalCount();
+        template = new Block(templateParent.getHash(), myAddress);
+        templateHashes = new HashSet<ByteArrayWrapper>();
+        templateSpent = new HashSet<UTXO>();
+        templateOutputs = new HashSet<UTXO>();
+        templateBytes = 0;
+        templateMinFeeRate = Double.POSITIVE_INFINITY;
+        for (Transaction tx : txPool.getTransactionsByFeeRate(targetBlockBytes))
+            addToTemplate(tx, (double) txPool.getFee(tx.hashBytes()) / tx.getRawLength());
+    }
+
+    /** adds {@code tx} to the template, unless it spends an output the template cannot */
+    private void addToTemplate(Transaction tx, double feeRate) {
+        if (!spendable(tx))
+            return;
+        for (Transaction.Input in : tx.getInputs())
+            templateSpent.add(new UTXO(in.prevTxHash, in.outputIndex));
+        for (int i = 0; i < tx.numOutputs(); i++)
+            templateOutputs.add(new UTXO(tx.hashBytes(), i));
+        template.addTransaction(tx);
+        templateHashes.add(new ByteArrayWrapper(tx.hashBytes()));
+        templateBytes += tx.getRawLength();
+        templateMinFeeRate = Math.min(templateMinFeeRate, feeRate);
+    }
+
+    /**
+     * @return true if every output {@code tx} spends is unspent at the max height block or
+     *         created by a transaction of the template, and spent by no transaction of the
+     *         template
+     */
+    private boolean spendable(Transaction tx) {
+        HashSet<UTXO> spent = new HashSet<UTXO>();
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            if (templateSpent.contains(ut) || !spent.add(ut))
+                return false;
+            if (!templateOutputs.contains(ut) && !blockChain.isUnspent(ut))
+                return false;
+        }
+        return true;
     }
 }
@@ -0,0 +1,267 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * A write-back cache in front of another {@link UTXOStore}, normally a large one on disk such as
+ * {@link MappedUTXOStore}. Changes are kept in memory as dirty entries and only written to the
+ * backing store by {@link #flush()}. An entry is fresh if its UTXO is not in the backing store, so
+ * a fresh UTXO removed before the next flush is simply forgotten and never written at all.
+ *
+ * <p>
+ * Clean entries, copies of outputs read from the backing store, are evicted least recently used
+ * first once the cache holds more than its capacity. Dirty entries are only dropped by a flush,
+ * so the cache may go over its capacity until the next one. A backing store that is
+ * {@link Flushable} is flushed in turn, so a flush leaves the changes on disk.
+ *
+ * <p>
+ * A cache in front of another cache, such as the ones {@link #copy()} makes, is told about every
+ * change to it beforehand and keeps the old output as a dirty entry of its own, so it goes on
+ * reading as it did when it was made.
+ *
+ * <p>
+ * All methods are synchronized, on a lock shared with the caches in front of this one, so
+ * several threads may use the store and its copies at once.
+ */
+public class CachedUTXOStore implements UTXOStore {
+
+    private final UTXOStore base;
+    private final int capacity;
+    /** this store, or the lock of {@code base} if it is a cache as well */
+    private final Object lock;
+    /** the caches in front of this one still in use */
+    private final Set<CachedUTXOStore> views;
+    /** changes not yet written to {@code base}; a null output marks a UTXO to remove */
+    private final HashMap<UTXO, Entry> dirty;
+    /** outputs as in {@code base}, least recently used first */
+    private final LinkedHashMap<UTXO, Transaction.Output> clean;
+    private int size;
+    private long hits;
+    private long misses;
+
+    /** Creates a cache of about {@code capacity} UTXOs in front of {@code base} */
+    public CachedUTXOStore(UTXOStore base, final int capacity) {
+        this.base = base;
+        this.capacity = capacity;
+        dirty = new HashMap<>();
+        clean = new LinkedHashMap<UTXO, Transaction.Output>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UTXO, Transaction.Output> eldest) {
+                return size() + dirty.size() > capacity;
+            }
+        };
+        size = base.size();
+        views = Collections.newSetFromMap(new WeakHashMap<CachedUTXOStore, Boolean>());
+        if (base instanceof CachedUTXOStore) {
+            CachedUTXOStore cache = (CachedUTXOStore) base;
+            lock = cache.lock;
+            synchronized (lock) {
+                cache.views.add(this);
+            }
+        } else {
+            lock = this;
+        }
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        synchronized (lock) {
+            Entry entry = dirty.get(utxo);
+            if (entry != null) {
+                hits++;
+                return entry.output;
+            }
+            Transaction.Output output = clean.get(utxo);
+            if (output != null) {
+                hits++;
+                return output;
+            }
+            misses++;
+            output = base.get(utxo);
+            if (output != null)
+                clean.put(utxo, output);
+            return output;
+        }
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        synchronized (lock) {
+            if (!views.isEmpty())
+                changing(utxo, get(utxo), true);
+            Entry entry = dirty.get(utxo);
+            if (entry != null) {
+                if (entry.output == null)
+                    size++;
+                entry.output = txOut;
+                return;
+            }
+            boolean fresh = clean.remove(utxo) == null && !base.containsKey(utxo);
+            if (fresh)
+                size++;
+            dirty.put(utxo, new Entry(txOut, fresh));
+        }
+    }
+
+    public void remove(UTXO utxo) {
+        synchronized (lock) {
+            if (!views.isEmpty()) {
+                Transaction.Output before = get(utxo);
+                if (before == null)
+                    return;
+                changing(utxo, before, false);
+            }
+            Entry entry = dirty.get(utxo);
+            if (entry != null) {
+                if (entry.output == null)
+                    return;
+                size--;
+                if (entry.fresh)
+                    dirty.remove(utxo);
+                else
+                    entry.output = null;
+                return;
+            }
+            if (clean.remove(utxo) == null && !base.containsKey(utxo))
+                return;
+            size--;
+            dirty.put(utxo, new Entry(null, false));
+        }
+    }
+
+    /**
+     * Tells the caches in front of this one that {@code utxo}, now mapped to {@code before}, is
+     * about to be changed, and will be in this store afterwards if {@code present}
+     */
+    private void changing(UTXO utxo, Transaction.Output before, boolean present) {
+        for (CachedUTXOStore view : views)
+            view.keep(utxo, before, present);
+    }
+
+    /**
+     * Keeps the output of {@code utxo} as it is now, {@code before} in the store this one reads
+     * through to, unless this cache has its own entry for it, whose freshness is brought up to date
+     * instead
+     */
+    private void keep(UTXO utxo, Transaction.Output before, boolean present) {
+        clean.remove(utxo);
+        Entry entry = dirty.get(utxo);
+        if (entry == null)
+            dirty.put(utxo, new Entry(before, !present));
+        else if (entry.output == null && !present)
+            dirty.remove(utxo);
+        else
+            entry.fresh = !present;
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return get(utxo) != null;
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    public ArrayList<UTXO> keys() {
+        synchronized (lock) {
+            ArrayList<UTXO> keys = new ArrayList<>(size);
+            for (UTXO ut : base.keys()) {
+                Entry entry = dirty.get(ut);
+                if (entry == null || entry.output != null)
+                    keys.add(ut);
+            }
+            for (Map.Entry<UTXO, Entry> e : dirty.entrySet()) {
+                if (e.getValue().fresh)
+                    keys.add(e.getKey());
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * @return an unbounded cache in front of this store. It reads through to this store, and
+     *         keeps the old output of every UTXO this store changes afterwards, so it costs
+     *         memory for the changes made to either, not for the whole set, and reads as this
+     *         store did when it was made. Changes to the copy never reach this store.
+     */
+    public UTXOStore copy() {
+        return new CachedUTXOStore(this, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes every change to the backing store, keeping the written outputs as clean entries, and
+     * flushes the backing store if it is {@link Flushable}
+     */
+    public void flush() {
+        synchronized (lock) {
+            Iterator<Map.Entry<UTXO, Entry>> entries = dirty.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<UTXO, Entry> e = entries.next();
+                UTXO ut = e.getKey();
+                Transaction.Output output = e.getValue().output;
+                // written before the entry goes, so a backing cache telling this one about the
+                // change finds the entry and does not keep the old output
+                if (output == null) {
+                    base.remove(ut);
+                } else {
+                    base.put(ut, output);
+                    clean.put(ut, output);
+                }
+                entries.remove();
+            }
+            if (base instanceof Flushable) {
+                try {
+                    ((Flushable) base).flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /** @return the number of changes waiting for the next {@link #flush()} */
+    public int getDirtyCount() {
+        synchronized (lock) {
+            return dirty.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of lookups answered from memory */
+    public long getHits() {
+        synchronized (lock) {
+            return hits;
+        }
+    }
+
+    /** @return the number of lookups that went to the backing store */
+    public long getMisses() {
+        synchronized (lock) {
+            return misses;
+        }
+    }
+
+    private static class Entry {
+        private Transaction.Output output;
+        /** whether the UTXO is not in the backing store */
+        private boolean fresh;
+
+        private Entry(Transaction.Output output, boolean fresh) {
+            this.output = output;
+            this.fresh = fresh;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+
+/**
+ * A {@link UTXOStore} changed by a single writer thread and read by any number of other threads
+ * without locking. The writer uses the {@link UTXOStore} methods and calls {@link #publish()}
+ * whenever the store is in a consistent state, such as after a block. Readers call
+ * {@link #getSnapshot()} and see the store as it was at the last publish, however far the writer
+ * has got since.
+ *
+ * <p>
+ * The store is a {@link PersistentUTXOStore}, so publishing takes O(1): a snapshot shares its
+ * nodes with the writer's store, which copies a node before changing it once it is shared.
+ */
+public class ConcurrentUTXOStore implements UTXOStore {
+
+    private PersistentUTXOStore store;
+    private volatile Snapshot snapshot;
+
+    /** Creates an empty store */
+    public ConcurrentUTXOStore() {
+        this(new PersistentUTXOStore());
+    }
+
+    /**
+     * Creates a store holding the UTXOs of {@code contents}, taking it over if it is a
+     * {@link PersistentUTXOStore}, and publishes them
+     */
+    public ConcurrentUTXOStore(UTXOStore contents) {
+        if (contents instanceof PersistentUTXOStore) {
+            store = (PersistentUTXOStore) contents;
+        } else {
+            store = new PersistentUTXOStore();
+            for (UTXO ut : contents.keys())
+                store.put(ut, contents.get(ut));
+        }
+        snapshot = new Snapshot(store.copy(), 0);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return store.get(utxo);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        store.put(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        store.remove(utxo);
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return store.containsKey(utxo);
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    public ArrayList<UTXO> keys() {
+        return store.keys();
+    }
+
+    /** @return a {@link PersistentUTXOStore} holding the writer's current UTXOs */
+    public UTXOStore copy() {
+        return store.copy();
+    }
+
+    /** Makes the current contents the snapshot readers see, under the next version number */
+    public void publish() {
+        snapshot = new Snapshot(store.copy(), snapshot.version + 1);
+    }
+
+    /** @return the contents at the last {@link #publish()}, which never change */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * The contents of a {@link ConcurrentUTXOStore} at one publish. It cannot be changed, and any
+     * number of threads may read it at once.
+     */
+    public static class Snapshot implements UTXOStore {
+        private final PersistentUTXOStore store;
+        private final long version;
+
+        private Snapshot(PersistentUTXOStore store, long version) {
+            this.store = store;
+            this.version = version;
+        }
+
+        /** @return the number of publishes before this one */
+        public long getVersion() {
+            return version;
+        }
+
+        public Transaction.Output get(UTXO utxo) {
+            return store.get(utxo);
+        }
+
+        public void put(UTXO utxo, Transaction.Output txOut) {
+            throw new UnsupportedOperationException("snapshots cannot be changed");
+        }
+
+        public void remove(UTXO utxo) {
+            throw new UnsupportedOperationException("snapshots cannot be changed");
+        }
+
+        public boolean containsKey(UTXO utxo) {
+            return store.containsKey(utxo);
+        }
+
+        public int size() {
+            return store.size();
+        }
+
+        public ArrayList<UTXO> keys() {
+            return store.keys();
+        }
+
+        /** @return a {@link PersistentUTXOStore} holding the same UTXOs, which may be changed */
+        public synchronized UTXOStore copy() {
+            // copying renews the edit token of the snapshot's store, which is never changed anyway
+            return store.copy();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** The default {@link UTXOStore}, a plain {@code HashMap}; copying it copies every mapping */
+public class HashUTXOStore implements UTXOStore {
+
+    private HashMap<UTXO, Transaction.Output> H;
+
+    public HashUTXOStore() {
+        H = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashUTXOStore(HashUTXOStore store) {
+        H = new HashMap<UTXO, Transaction.Output>(store.H);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        H.put(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        H.remove(utxo);
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    public ArrayList<UTXO> keys() {
+        return new ArrayList<UTXO>(H.keySet());
+    }
+
+    public UTXOStore copy() {
+        return new HashUTXOStore(this);
+    }
+}
@@ -0,0 +1,249 @@
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * A {@link Transaction} that cannot be changed once built by a {@link Builder}. Its hash is
+ * computed when it is built, so it never depends on a call to {@link #finalize()}, and so is its
+ * {@link #hashCode()}. It can be used wherever a transaction is expected, and is equal to any
+ * transaction with the same inputs and outputs.
+ *
+ * <p>
+ * The methods changing a transaction throw {@link UnsupportedOperationException}, and so do
+ * those changing the lists of inputs and outputs, which are built once and handed out as they
+ * are, along with the inputs and outputs in them, whose fields are final. An input's signature
+ * cannot be replaced through {@link Input#addSignature(byte[])}; it and the byte arrays held by the
+ * inputs must not be changed. The hash and the serialized transaction are handed out as copies.
+ */
+public final class ImmutableTransaction extends Transaction {
+
+    private final int hashCode;
+    private final ArrayList<Input> inputs;
+    private final ArrayList<Output> outputs;
+
+    private ImmutableTransaction(Transaction tx) {
+        // the transaction's own lists, filled with the inputs and outputs handed out
+        for (Input in : tx.getInputs())
+            super.getInputs().add(new SignedInput(in));
+        for (Output op : tx.getOutputs())
+            super.getOutputs().add(new Output(op.value, op.address));
+        inputs = new FrozenList<>(super.getInputs());
+        outputs = new FrozenList<>(super.getOutputs());
+        super.finalize();
+        hashCode = super.hashCode();
+    }
+
+    /** Does nothing, the hash was computed when the transaction was built */
+    public void finalize() {
+    }
+
+    public void addInput(byte[] prevTxHash, int outputIndex) {
+        throw new UnsupportedOperationException("transaction cannot be changed");
+    }
+
+    public void addOutput(long value, PublicKey address) {
+        throw new UnsupportedOperationException("transaction cannot be changed");
+    }
+
+    public void removeInput(int index) {
+        throw new UnsupportedOperationException("transaction cannot be changed");
+    }
+
+    public void removeInput(UTXO ut) {
+        throw new UnsupportedOperationException("transaction cannot be changed");
+    }
+
+    public void addSignature(byte[] signature, int index) {
+        throw new UnsupportedOperationException("transaction cannot be changed");
+    }
+
+    public void setHash(byte[] h) {
+        throw new UnsupportedOperationException("transaction cannot be changed");
+    }
+
+    /** @return a copy of the hash; see {@link #hashBytes()} for the hash itself */
+    public byte[] getHash() {
+        return super.getHash().clone();
+    }
+
+    /** @return the inputs, in a list that cannot be changed */
+    public ArrayList<Input> getInputs() {
+        return inputs;
+    }
+
+    /** @return the outputs, in a list that cannot be changed */
+    public ArrayList<Output> getOutputs() {
+        return outputs;
+    }
+
+    public Input getInput(int index) {
+        return index < inputs.size() ? inputs.get(index) : null;
+    }
+
+    public Output getOutput(int index) {
+        return index < outputs.size() ? outputs.get(index) : null;
+    }
+
+    /** computed when the transaction was built, and equal to that of the same {@link Transaction} */
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /** An input holding a copy of the signature of another, which cannot be signed again */
+    private class SignedInput extends Input {
+
+        private SignedInput(Input in) {
+            super(in.prevTxHash, in.outputIndex);
+            signature = in.signature == null ? null : in.signature.clone();
+        }
+
+        public void addSignature(byte[] sig) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+    }
+
+    /** An {@link ArrayList} whose every method changing it throws */
+    private static final class FrozenList<E> extends ArrayList<E> {
+        private static final long serialVersionUID = 1L;
+
+        private FrozenList(Collection<E> elements) {
+            super(elements);
+        }
+
+        public boolean add(E e) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public void add(int index, E element) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public boolean addAll(Collection<? extends E> c) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public boolean addAll(int index, Collection<? extends E> c) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public E set(int index, E element) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        /** also behind the {@code remove} of the iterators, as {@code set} and {@code add} are */
+        public E remove(int index) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public boolean remove(Object o) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public boolean removeAll(Collection<?> c) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public boolean retainAll(Collection<?> c) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public boolean removeIf(Predicate<? super E> filter) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public void replaceAll(UnaryOperator<E> operator) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public void sort(Comparator<? super E> c) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        public void clear() {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        protected void removeRange(int fromIndex, int toIndex) {
+            throw new UnsupportedOperationException("transaction cannot be changed");
+        }
+
+        /** a view, as the sublists of an {@link ArrayList} write to its array directly */
+        public List<E> subList(int fromIndex, int toIndex) {
+            return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+        }
+    }
+
+    /**
+     * Collects the inputs, outputs and signatures of a transaction. Once all outputs have been
+     * added, inputs can be signed one by one with {@link #sign(PrivateKey, int)} or all at once,
+     * in parallel, with {@link #signAll(PrivateKey[], ForkJoinPool)}. Signing only changes the input
+     * signed, and {@link #build()} hashes the transaction once, however many inputs there are.
+     */
+    public static class Builder {
+        private Transaction tx = new Transaction();
+
+        public Builder addInput(byte[] prevTxHash, int outputIndex) {
+            tx.addInput(prevTxHash, outputIndex);
+            return this;
+        }
+
+        public Builder addOutput(long value, PublicKey address) {
+            tx.addOutput(value, address);
+            return this;
+        }
+
+        public Builder addSignature(byte[] signature, int index) {
+            tx.addSignature(signature, index);
+            return this;
+        }
+
+        /** Signs input {@code index} with {@code privKey} */
+        public Builder sign(PrivateKey privKey, int index) {
+            tx.addSignature(Crypto.sign(privKey, tx.getRawDataToSign(index)), index);
+            return this;
+        }
+
+        /**
+         * Signs every input, input {@code i} with {@code privKeys[i]}, on {@code pool}, or on this
+         * thread if it is null
+         */
+        public Builder signAll(PrivateKey[] privKeys, ForkJoinPool pool) {
+            int n = tx.numInputs();
+            if (privKeys.length != n)
+                throw new IllegalArgumentException("need one key per input");
+            if (pool == null) {
+                for (int i = 0; i < n; i++)
+                    sign(privKeys[i], i);
+                return this;
+            }
+            byte[][] messages = new byte[n][];
+            for (int i = 0; i < n; i++)
+                messages[i] = tx.getRawDataToSign(i);
+            byte[][] signatures = Crypto.signAll(privKeys, messages, pool);
+            for (int i = 0; i < n; i++)
+                tx.addSignature(signatures[i], i);
+            return this;
+        }
+
+        /** @see Transaction#getRawDataToSign(int) */
+        public byte[] getRawDataToSign(int index) {
+            return tx.getRawDataToSign(index);
+        }
+
+        public int numInputs() {
+            return tx.numInputs();
+        }
+
+        /** @return a transaction holding copies of the inputs and outputs added so far */
+        public ImmutableTransaction build() {
+            return new ImmutableTransaction(tx);
+        }
+    }
+}
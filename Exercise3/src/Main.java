@@ -35,19 +35,20 @@ public class Main {
          */
         Block block1 = new Block(genesis.getHash(), pk_alice.getPublic());
         // new TX: scrooge pays 25 coins to alice
-        Tx tx1 = new Tx();
+        ImmutableTransaction.Builder tx1Builder = new ImmutableTransaction.Builder();
 
         // the genesis block has a value of 25
-        tx1.addInput(genesis.getCoinbase().getHash(), 0);
+        tx1Builder.addInput(genesis.getCoinbase().getHash(), 0);
 
-        tx1.addOutput(5, pk_alice.getPublic());
-        tx1.addOutput(10, pk_alice.getPublic());
-        tx1.addOutput(10, pk_alice.getPublic());
+        tx1Builder.addOutput(5 * Transaction.COIN, pk_alice.getPublic());
+        tx1Builder.addOutput(10 * Transaction.COIN, pk_alice.getPublic());
+        tx1Builder.addOutput(10 * Transaction.COIN, pk_alice.getPublic());
 
         // There is only one (at position 0) Transaction.Input in tx2
         // and it contains the coin from Scrooge, therefore I have to sign with the private key from Scrooge
-        tx1.signTx(pk_scrooge.getPrivate(), 0);
+        tx1Builder.sign(pk_scrooge.getPrivate(), 0);
 
+        Transaction tx1 = tx1Builder.build();
         block1.addTransaction(tx1);
         block1.finalize();
 
@@ -59,13 +60,14 @@ public class Main {
         Block block2 = new Block(genesis.getHash(), pk_scrooge.getPublic());
 
         // new TX: scrooge pays 25 coins to scrooge
-        Tx tx2 = new Tx();
-        tx2.addInput(genesis.getCoinbase().getHash(), 0);  //25
-        tx2.addOutput(5, pk_scrooge.getPublic());
-        tx2.addOutput(10, pk_scrooge.getPublic());
-        tx2.addOutput(10, pk_scrooge.getPublic());
-        tx2.signTx(pk_scrooge.getPrivate(), 0);
-
+        ImmutableTransaction.Builder tx2Builder = new ImmutableTransaction.Builder();
+        tx2Builder.addInput(genesis.getCoinbase().getHash(), 0);  //25
+        tx2Builder.addOutput(5 * Transaction.COIN, pk_scrooge.getPublic());
+        tx2Builder.addOutput(10 * Transaction.COIN, pk_scrooge.getPublic());
+        tx2Builder.addOutput(10 * Transaction.COIN, pk_scrooge.getPublic());
+        tx2Builder.sign(pk_scrooge.getPrivate(), 0);
+
+        Transaction tx2 = tx2Builder.build();
         block2.addTransaction(tx2);
         block2.finalize();
 
@@ -77,13 +79,14 @@ public class Main {
         Block block3 = new Block(block1.getHash(), pk_scrooge.getPublic());
 
         // new TX: alice pays 15 coins to bob
-        Tx tx3 = new Tx();
-        tx3.addOutput(20, pk_bob.getPublic());
-        tx3.addInput(tx1.getHash(), 1);	// 10 coins
-        tx3.signTx(pk_alice.getPrivate(), 0);
-        tx3.addInput(tx1.getHash(), 2);	// 10 coins
-        tx3.signTx(pk_alice.getPrivate(), 1);
-
+        ImmutableTransaction.Builder tx3Builder = new ImmutableTransaction.Builder();
+        tx3Builder.addOutput(20 * Transaction.COIN, pk_bob.getPublic());
+        tx3Builder.addInput(tx1.getHash(), 1);	// 10 coins
+        tx3Builder.sign(pk_alice.getPrivate(), 0);
+        tx3Builder.addInput(tx1.getHash(), 2);	// 10 coins
+        tx3Builder.sign(pk_alice.getPrivate(), 1);
+
+        Transaction tx3 = tx3Builder.build();
         block3.addTransaction(tx3);
         block3.finalize();
 
@@ -95,12 +98,13 @@ public class Main {
         Block block4 = new Block(block3.getHash(), pk_scrooge.getPublic());
 
         // new TX: bob splits 15 coins to bob
-        Tx tx4 = new Tx();
-        tx4.addOutput(10, pk_bob.getPublic());
-        tx4.addOutput(5, pk_bob.getPublic());
-        tx4.addInput(tx3.getHash(), 0);	// 15 coins
-        tx4.signTx(pk_bob.getPrivate(), 0);
+        ImmutableTransaction.Builder tx4Builder = new ImmutableTransaction.Builder();
+        tx4Builder.addOutput(10 * Transaction.COIN, pk_bob.getPublic());
+        tx4Builder.addOutput(5 * Transaction.COIN, pk_bob.getPublic());
+        tx4Builder.addInput(tx3.getHash(), 0);	// 15 coins
+        tx4Builder.sign(pk_bob.getPrivate(), 0);
 
+        Transaction tx4 = tx4Builder.build();
         block4.addTransaction(tx4);
         block4.finalize();
 
@@ -112,34 +116,17 @@ public class Main {
         Block block5 = new Block(block4.getHash(), pk_alice.getPublic());
 
         // new TX: alice pays 5+25 coins to bob
-        Tx tx5 = new Tx();
-        tx5.addOutput(25, pk_bob.getPublic());
-        tx5.addInput(tx1.getHash(), 0);	// 5 coins
-        tx5.signTx(pk_alice.getPrivate(), 0);
-        tx5.addInput(block1.getCoinbase().getHash(), 0); // 25 coins
-        tx5.signTx(pk_alice.getPrivate(), 1);
-
+        ImmutableTransaction.Builder tx5Builder = new ImmutableTransaction.Builder();
+        tx5Builder.addOutput(25 * Transaction.COIN, pk_bob.getPublic());
+        tx5Builder.addInput(tx1.getHash(), 0);	// 5 coins
+        tx5Builder.sign(pk_alice.getPrivate(), 0);
+        tx5Builder.addInput(block1.getCoinbase().getHash(), 0); // 25 coins
+        tx5Builder.sign(pk_alice.getPrivate(), 1);
+
+        Transaction tx5 = tx5Builder.build();
         block5.addTransaction(tx5);
         block5.finalize();
         System.out.println("Block5 Added ok: " + bh.processBlock(block5));
 
     }
-
-
-    public static class Tx extends Transaction {
-        public void signTx(PrivateKey sk, int input) throws SignatureException {
-            Signature sig = null;
-            try {
-                sig = Signature.getInstance("SHA256withRSA");
-                sig.initSign(sk);
-                sig.update(this.getRawDataToSign(input));
-            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-                throw new RuntimeException(e);
-            }
-            this.addSignature(sig.sign(),input);
-            // Note that this method is incorrectly named, and should not in fact override the Java
-            // object finalize garbage collection related method.
-            this.finalize();
-        }
-    }
 }
@@ -0,0 +1,863 @@
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link UTXOStore} that keeps the UTXOs off the Java heap, in a memory-mapped file, so the
+ * garbage collector never has to trace them. The file holds a header, an open addressing hash
+ * table of fixed-size records, each
+ *
+ * <pre>
+ * state (1 byte) | transaction hash (32 bytes) | output index (4) | value (8) | address (4)
+ * </pre>
+ *
+ * and the addresses, each stored once as its X.509 encoding and referred to by its offset, with an
+ * open addressing index of them to find an address already stored. Only the few addresses used
+ * last are kept decoded on the heap. Addresses no record refers to any more are dropped whenever
+ * the file is rebuilt. Outputs read from the store are new objects every time. Transaction hashes
+ * must be 32 bytes (SHA-256).
+ *
+ * <p>
+ * A store opened with {@link #MappedUTXOStore(File)} keeps its UTXOs in that file: the file
+ * is kept when the store is closed, can be opened again later, and holds every change made
+ * before the last {@link #flush()}, which forces it to the storage device. Other stores use
+ * scratch files, deleted once no store uses them.
+ *
+ * <p>
+ * {@link #copy()} does not copy the file: the copy and this store share it, and each keeps its
+ * changes in a small overlay on the heap while it is shared. Only once its overlay outgrows
+ * {@link #MAX_OVERLAY} changes does a store copy the file to a scratch file of its own, or, if it
+ * is the store that opened or created the file, move the stores sharing it to such a copy. A
+ * store writes straight to its file again as soon as no other store shares it, but never to a
+ * file opened by name by another store.
+ *
+ * <p>
+ * A store and its copies share a lock, so several threads may use them at once.
+ */
+public class MappedUTXOStore implements UTXOStore, Flushable, AutoCloseable {
+
+    public static final int HASH_LENGTH = 32;
+    private static final int MAGIC = 0x5554584f;
+    private static final int VERSION = 1;
+    /** magic, version, record slots, address slots and bytes of addresses */
+    private static final int HEADER = 5 * 4;
+    private static final int RECORD = 1 + HASH_LENGTH + 4 + 8 + 4;
+    /** offset of the address plus one (0 for an empty slot) and the hash code of its encoding */
+    private static final int ADDRESS_SLOT = 4 + 4;
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+    /** records per mapped segment, each mapping must stay under 2GB */
+    private static final int SEGMENT_BITS = 20;
+    private static final double MAX_LOAD = 0.7;
+    /** room for addresses in a new file, in bytes */
+    private static final int MIN_ADDRESS_BYTES = 1 << 12;
+    /** addresses kept decoded on the heap, least recently used dropped first */
+    private static final int ADDRESS_CACHE = 1024;
+    /** changes a store keeps on the heap while its file is shared, before copying the file */
+    public static final int MAX_OVERLAY = 1 << 12;
+
+    /** shared by this store and every store copied from it */
+    private final Object lock;
+    /** where scratch files go, the temporary-file directory if null */
+    private final File directory;
+    private Table table;
+    /** changes not in {@code table}; a null output marks a removed UTXO */
+    private HashMap<UTXO, Transaction.Output> overlay;
+    private int size;
+    /** owner of the outputs handed out, which have to belong to some transaction */
+    private final Transaction holder;
+
+    /** Creates an empty store with a file in the temporary-file directory */
+    public MappedUTXOStore() {
+        this(null, 1 << 16);
+    }
+
+    /**
+     * Creates an empty store with room for about {@code initialCapacity} UTXOs before it grows,
+     * keeping its file in {@code directory} (the temporary-file directory if null)
+     */
+    public MappedUTXOStore(File directory, int initialCapacity) {
+        lock = new Object();
+        this.directory = directory;
+        try {
+            table = Table.create(scratchFile(directory), false, slots(initialCapacity), slots(16),
+                    MIN_ADDRESS_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        table.owner = this;
+        table.share(this);
+        overlay = new HashMap<>();
+        holder = new Transaction();
+    }
+
+    /**
+     * Opens the store kept in {@code file}, rebuilding its counts from the records there, or
+     * creates an empty one in it if there is no such file
+     *
+     * @throws IOException if the file cannot be read or does not hold a store
+     */
+    public MappedUTXOStore(File file) throws IOException {
+        lock = new Object();
+        directory = file.getAbsoluteFile().getParentFile();
+        if (file.exists())
+            table = Table.open(file);
+        else
+            table = Table.create(file, true, slots(1 << 16), slots(16), MIN_ADDRESS_BYTES);
+        table.owner = this;
+        table.share(this);
+        overlay = new HashMap<>();
+        size = table.used;
+        holder = new Transaction();
+    }
+
+    private MappedUTXOStore(MappedUTXOStore store) {
+        lock = store.lock;
+        directory = store.directory;
+        table = store.table;
+        table.share(this);
+        overlay = new HashMap<>(store.overlay);
+        size = store.size;
+        holder = store.holder;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        synchronized (lock) {
+            if (overlay.containsKey(utxo)) {
+                Transaction.Output output = overlay.get(utxo);
+                return output == null ? null : holder.new Output(output.value, output.address);
+            }
+            long slot = table.find(utxo);
+            if (slot < 0)
+                return null;
+            return holder.new Output(table.value(slot), table.address(slot));
+        }
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        synchronized (lock) {
+            if (writable(false)) {
+                if (table.put(utxo, txOut.value, txOut.address))
+                    size++;
+                return;
+            }
+            if (!containsKey(utxo))
+                size++;
+            overlay.put(utxo, holder.new Output(txOut.value, txOut.address));
+        }
+    }
+
+    public void remove(UTXO utxo) {
+        synchronized (lock) {
+            if (writable(false)) {
+                if (table.remove(utxo))
+                    size--;
+                return;
+            }
+            if (!containsKey(utxo))
+                return;
+            size--;
+            overlay.put(utxo, null);
+        }
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        synchronized (lock) {
+            if (overlay.containsKey(utxo))
+                return overlay.get(utxo) != null;
+            return table.find(utxo) >= 0;
+        }
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    public ArrayList<UTXO> keys() {
+        synchronized (lock) {
+            ArrayList<UTXO> keys = new ArrayList<>(size);
+            for (UTXO ut : table.keys()) {
+                if (!overlay.containsKey(ut))
+                    keys.add(ut);
+            }
+            for (Map.Entry<UTXO, Transaction.Output> e : overlay.entrySet()) {
+                if (e.getValue() != null)
+                    keys.add(e.getKey());
+            }
+            return keys;
+        }
+    }
+
+    /** @return the number of addresses stored in the file, used or not since it was rebuilt */
+    public int getAddressCount() {
+        synchronized (lock) {
+            return table.addressCount;
+        }
+    }
+
+    /** @return a store sharing this one's file, so the copy takes time in the size of the overlay */
+    public UTXOStore copy() {
+        synchronized (lock) {
+            return new MappedUTXOStore(this);
+        }
+    }
+
+    /**
+     * Writes the overlay to the file, copying the file first as when the overlay grows too big
+     * if another store shares it, and forces the file to the storage device
+     */
+    public void flush() {
+        synchronized (lock) {
+            writable(true);
+            table.force();
+        }
+    }
+
+    /**
+     * Lets go of the file, flushing it first if this store opened or created it by name. A
+     * scratch file is unmapped and deleted if no copy still shares it. The store cannot be used
+     * afterwards; closing it again does nothing.
+     */
+    public void close() {
+        synchronized (lock) {
+            if (table == null)
+                return;
+            if (table.persistent && table.owner == this)
+                flush();
+            table.release(this);
+            table = null;
+            overlay = null;
+        }
+    }
+
+    /**
+     * @return true if changes may go straight to the table, after writing the overlay to it. They
+     *         may if no other store shares the table and it is not a file opened by name by
+     *         another store, and otherwise only once the overlay is too big or {@code now} is
+     *         set, after moving this store, or the others if this is the owner of the file, to
+     *         a copy of the file.
+     */
+    private boolean writable(boolean now) {
+        if (!table.isWritableBy(this)) {
+            if (!now && overlay.size() < MAX_OVERLAY)
+                return false;
+            if (table.owner == this) {
+                table.moveOthers(this, directory);
+            } else {
+                Table shared = table;
+                table = shared.copyTo(scratchFile(directory));
+                table.owner = this;
+                table.share(this);
+                shared.release(this);
+            }
+        }
+        if (!overlay.isEmpty()) {
+            for (Map.Entry<UTXO, Transaction.Output> e : overlay.entrySet()) {
+                Transaction.Output output = e.getValue();
+                if (output == null)
+                    table.remove(e.getKey());
+                else
+                    table.put(e.getKey(), output.value, output.address);
+            }
+            overlay = new HashMap<>();
+        }
+        return true;
+    }
+
+    /** @return the number of slots, a power of two, for about {@code n} records or addresses */
+    private static int slots(int n) {
+        return Integer.highestOneBit(Math.max(16, (int) (n / MAX_LOAD)) - 1) << 1;
+    }
+
+    /** @return a new empty file in {@code directory}, deleted on exit if still there */
+    private static File scratchFile(File directory) {
+        try {
+            File file = File.createTempFile("utxo", ".dat", directory);
+            file.deleteOnExit();
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long hash(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_LENGTH)
+            throw new IllegalArgumentException("transaction hashes must be " + HASH_LENGTH + " bytes");
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (txHash[i] & 0xff);
+        h ^= utxo.getIndex() * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean sameHash(ByteBuffer segment, int pos, byte[] txHash) {
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (segment.get(pos + i) != txHash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & ((1 << SEGMENT_BITS) - 1)) * RECORD;
+    }
+
+    private static boolean isPowerOfTwo(int n) {
+        return n > 0 && (n & (n - 1)) == 0;
+    }
+
+    /** {@code Unsafe.invokeCleaner}, or null where the JVM has no such method (before Java 9) */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Releases the mappings now rather than whenever the buffers are garbage collected, which
+     * may be long after their file is gone. The buffers must never be read again.
+     */
+    private static void unmap(MappedByteBuffer[] buffers) {
+        if (INVOKE_CLEANER == null)
+            return;
+        try {
+            for (MappedByteBuffer buffer : buffers)
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left for the garbage collector
+        }
+    }
+
+    /** A file of records and the addresses they refer to, shared by a store and its copies */
+    private static class Table {
+        private File file;
+        /** whether the file was opened or created by name, and is kept once no store uses it */
+        private boolean persistent;
+        /** the store that created the table, the only one to write to a file opened by name */
+        private MappedUTXOStore owner;
+        /** the stores using the table, which none of them changes while there are several */
+        private final ArrayList<WeakReference<MappedUTXOStore>> sharers = new ArrayList<>();
+        private RandomAccessFile raf;
+        private MappedByteBuffer header;
+        private MappedByteBuffer[] segments;
+        private MappedByteBuffer addressIndex;
+        private MappedByteBuffer addressData;
+        /** number of record slots and of address slots, powers of two */
+        private int capacity;
+        private int addressSlots;
+        /** room for addresses, each an unsigned 2 byte length followed by its encoding */
+        private int addressBytes;
+        private int used;
+        private int deleted;
+        private int addressCount;
+        /** offset just past the last address */
+        private int addressEnd;
+        private final LinkedHashMap<Integer, PublicKey> decoded = lru();
+        private final LinkedHashMap<PublicKey, Integer> offsets = lru();
+        private KeyFactory keyFactory;
+
+        private static <K, V> LinkedHashMap<K, V> lru() {
+            return new LinkedHashMap<K, V>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                    return size() > ADDRESS_CACHE;
+                }
+            };
+        }
+
+        /** @return a new empty table of the given layout in {@code file}, emptied first */
+        private static Table create(File file, boolean persistent, int slots, int addressSlots,
+                int addressBytes) throws IOException {
+            Table table = new Table();
+            table.file = file;
+            table.persistent = persistent;
+            table.capacity = slots;
+            table.addressSlots = addressSlots;
+            table.addressBytes = addressBytes;
+            table.raf = new RandomAccessFile(file, "rw");
+            // zeroed, so every slot is empty
+            table.raf.setLength(0);
+            table.raf.setLength(table.length());
+            table.map();
+            table.header.putInt(0, MAGIC);
+            table.header.putInt(4, VERSION);
+            table.header.putInt(8, slots);
+            table.header.putInt(12, addressSlots);
+            table.header.putInt(16, addressBytes);
+            return table;
+        }
+
+        /** @return the table kept in {@code file}, counting its records and addresses again */
+        private static Table open(File file) throws IOException {
+            Table table = new Table();
+            table.file = file;
+            table.persistent = true;
+            table.raf = new RandomAccessFile(file, "rw");
+            try {
+                if (table.raf.length() < HEADER || table.raf.readInt() != MAGIC)
+                    throw new IOException(file + " does not hold a UTXO store");
+                if (table.raf.readInt() != VERSION)
+                    throw new IOException("unsupported UTXO store version in " + file);
+                table.capacity = table.raf.readInt();
+                table.addressSlots = table.raf.readInt();
+                table.addressBytes = table.raf.readInt();
+                if (!isPowerOfTwo(table.capacity) || !isPowerOfTwo(table.addressSlots)
+                        || table.addressBytes < 0 || table.raf.length() != table.length())
+                    throw new IOException("damaged UTXO store " + file);
+                table.map();
+                table.scan();
+            } catch (IOException | RuntimeException e) {
+                table.raf.close();
+                throw e;
+            }
+            return table;
+        }
+
+        private long length() {
+            return HEADER + (long) capacity * RECORD + (long) addressSlots * ADDRESS_SLOT
+                    + addressBytes;
+        }
+
+        private void map() throws IOException {
+            FileChannel channel = raf.getChannel();
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            int perSegment = Math.min(capacity, 1 << SEGMENT_BITS);
+            segments = new MappedByteBuffer[(capacity + perSegment - 1) / perSegment];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER + (long) i * perSegment * RECORD, (long) perSegment * RECORD);
+            }
+            long pos = HEADER + (long) capacity * RECORD;
+            addressIndex = channel.map(FileChannel.MapMode.READ_WRITE, pos,
+                    (long) addressSlots * ADDRESS_SLOT);
+            addressData = channel.map(FileChannel.MapMode.READ_WRITE,
+                    pos + (long) addressSlots * ADDRESS_SLOT, addressBytes);
+        }
+
+        private MappedByteBuffer[] buffers() {
+            MappedByteBuffer[] buffers = Arrays.copyOf(segments, segments.length + 3);
+            buffers[segments.length] = header;
+            buffers[segments.length + 1] = addressIndex;
+            buffers[segments.length + 2] = addressData;
+            return buffers;
+        }
+
+        /**
+         * Finds the end of the addresses and counts them and the records, checking every record
+         * refers to an address before the end
+         */
+        private void scan() throws IOException {
+            while (addressEnd + 2 <= addressBytes) {
+                int length = addressData.getShort(addressEnd) & 0xffff;
+                if (length == 0)
+                    break;
+                if (addressEnd + 2 + length > addressBytes)
+                    throw new IOException("damaged address in " + file);
+                addressEnd += 2 + length;
+                addressCount++;
+            }
+            for (long slot = 0; slot < capacity; slot++) {
+                ByteBuffer segment = segment(slot);
+                int pos = offset(slot);
+                byte state = segment.get(pos);
+                if (state == DELETED) {
+                    deleted++;
+                } else if (state == USED) {
+                    int address = segment.getInt(pos + 1 + HASH_LENGTH + 4 + 8);
+                    if (address < 0 || address >= addressEnd)
+                        throw new IOException("damaged record in " + file);
+                    used++;
+                } else if (state != EMPTY) {
+                    throw new IOException("damaged record in " + file);
+                }
+            }
+        }
+
+        private void share(MappedUTXOStore store) {
+            sharers.add(new WeakReference<>(store));
+        }
+
+        /** Drops the stores that were garbage collected without being closed */
+        private void purge() {
+            Iterator<WeakReference<MappedUTXOStore>> refs = sharers.iterator();
+            while (refs.hasNext()) {
+                if (refs.next().get() == null)
+                    refs.remove();
+            }
+        }
+
+        private boolean isWritableBy(MappedUTXOStore store) {
+            purge();
+            return sharers.size() == 1 && (!persistent || owner == store);
+        }
+
+        /** Moves every store but {@code keeper} to a copy of the file in {@code directory} */
+        private void moveOthers(MappedUTXOStore keeper, File directory) {
+            purge();
+            if (sharers.size() < 2)
+                return;
+            Table copy = copyTo(scratchFile(directory));
+            WeakReference<MappedUTXOStore> kept = null;
+            for (WeakReference<MappedUTXOStore> ref : sharers) {
+                MappedUTXOStore store = ref.get();
+                if (store == keeper) {
+                    kept = ref;
+                } else if (store != null) {
+                    store.table = copy;
+                    copy.sharers.add(ref);
+                }
+            }
+            sharers.clear();
+            sharers.add(kept);
+        }
+
+        /**
+         * Drops {@code store}, unmapping the file when it was the last store using it, and
+         * deleting it unless it was opened or created by name
+         */
+        private void release(MappedUTXOStore store) {
+            Iterator<WeakReference<MappedUTXOStore>> refs = sharers.iterator();
+            while (refs.hasNext()) {
+                MappedUTXOStore sharer = refs.next().get();
+                if (sharer == null || sharer == store)
+                    refs.remove();
+            }
+            if (!sharers.isEmpty())
+                return;
+            unmap(buffers());
+            try {
+                raf.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (!persistent)
+                file.delete();
+        }
+
+        private void force() {
+            for (MappedByteBuffer buffer : buffers())
+                buffer.force();
+        }
+
+        /** @return a scratch table with a copy of this one's file in {@code target} */
+        private Table copyTo(File target) {
+            try {
+                Table copy = create(target, false, capacity, addressSlots, addressBytes);
+                FileChannel from = raf.getChannel();
+                long length = length();
+                for (long pos = 0; pos < length; )
+                    pos += from.transferTo(pos, length - pos, copy.raf.getChannel());
+                copy.used = used;
+                copy.deleted = deleted;
+                copy.addressCount = addressCount;
+                copy.addressEnd = addressEnd;
+                return copy;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private long value(long slot) {
+            return segment(slot).getLong(offset(slot) + 1 + HASH_LENGTH + 4);
+        }
+
+        private PublicKey address(long slot) {
+            int offset = segment(slot).getInt(offset(slot) + 1 + HASH_LENGTH + 4 + 8);
+            PublicKey address = decoded.get(offset);
+            if (address == null) {
+                byte[] encoded = new byte[addressData.getShort(offset) & 0xffff];
+                for (int i = 0; i < encoded.length; i++)
+                    encoded[i] = addressData.get(offset + 2 + i);
+                try {
+                    if (keyFactory == null)
+                        keyFactory = KeyFactory.getInstance("RSA");
+                    address = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("damaged address in " + file, e);
+                }
+                decoded.put(offset, address);
+            }
+            return address;
+        }
+
+        /** @return true if {@code utxo} was not in the table before */
+        private boolean put(UTXO utxo, long value, PublicKey address) {
+            Integer known = offsets.get(address);
+            int addressOffset = known == null ? -1 : known;
+            byte[] encoded = null;
+            int addressHash = 0;
+            if (known == null) {
+                encoded = address.getEncoded();
+                if (encoded.length > 0xffff)
+                    throw new IllegalArgumentException("address encoding too long");
+                addressHash = Arrays.hashCode(encoded);
+                addressOffset = findAddress(encoded, addressHash);
+            }
+            long slot = find(utxo);
+            boolean added = slot < 0;
+            boolean moreRecords = added && used + deleted + 1 > capacity * MAX_LOAD;
+            boolean moreAddresses = addressOffset < 0
+                    && (addressEnd + 2 + encoded.length > addressBytes
+                            || addressCount + 1 > addressSlots * MAX_LOAD);
+            if (moreRecords || moreAddresses) {
+                rebuild(moreRecords && used + 1 > capacity * MAX_LOAD / 2 ? capacity * 2 : capacity,
+                        addressOffset < 0 ? 2 + encoded.length : 0);
+                // every offset may have changed, and there is room now
+                return put(utxo, value, address);
+            }
+            if (addressOffset < 0)
+                addressOffset = appendAddress(encoded, addressHash);
+            offsets.put(address, addressOffset);
+            if (added) {
+                slot = insertSlot(utxo);
+                ByteBuffer segment = segment(slot);
+                int pos = offset(slot);
+                if (segment.get(pos) == DELETED)
+                    deleted--;
+                segment.put(pos, USED);
+                byte[] hash = utxo.getTxHash();
+                for (int i = 0; i < HASH_LENGTH; i++)
+                    segment.put(pos + 1 + i, hash[i]);
+                segment.putInt(pos + 1 + HASH_LENGTH, utxo.getIndex());
+                used++;
+            }
+            ByteBuffer segment = segment(slot);
+            int pos = offset(slot);
+            segment.putLong(pos + 1 + HASH_LENGTH + 4, value);
+            segment.putInt(pos + 1 + HASH_LENGTH + 4 + 8, addressOffset);
+            return added;
+        }
+
+        /** @return true if {@code utxo} was in the table */
+        private boolean remove(UTXO utxo) {
+            long slot = find(utxo);
+            if (slot < 0)
+                return false;
+            segment(slot).put(offset(slot), DELETED);
+            used--;
+            deleted++;
+            return true;
+        }
+
+        private ArrayList<UTXO> keys() {
+            ArrayList<UTXO> keys = new ArrayList<>(used);
+            byte[] hash = new byte[HASH_LENGTH];
+            for (long slot = 0; slot < capacity; slot++) {
+                ByteBuffer segment = segment(slot);
+                int pos = offset(slot);
+                if (segment.get(pos) != USED)
+                    continue;
+                for (int i = 0; i < HASH_LENGTH; i++)
+                    hash[i] = segment.get(pos + 1 + i);
+                keys.add(new UTXO(hash, segment.getInt(pos + 1 + HASH_LENGTH)));
+            }
+            return keys;
+        }
+
+        /** @return the offset of the address encoded as {@code encoded}, or -1 if there is none */
+        private int findAddress(byte[] encoded, int addressHash) {
+            int mask = addressSlots - 1;
+            for (int slot = mix(addressHash) & mask; ; slot = (slot + 1) & mask) {
+                int stored = addressIndex.getInt(slot * ADDRESS_SLOT);
+                if (stored == 0)
+                    return -1;
+                if (addressIndex.getInt(slot * ADDRESS_SLOT + 4) == addressHash
+                        && sameAddress(stored - 1, encoded))
+                    return stored - 1;
+            }
+        }
+
+        private boolean sameAddress(int offset, byte[] encoded) {
+            if ((addressData.getShort(offset) & 0xffff) != encoded.length)
+                return false;
+            for (int i = 0; i < encoded.length; i++) {
+                if (addressData.get(offset + 2 + i) != encoded[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /** @return the offset of {@code encoded}, stored after the last address, which has room */
+        private int appendAddress(byte[] encoded, int addressHash) {
+            int offset = addressEnd;
+            addressData.putShort(offset, (short) encoded.length);
+            for (int i = 0; i < encoded.length; i++)
+                addressData.put(offset + 2 + i, encoded[i]);
+            addressEnd += 2 + encoded.length;
+            addressCount++;
+            int mask = addressSlots - 1;
+            int slot = mix(addressHash) & mask;
+            while (addressIndex.getInt(slot * ADDRESS_SLOT) != 0)
+                slot = (slot + 1) & mask;
+            addressIndex.putInt(slot * ADDRESS_SLOT, offset + 1);
+            addressIndex.putInt(slot * ADDRESS_SLOT + 4, addressHash);
+            return offset;
+        }
+
+        /** @return the slot holding {@code utxo}, or a negative number if it is not in the table */
+        private long find(UTXO utxo) {
+            long mask = capacity - 1;
+            byte[] txHash = utxo.getTxHash();
+            for (long slot = hash(utxo) & mask; ; slot = (slot + 1) & mask) {
+                ByteBuffer segment = segment(slot);
+                int pos = offset(slot);
+                byte state = segment.get(pos);
+                if (state == EMPTY)
+                    return -1;
+                if (state == USED && segment.getInt(pos + 1 + HASH_LENGTH) == utxo.getIndex()
+                        && sameHash(segment, pos + 1, txHash))
+                    return slot;
+            }
+        }
+
+        /** @return the first empty or deleted slot for {@code utxo}, which is not in the table */
+        private long insertSlot(UTXO utxo) {
+            long mask = capacity - 1;
+            for (long slot = hash(utxo) & mask; ; slot = (slot + 1) & mask) {
+                if (segment(slot).get(offset(slot)) != USED)
+                    return slot;
+            }
+        }
+
+        private ByteBuffer segment(long slot) {
+            return segments[(int) (slot >>> SEGMENT_BITS)];
+        }
+
+        /**
+         * Moves every record to a new file of {@code slots} records, next to the current one,
+         * dropping deleted records and the addresses no record refers to any more, and leaving
+         * room for {@code moreAddressBytes} bytes of new addresses. A file kept by name is
+         * replaced by renaming the new one over it once it is written and forced.
+         */
+        private void rebuild(int slots, int moreAddressBytes) {
+            // the addresses still in use, each to its offset in the new file once it is there
+            HashMap<Integer, Integer> moved = new HashMap<>();
+            long liveBytes = 0;
+            for (long slot = 0; slot < capacity; slot++) {
+                ByteBuffer segment = segment(slot);
+                int pos = offset(slot);
+                if (segment.get(pos) != USED)
+                    continue;
+                int address = segment.getInt(pos + 1 + HASH_LENGTH + 4 + 8);
+                if (moved.put(address, -1) == null)
+                    liveBytes += 2 + (addressData.getShort(address) & 0xffff);
+            }
+            long bytes = Math.max(MIN_ADDRESS_BYTES, 2 * (liveBytes + moreAddressBytes));
+            if (bytes > Integer.MAX_VALUE)
+                throw new IllegalStateException("too many addresses for one file");
+            File parent = file.getAbsoluteFile().getParentFile();
+            Table next;
+            try {
+                next = create(scratchFile(parent), false, slots, slots(2 * (moved.size() + 1)),
+                        (int) bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            long mask = slots - 1;
+            byte[] record = new byte[RECORD];
+            byte[] txHash = new byte[HASH_LENGTH];
+            for (long slot = 0; slot < capacity; slot++) {
+                ByteBuffer from = segment(slot);
+                int pos = offset(slot);
+                if (from.get(pos) != USED)
+                    continue;
+                for (int i = 0; i < RECORD; i++)
+                    record[i] = from.get(pos + i);
+                System.arraycopy(record, 1, txHash, 0, HASH_LENGTH);
+                ByteBuffer fields = ByteBuffer.wrap(record);
+                UTXO utxo = new UTXO(txHash, fields.getInt(1 + HASH_LENGTH));
+                int address = fields.getInt(1 + HASH_LENGTH + 4 + 8);
+                int to = moved.get(address);
+                if (to < 0) {
+                    byte[] encoded = new byte[addressData.getShort(address) & 0xffff];
+                    for (int i = 0; i < encoded.length; i++)
+                        encoded[i] = addressData.get(address + 2 + i);
+                    to = next.appendAddress(encoded, Arrays.hashCode(encoded));
+                    moved.put(address, to);
+                }
+                fields.putInt(1 + HASH_LENGTH + 4 + 8, to);
+                long toSlot = hash(utxo) & mask;
+                while (next.segment(toSlot).get(offset(toSlot)) != EMPTY)
+                    toSlot = (toSlot + 1) & mask;
+                ByteBuffer segment = next.segment(toSlot);
+                int toPos = offset(toSlot);
+                for (int i = 0; i < RECORD; i++)
+                    segment.put(toPos + i, record[i]);
+                next.used++;
+            }
+            unmap(buffers());
+            try {
+                raf.close();
+                if (persistent) {
+                    next.force();
+                    Files.move(next.file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    file.delete();
+                    file = next.file;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            raf = next.raf;
+            header = next.header;
+            segments = next.segments;
+            addressIndex = next.addressIndex;
+            addressData = next.addressData;
+            capacity = next.capacity;
+            addressSlots = next.addressSlots;
+            addressBytes = next.addressBytes;
+            used = next.used;
+            deleted = 0;
+            addressCount = next.addressCount;
+            addressEnd = next.addressEnd;
+            decoded.clear();
+            offsets.clear();
+        }
+    }
+}
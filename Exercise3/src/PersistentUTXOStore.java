@@ -0,0 +1,300 @@
+import java.util.ArrayList;
+
+/**
+ * A {@link UTXOStore} backed by a persistent hash array mapped trie. {@link #copy()} takes O(1):
+ * the copy shares every node with this store, and a shared node is only copied when one of them
+ * changes it. A pool copied from its parent block's pool therefore costs time and memory
+ * proportional to the UTXOs its block adds and removes, not to the size of the UTXO set.
+ *
+ * <p>
+ * Nodes remember the edit token of the store that created them. A store changes its own nodes in
+ * place and copies any other node along the path it changes; {@link #copy()} gives both stores
+ * new tokens, so from then on all existing nodes are shared and never changed.
+ */
+public class PersistentUTXOStore implements UTXOStore {
+
+    /** bits of the hash code consumed per trie level */
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final Object NOT_FOUND = new Object();
+
+    private Object edit;
+    private Node root;
+    private int size;
+
+    public PersistentUTXOStore() {
+        this(null, 0);
+    }
+
+    private PersistentUTXOStore(Node root, int size) {
+        this.root = root;
+        this.size = size;
+        edit = new Object();
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        if (root == null)
+            return null;
+        return (Transaction.Output) root.find(utxo, utxo.hashCode(), 0, null);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        boolean[] added = new boolean[1];
+        Node node = root == null ? new BitmapNode(edit, 0, new Object[0]) : root;
+        root = node.put(edit, 0, utxo.hashCode(), utxo, txOut, added);
+        if (added[0])
+            size++;
+    }
+
+    public void remove(UTXO utxo) {
+        if (root == null)
+            return;
+        boolean[] removed = new boolean[1];
+        root = root.remove(edit, 0, utxo.hashCode(), utxo, removed);
+        if (removed[0])
+            size--;
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return root != null && root.find(utxo, utxo.hashCode(), 0, NOT_FOUND) != NOT_FOUND;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        if (root != null)
+            root.collectKeys(keys);
+        return keys;
+    }
+
+    public PersistentUTXOStore copy() {
+        edit = new Object();
+        return new PersistentUTXOStore(root, size);
+    }
+
+    private interface Node {
+        /** @return the value mapped to {@code key}, or {@code notFound} */
+        Object find(UTXO key, int hash, int shift, Object notFound);
+
+        /** @return the node replacing this one, which may be this node changed in place */
+        Node put(Object edit, int shift, int hash, UTXO key, Object value, boolean[] added);
+
+        /** @return the node replacing this one, or null if it is now empty */
+        Node remove(Object edit, int shift, int hash, UTXO key, boolean[] removed);
+
+        void collectKeys(ArrayList<UTXO> keys);
+    }
+
+    /**
+     * An inner node with a slot for each set bit of {@code bitmap}. Each slot takes two array
+     * entries: a key and its value, or null and the child node for the slot.
+     */
+    private static class BitmapNode implements Node {
+        private final Object edit;
+        private int bitmap;
+        private Object[] array;
+
+        private BitmapNode(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        public Object find(UTXO key, int hash, int shift, Object notFound) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return notFound;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null)
+                return ((Node) v).find(key, hash, shift + BITS, notFound);
+            return key.equals(k) ? v : notFound;
+        }
+
+        public Node put(Object edit, int shift, int hash, UTXO key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object k = array[2 * idx];
+                Object v = array[2 * idx + 1];
+                if (k == null) {
+                    Node child = ((Node) v).put(edit, shift + BITS, hash, key, value, added);
+                    return child == v ? this : editAndSet(edit, 2 * idx + 1, child);
+                }
+                if (key.equals(k))
+                    return v == value ? this : editAndSet(edit, 2 * idx + 1, value);
+                added[0] = true;
+                Node child = createNode(edit, shift + BITS, (UTXO) k, v, hash, key, value);
+                BitmapNode node = editable(edit);
+                node.array[2 * idx] = null;
+                node.array[2 * idx + 1] = child;
+                return node;
+            }
+            added[0] = true;
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[2 * (n + 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            newArray[2 * idx] = key;
+            newArray[2 * idx + 1] = value;
+            System.arraycopy(array, 2 * idx, newArray, 2 * (idx + 1), 2 * (n - idx));
+            if (this.edit == edit) {
+                array = newArray;
+                bitmap |= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, newArray);
+        }
+
+        public Node remove(Object edit, int shift, int hash, UTXO key, boolean[] removed) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(edit, shift + BITS, hash, key, removed);
+                if (child == v)
+                    return this;
+                if (child != null)
+                    return editAndSet(edit, 2 * idx + 1, child);
+            } else if (!key.equals(k)) {
+                return this;
+            } else {
+                removed[0] = true;
+            }
+            if (bitmap == bit)
+                return null;
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[2 * (n - 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            System.arraycopy(array, 2 * (idx + 1), newArray, 2 * idx, 2 * (n - idx - 1));
+            if (this.edit == edit) {
+                array = newArray;
+                bitmap ^= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap ^ bit, newArray);
+        }
+
+        public void collectKeys(ArrayList<UTXO> keys) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null)
+                    ((Node) array[i + 1]).collectKeys(keys);
+                else
+                    keys.add((UTXO) array[i]);
+            }
+        }
+
+        private BitmapNode editable(Object edit) {
+            if (this.edit == edit)
+                return this;
+            return new BitmapNode(edit, bitmap, array.clone());
+        }
+
+        private BitmapNode editAndSet(Object edit, int i, Object o) {
+            BitmapNode node = editable(edit);
+            node.array[i] = o;
+            return node;
+        }
+
+        /** @return a node holding both mappings, which are known to have different keys */
+        private static Node createNode(Object edit, int shift, UTXO key1, Object value1, int hash2,
+                UTXO key2, Object value2) {
+            int hash1 = key1.hashCode();
+            if (hash1 == hash2)
+                return new CollisionNode(edit, hash1, new Object[] { key1, value1, key2, value2 });
+            boolean[] added = new boolean[1];
+            return new BitmapNode(edit, 0, new Object[0])
+                    .put(edit, shift, hash1, key1, value1, added)
+                    .put(edit, shift, hash2, key2, value2, added);
+        }
+    }
+
+    /** A leaf holding keys whose hash codes are all equal, as key and value pairs */
+    private static class CollisionNode implements Node {
+        private final Object edit;
+        private final int hash;
+        private Object[] array;
+
+        private CollisionNode(Object edit, int hash, Object[] array) {
+            this.edit = edit;
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(UTXO key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i]))
+                    return i;
+            }
+            return -1;
+        }
+
+        public Object find(UTXO key, int hash, int shift, Object notFound) {
+            int i = indexOf(key);
+            return i < 0 ? notFound : array[i + 1];
+        }
+
+        public Node put(Object edit, int shift, int hash, UTXO key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                // push this node one level down, next to the new key
+                Object[] slot = new Object[] { null, this };
+                return new BitmapNode(edit, BitmapNode.bit(this.hash, shift), slot)
+                        .put(edit, shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value)
+                    return this;
+                Object[] newArray = this.edit == edit ? array : array.clone();
+                newArray[i + 1] = value;
+                return newArray == array ? this : new CollisionNode(edit, hash, newArray);
+            }
+            added[0] = true;
+            Object[] newArray = new Object[array.length + 2];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            if (this.edit == edit) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(edit, hash, newArray);
+        }
+
+        public Node remove(Object edit, int shift, int hash, UTXO key, boolean[] removed) {
+            int i = indexOf(key);
+            if (i < 0)
+                return this;
+            removed[0] = true;
+            if (array.length == 2)
+                return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+            if (this.edit == edit) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(edit, hash, newArray);
+        }
+
+        public void collectKeys(ArrayList<UTXO> keys) {
+            for (int i = 0; i < array.length; i += 2)
+                keys.add((UTXO) array[i]);
+        }
+    }
+}
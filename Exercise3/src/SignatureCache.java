@@ -0,0 +1,162 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A bounded, thread safe record of signatures that have already been verified successfully, so
+ * a transaction seen in the pool, in a new block and in every competing fork block only has its
+ * signatures checked once.
+ *
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the key, the signed data of the input and the
+ * signature, each preceded by its length so that moving bytes from one field to the next gives
+ * a different key, rather than by the hash a transaction claims for itself, which is never recomputed
+ * by the handlers. When full, the least recently used entry is dropped.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private static final SignatureCache INSTANCE = new SignatureCache(DEFAULT_CAPACITY);
+
+    private final LinkedHashMap<ByteBuffer, Boolean> verified;
+    private long hits;
+    private long misses;
+
+    /** Creates an empty cache holding at most {@code capacity} verified signatures */
+    public SignatureCache(final int capacity) {
+        verified = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** @return the cache shared by every handler in the process */
+    public static SignatureCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Same as {@link Crypto#verifySignature(PublicKey, byte[], byte[])}, but skips the check if
+     * this exact signature has been verified before.
+     */
+    public boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (pubKey == null || message == null || signature == null)
+            return Crypto.verifySignature(pubKey, message, signature);
+        ByteBuffer key = key(pubKey, message, signature);
+        synchronized (verified) {
+            if (verified.get(key) != null) {
+                hits++;
+                return true;
+            }
+            misses++;
+        }
+        if (!Crypto.verifySignature(pubKey, message, signature))
+            return false;
+        synchronized (verified) {
+            verified.put(key, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link Crypto#verifyAll(PublicKey[], byte[][], byte[][], ForkJoinPool)}, but only
+     * runs the signature algorithm for the signatures not verified before, and records those it
+     * finds valid.
+     */
+    public BitSet verifyAll(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures,
+            ForkJoinPool pool) {
+        int n = pubKeys.length;
+        if (messages.length != n || signatures.length != n)
+            throw new IllegalArgumentException("keys, messages and signatures differ in length");
+        ByteBuffer[] keys = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            if (pubKeys[i] != null && messages[i] != null && signatures[i] != null)
+                keys[i] = key(pubKeys[i], messages[i], signatures[i]);
+        }
+        BitSet result = new BitSet(n);
+        int[] missed = new int[n];
+        int count = 0;
+        synchronized (verified) {
+            for (int i = 0; i < n; i++) {
+                if (keys[i] != null && verified.get(keys[i]) != null) {
+                    hits++;
+                    result.set(i);
+                    continue;
+                }
+                if (keys[i] != null)
+                    misses++;
+                missed[count++] = i;
+            }
+        }
+        PublicKey[] missedKeys = new PublicKey[count];
+        byte[][] missedMessages = new byte[count][];
+        byte[][] missedSignatures = new byte[count][];
+        for (int j = 0; j < count; j++) {
+            missedKeys[j] = pubKeys[missed[j]];
+            missedMessages[j] = messages[missed[j]];
+            missedSignatures[j] = signatures[missed[j]];
+        }
+        BitSet valid = Crypto.verifyAll(missedKeys, missedMessages, missedSignatures, pool);
+        synchronized (verified) {
+            for (int j = valid.nextSetBit(0); j >= 0; j = valid.nextSetBit(j + 1)) {
+                int i = missed[j];
+                result.set(i);
+                if (keys[i] != null)
+                    verified.put(keys[i], Boolean.TRUE);
+            }
+        }
+        return result;
+    }
+
+    /** @return the number of verifications answered from the cache */
+    public long getHits() {
+        synchronized (verified) {
+            return hits;
+        }
+    }
+
+    /** @return the number of verifications that had to run the signature algorithm */
+    public long getMisses() {
+        synchronized (verified) {
+            return misses;
+        }
+    }
+
+    /** @return the number of signatures currently cached */
+    public int size() {
+        synchronized (verified) {
+            return verified.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (verified) {
+            verified.clear();
+        }
+    }
+
+    private static ByteBuffer key(PublicKey pubKey, byte[] message, byte[] signature) {
+        byte[] encodedKey = pubKey.getEncoded();
+        MessageDigest md = Crypto.sha256();
+        updateField(md, encodedKey);
+        updateField(md, message);
+        updateField(md, signature);
+        return ByteBuffer.wrap(md.digest());
+    }
+
+    private static void updateField(MessageDigest md, byte[] field) {
+        int n = field.length;
+        md.update((byte) (n >>> 24));
+        md.update((byte) (n >>> 16));
+        md.update((byte) (n >>> 8));
+        md.update((byte) n);
+        md.update(field);
+    }
+}
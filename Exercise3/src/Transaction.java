@@ -1,19 +1,21 @@
 
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Transaction {
 
+    /** number of base units in one coin; amounts are whole numbers of base units */
+    public static final long COIN = 100000000;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
-        public byte[] prevTxHash;
+        public final byte[] prevTxHash;
         /** used output's index in the previous transaction */
-        public int outputIndex;
+        public final int outputIndex;
         /** the signature produced to check validity */
         public byte[] signature;
 
@@ -30,13 +32,20 @@ public class Transaction {
                 signature = null;
             else
                 signature = Arrays.copyOf(sig, sig.length);
+            changed();
+        }
+
+        /** @return the number of bytes this input takes in {@link #getRawTx()} */
+        private int rawLength() {
+            return (prevTxHash == null ? 0 : prevTxHash.length) + Integer.SIZE / 8
+                    + (signature == null ? 0 : signature.length);
         }
 
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
             }
-            if (getClass() != other.getClass()) {
+            if (!(other instanceof Input)) {
                 return false;
             }
 
@@ -69,16 +78,31 @@ public class Transaction {
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units, {@link Transaction#COIN} to a coin */
+        public final long value;
         /** the address or public key of the recipient */
-        public PublicKey address;
+        public final PublicKey address;
+
+        /** serialized exponent and modulus of {@code address}, built on first use */
+        private byte[] addressBytes;
 
-        public Output(double v, PublicKey addr) {
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        /** @return the serialized exponent followed by the modulus of {@code address} */
+        private byte[] getAddressBytes() {
+            if (addressBytes == null) {
+                byte[] exponent = ((RSAPublicKey) address).getPublicExponent().toByteArray();
+                byte[] modulus = ((RSAPublicKey) address).getModulus().toByteArray();
+                byte[] bytes = Arrays.copyOf(exponent, exponent.length + modulus.length);
+                System.arraycopy(modulus, 0, bytes, exponent.length, modulus.length);
+                addressBytes = bytes;
+            }
+            return addressBytes;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -102,7 +126,7 @@ public class Transaction {
 
         public int hashCode() {
             int hash = 1;
-            hash = hash * 17 + (int) value * 10000;
+            hash = hash * 17 + Long.hashCode(value);
             hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
             hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
             return hash;
@@ -114,6 +138,20 @@ public class Transaction {
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
     private boolean coinbase;
+    /**
+     * Serialized transaction and serialized outputs, built on first use and dropped whenever the
+     * transaction is changed through its methods. Inputs and outputs should therefore not be
+     * modified through their public fields once the transaction has been serialized.
+     */
+    private volatile byte[] rawTx;
+    private volatile byte[] rawOutputs;
+    /**
+     * Set once the transaction is added to a block. Its changes are then counted in
+     * {@link #BLOCK_TX_CHANGES}, so a block can tell in constant time that none of its Merkle
+     * leaves can have changed.
+     */
+    private volatile boolean inBlock;
+    private static final AtomicLong BLOCK_TX_CHANGES = new AtomicLong();
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -121,15 +159,23 @@ public class Transaction {
         coinbase = false;
     }
 
+    /** Creates a copy of {@code tx}, with copies of its inputs and outputs */
     public Transaction(Transaction tx) {
         hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            Input copy = new Input(in.prevTxHash, in.outputIndex);
+            copy.addSignature(in.signature);
+            inputs.add(copy);
+        }
+        outputs = new ArrayList<Output>(tx.outputs.size());
+        for (Output op : tx.outputs)
+            outputs.add(new Output(op.value, op.address));
         coinbase = false;
     }
 
     /** create a coinbase transaction of value {@code coin} and calls finalize on it */
-    public Transaction(double coin, PublicKey address) {
+    public Transaction(long coin, PublicKey address) {
         coinbase = true;
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
@@ -144,15 +190,19 @@ public class Transaction {
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        changed();
     }
 
-    public void addOutput(double value, PublicKey address) {
+    public void addOutput(long value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        rawOutputs = null;
+        changed();
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        changed();
     }
 
     public void removeInput(UTXO ut) {
@@ -161,6 +211,7 @@ public class Transaction {
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
+                changed();
                 return;
             }
         }
@@ -168,98 +219,130 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        byte[] outputsData = getRawOutputs();
+        ByteBuffer sigData = ByteBuffer.allocate((prevTxHash == null ? 0 : prevTxHash.length)
+                + Integer.SIZE / 8 + outputsData.length);
         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        sigData.put(outputsData);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
+    /** @return a copy of the serialized transaction, which the caller is free to change */
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        return rawTxBytes().clone();
+    }
+
+    /**
+     * @return the serialized transaction itself, cached until the transaction changes and never
+     *         copied, for hashing and writing blocks. It must not be changed.
+     */
+    byte[] rawTxBytes() {
+        byte[] tx = rawTx;
+        if (tx == null) {
+            byte[] outputsData = getRawOutputs();
+            int length = outputsData.length;
+            for (Input in : inputs)
+                length += in.rawLength();
+            ByteBuffer rawData = ByteBuffer.allocate(length);
+            for (Input in : inputs) {
+                if (in.prevTxHash != null)
+                    rawData.put(in.prevTxHash);
+                rawData.putInt(in.outputIndex);
+                if (in.signature != null)
+                    rawData.put(in.signature);
+            }
+            rawData.put(outputsData);
+            tx = rawData.array();
+            rawTx = tx;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
         return tx;
     }
 
-    public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+    /** @return the length of {@link #getRawTx()}, the bytes the transaction takes in a block */
+    public int getRawLength() {
+        return rawTxBytes().length;
+    }
+
+    /** @return the serialized outputs, shared by {@link #getRawTx()} and every signed input */
+    private byte[] getRawOutputs() {
+        byte[] data = rawOutputs;
+        return data != null ? data : buildRawOutputs();
+    }
+
+    /** synchronized as the outputs cache their encoded keys without any locking of their own */
+    private synchronized byte[] buildRawOutputs() {
+        byte[] data = rawOutputs;
+        if (data == null) {
+            int length = 0;
+            for (Output op : outputs)
+                length += Long.SIZE / 8 + op.getAddressBytes().length;
+            ByteBuffer rawData = ByteBuffer.allocate(length);
+            for (Output op : outputs) {
+                rawData.putLong(op.value);
+                rawData.put(op.getAddressBytes());
+            }
+            data = rawData.array();
+            rawOutputs = data;
         }
+        return data;
+    }
+
+    public void finalize() {
+        hash = Crypto.sha256(rawTxBytes());
+        hashChanged();
     }
 
     public void setHash(byte[] h) {
         hash = h;
+        hashChanged();
+    }
+
+    /** drops the serialization cached before a change to the inputs or outputs */
+    private void changed() {
+        rawTx = null;
+        hashChanged();
+    }
+
+    private void hashChanged() {
+        if (inBlock)
+            BLOCK_TX_CHANGES.incrementAndGet();
+    }
+
+    /** Marks the transaction as added to a block, from which on its changes are counted */
+    void addedToBlock() {
+        inBlock = true;
+    }
+
+    /**
+     * @return the number of changes made so far to transactions added to a block, which only
+     *         grows
+     */
+    static long blockTxChanges() {
+        return BLOCK_TX_CHANGES.get();
     }
 
     public byte[] getHash() {
         return hash;
     }
 
+    /**
+     * @return the hash itself, never a copy, for keying maps and making UTXOs on hot paths. It
+     *         must not be changed.
+     */
+    byte[] hashBytes() {
+        return hash;
+    }
+
     public ArrayList<Input> getInputs() {
         return inputs;
     }
@@ -290,11 +373,9 @@ public class Transaction {
         return outputs.size();
     }
 
+    /** equal to any transaction, immutable or not, with the same inputs and outputs */
     public boolean equals(Object other) {
-        if (other == null) {
-            return false;
-        }
-        if (getClass() != other.getClass()) {
+        if (!(other instanceof Transaction)) {
             return false;
         }
 
@@ -1,38 +1,740 @@
-
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
 
+/**
+ * The unconfirmed transactions, with the graph of those spending outputs of others in the pool.
+ * Each transaction is ranked by the fee rate of its package: itself and its ancestors in the pool,
+ * which all have to go into a block before it. A child paying a high fee thus pulls its parents
+ * into a block with it.
+ *
+ * <p>
+ * The pool may be given a memory budget. Once its transactions take more, those paying the least
+ * per byte, counting what their descendants pay, are evicted with their descendants, and the
+ * minimum fee rate for a new transaction is raised above theirs. That minimum halves every
+ * {@code MIN_FEE_RATE_HALF_LIFE} milliseconds. Transactions may also expire a set time after they
+ * were added; they are kept on a timing wheel, so finding them takes time proportional to their
+ * number instead of a scan of the pool.
+ *
+ * <p>
+ * The totals over the package and over the descendants of each transaction are updated by the
+ * fee and size of the transaction added or removed, and only for its ancestors and descendants.
+ * A transaction is refused if it would have more than {@code ANCESTOR_LIMIT} transactions in its
+ * package or give one of them more than {@code DESCENDANT_LIMIT} descendants counting itself, so
+ * adding or removing one takes time bounded by these limits whatever the size of the pool.
+ *
+ * <p>
+ * The pool checks neither signatures nor conflicts, so transactions are only added through
+ * {@link BlockChain#addTransaction(Transaction)}, which validates them first, and those left
+ * without a parent are only removed by the chain, when the parent is confirmed. Others remove a
+ * transaction with {@link #removeTransactionAndDescendants(byte[])}.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    /**
+     * fee per byte, in base units, a transaction has to pay on top of the fee rate of those evicted
+     * to make room
+     */
+    public static final double INCREMENTAL_FEE_RATE = 1e-5 * Transaction.COIN;
+    public static final long MIN_FEE_RATE_HALF_LIFE = 12 * 60 * 60 * 1000L;
+    /** most transactions a package may hold, the transaction itself included */
+    public static final int ANCESTOR_LIMIT = 25;
+    /** most transactions a transaction and its descendants in the pool may add up to */
+    public static final int DESCENDANT_LIMIT = 25;
+    /** number of slots of the timing wheel, each covering an equal part of the expiry time */
+    private static final int WHEEL_SLOTS = 256;
+    /*
+     * The sizes below are estimates, not measurements: they are worked out by hand for a 64-bit
+     * HotSpot JVM with compressed references (12-byte object headers, 4-byte references, objects
+     * aligned to 8 bytes) and the default capacities of the collections, and are not checked
+     * against the running JVM. They only have to be close enough for getMemoryUsage() to track
+     * the real footprint of the pool as transactions come and go.
+     */
+    /**
+     * estimated size of an entry (80) with its empty parent and child sets (144 each), its node
+     * and key in the hash map (96), its nodes in the two fee rate indexes (40 each) and in its
+     * timing wheel slot (32), without the transaction
+     */
+    private static final long ENTRY_BYTES = 80 + 2 * 144 + 96 + 2 * 40 + 32;
+    /** estimated size of a transaction (32) with its input and output lists (40 each) */
+    private static final long TRANSACTION_BYTES = 32 + 2 * 40;
+    /**
+     * estimated size of an input without its arrays (24), with its nodes and copies of its outpoint
+     * in the spender indexes (272 for the set of spenders of its transaction, 104 in spentBy)
+     */
+    private static final long INPUT_BYTES = 24 + 272 + 104;
+    /** estimated size of an output (32), with the header of the array its address is cached in */
+    private static final long OUTPUT_BYTES = 32 + 16;
+
+    private HashMap<ByteArrayWrapper, Entry> H;
+    /** the same transactions, highest package fee rate first */
+    private TreeSet<Entry> byFeeRate;
+    /** transactions spending outputs of each transaction hash, whether it is in the pool or not */
+    private HashMap<ByteArrayWrapper, HashSet<Entry>> spenders;
+    /** the transaction spending each output spent in the pool */
+    private HashMap<UTXO, Entry> spentBy;
+    /** the same transactions, the first to evict first */
+    private TreeSet<Entry> byEvictionRate;
+    private long memoryUsage;
+    private long maxMemoryUsage = Long.MAX_VALUE;
+    private double minFeeRate;
+    private long minFeeRateTime;
+    private long expiryMillis = Long.MAX_VALUE;
+    /**
+     * transactions by the tick they expire at, each slot holding those of a single tick after
+     * {@code wheelTick}, the last tick expired; null if transactions never expire
+     */
+    private ArrayList<HashSet<Entry>> wheel;
+    private long tickMillis;
+    private long wheelTick;
+    private long removals;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        H = new HashMap<ByteArrayWrapper, Entry>();
+        byFeeRate = new TreeSet<Entry>(FEE_RATE_ORDER);
+        spenders = new HashMap<ByteArrayWrapper, HashSet<Entry>>();
+        spentBy = new HashMap<UTXO, Entry>();
+        byEvictionRate = new TreeSet<Entry>(EVICTION_ORDER);
     }
 
+    /** Creates a copy of {@code txPool}, with the same limits and minimum fee rate */
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        this();
+        maxMemoryUsage = txPool.maxMemoryUsage;
+        minFeeRate = txPool.minFeeRate;
+        minFeeRateTime = txPool.minFeeRateTime;
+        expiryMillis = txPool.expiryMillis;
+        ArrayList<Entry> entries = new ArrayList<Entry>(txPool.H.values());
+        Collections.sort(entries, TOPOLOGICAL_ORDER);
+        for (Entry entry : entries)
+            insert(entry.tx, entry.fee, entry.time);
+        if (txPool.wheel != null)
+            buildWheel(txPool.wheelTick * txPool.tickMillis);
+    }
+
+    /**
+     * Limits the pool to transactions taking an estimated {@code maxBytes} bytes of memory in all,
+     * evicting some right away if they take more, and makes transactions expire
+     * {@code expiryMillis} milliseconds after they were added; {@code Long.MAX_VALUE} for either
+     * means no limit
+     */
+    public void setLimits(long maxBytes, long expiryMillis) {
+        maxMemoryUsage = maxBytes;
+        this.expiryMillis = expiryMillis;
+        long now = System.currentTimeMillis();
+        if (expiryMillis == Long.MAX_VALUE) {
+            wheel = null;
+        } else {
+            buildWheel(now);
+            expire(now);
+        }
+        trim(now);
+    }
+
+    /**
+     * Adds {@code tx} with a fee of 0, so it comes after every transaction known to pay a fee
+     * 
+     * @see #addTransaction(Transaction, long)
+     */
+    boolean addTransaction(Transaction tx) {
+        return addTransaction(tx, 0);
+    }
+
+    /**
+     * Adds {@code tx}, which pays {@code fee}, replacing any transaction with the same hash, unless
+     * it pays less than the minimum fee rate or would break the ancestor or descendant limits.
+     * Expired transactions are removed first, and transactions are evicted afterwards if the pool
+     * is over its memory budget, possibly {@code tx} itself. The pool does not check for
+     * conflicts: an output spent by {@code tx} is recorded as spent by it even if another
+     * transaction in the pool spends it too.
+     * 
+     * @return true if {@code tx} is in the pool afterwards
+     */
+    boolean addTransaction(Transaction tx, long fee) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (fee < getMinFeeRate(now) * tx.getRawLength())
+            return false;
+        removeTransaction(tx.hashBytes());
+        if (!withinLimits(tx))
+            return false;
+        insert(tx, fee, now);
+        trim(now);
+        return H.containsKey(new ByteArrayWrapper(tx.hashBytes()));
     }
 
-    public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+    private void insert(Transaction tx, long fee, long time) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(tx.hashBytes());
+        if (H.containsKey(hash))
+            removeTransaction(tx.hashBytes());
+        Entry entry = new Entry(tx, fee, time);
+        H.put(hash, entry);
+        memoryUsage += entry.memoryUsage;
+        schedule(entry);
+        for (Transaction.Input in : tx.getInputs()) {
+            ByteArrayWrapper prevHash = new ByteArrayWrapper(in.prevTxHash);
+            Entry parent = H.get(prevHash);
+            if (parent != null) {
+                entry.parents.add(parent);
+                parent.children.add(entry);
+            }
+            HashSet<Entry> s = spenders.get(prevHash);
+            if (s == null) {
+                s = new HashSet<Entry>();
+                spenders.put(prevHash, s);
+            }
+            s.add(entry);
+            spentBy.put(new UTXO(in.prevTxHash, in.outputIndex), entry);
+        }
+        // transactions added before this one, their parent
+        HashSet<Entry> waiting = spenders.get(hash);
+        if (waiting != null) {
+            for (Entry child : waiting) {
+                child.parents.add(entry);
+                entry.children.add(child);
+            }
+        }
+        LinkedHashSet<Entry> ancestors = ancestors(entry, Collections.<Entry> emptySet());
+        LinkedHashSet<Entry> descendants = descendants(entry);
+        if (descendants.isEmpty()) {
+            // the usual case: it was not in any package or below any transaction before
+            for (Entry a : ancestors) {
+                entry.packageFee += a.fee;
+                entry.packageSize += a.size;
+                entry.packageCount++;
+                addToDescendants(a, entry, 1);
+            }
+            byFeeRate.add(entry);
+            byEvictionRate.add(entry);
+        } else {
+            // its descendants may already count some of its ancestors through another parent
+            updatePackage(entry);
+            for (Entry d : descendants)
+                updatePackage(d);
+            ancestors.add(entry);
+            for (Entry a : ancestors)
+                updateDescendantTotals(a);
+        }
     }
 
-    public void removeTransaction(byte[] txHash) {
+    /**
+     * Removes the transaction {@code txHash}, leaving its descendants in the pool, as when it has
+     * been confirmed
+     */
+    void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Entry entry = H.remove(hash);
+        if (entry == null)
+            return;
+        removals++;
+        byFeeRate.remove(entry);
+        byEvictionRate.remove(entry);
+        memoryUsage -= entry.memoryUsage;
+        if (wheel != null)
+            wheel.get((int) (entry.expiryTick % WHEEL_SLOTS)).remove(entry);
+        LinkedHashSet<Entry> ancestors = ancestors(entry, Collections.<Entry> emptySet());
+        LinkedHashSet<Entry> descendants = descendants(entry);
+        for (Transaction.Input in : entry.tx.getInputs()) {
+            ByteArrayWrapper prevHash = new ByteArrayWrapper(in.prevTxHash);
+            HashSet<Entry> s = spenders.get(prevHash);
+            if (s != null && s.remove(entry) && s.isEmpty())
+                spenders.remove(prevHash);
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            if (spentBy.get(ut) == entry)
+                spentBy.remove(ut);
+        }
+        for (Entry parent : entry.parents)
+            parent.children.remove(entry);
+        for (Entry child : entry.children)
+            child.parents.remove(entry);
+        if (ancestors.isEmpty() || descendants.isEmpty()) {
+            // nothing else links its ancestors to its descendants, so only it leaves their totals
+            for (Entry d : descendants)
+                addToPackage(d, entry, -1);
+            for (Entry a : ancestors)
+                addToDescendants(a, entry, -1);
+        } else {
+            // some of its descendants may no longer descend from some of its ancestors
+            for (Entry d : descendants)
+                updatePackage(d);
+            for (Entry a : ancestors)
+                updateDescendantTotals(a);
+        }
+    }
+
+    /** Removes the transaction {@code txHash} and all its descendants in the pool */
+    public void removeTransactionAndDescendants(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        if (entry == null)
+            return;
+        // children first, so each removal only takes it out of the totals of its ancestors
+        ArrayList<Entry> doomed = new ArrayList<Entry>(descendants(entry));
+        Collections.sort(doomed, Collections.reverseOrder(TOPOLOGICAL_ORDER));
+        for (Entry e : doomed)
+            removeTransaction(e.hash);
+        removeTransaction(txHash);
+    }
+
+    /**
+     * Removes the transactions that have expired by {@code now}, in milliseconds since the epoch,
+     * with their descendants, taking time proportional to their number and the ticks of the timing
+     * wheel passed since the last call
+     */
+    public void expire(long now) {
+        if (wheel == null)
+            return;
+        long nowTick = now / tickMillis;
+        long last = Math.min(nowTick, wheelTick + WHEEL_SLOTS);
+        for (long tick = wheelTick + 1; tick <= last; tick++) {
+            HashSet<Entry> slot = wheel.get((int) (tick % WHEEL_SLOTS));
+            for (Entry e : new ArrayList<Entry>(slot))
+                removeTransactionAndDescendants(e.hash);
+        }
+        wheelTick = Math.max(wheelTick, nowTick);
+    }
+
+    /**
+     * @return the fee per byte a transaction has to pay to be added, raised when transactions are
+     *         evicted and decaying since
+     */
+    public double getMinFeeRate() {
+        return getMinFeeRate(System.currentTimeMillis());
+    }
+
+    /** @return the estimated memory taken by the transactions in the pool, in bytes */
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * @return the number of transactions removed from the pool so far, for whatever reason, so a
+     *         caller can tell whether every transaction it saw in the pool is still there
+     */
+    public long getRemovalCount() {
+        return removals;
+    }
+
+    /** @return the transaction in the pool spending {@code utxo}, or null */
+    public Transaction getSpender(UTXO utxo) {
+        Entry entry = spentBy.get(utxo);
+        return entry == null ? null : entry.tx;
     }
 
     public Transaction getTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Entry entry = H.get(hash);
+        return entry == null ? null : entry.tx;
+    }
+
+    /** @return the fee {@code txHash} was added with, or 0 if it is not in the pool */
+    public long getFee(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        return entry == null ? 0 : entry.fee;
     }
 
     public ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        for (Entry entry : H.values())
+            T.add(entry.tx);
         return T;
     }
+
+    /**
+     * @return the packages paying the highest fee per byte, best first, whose serialized sizes add
+     *         up to at most {@code maxBytes}, with every transaction after its parents in the
+     *         pool. Once a package is taken, the packages of its descendants only count the
+     *         ancestors left out, and a package too large for the space left is skipped in favour
+     *         of smaller ones after it.
+     */
+    public ArrayList<Transaction> getTransactionsByFeeRate(long maxBytes) {
+        ArrayList<Transaction> T = new ArrayList<Transaction>();
+        HashSet<Entry> included = new HashSet<Entry>();
+        // packages that did not fit, never taken from the index again
+        HashSet<Entry> skipped = new HashSet<Entry>();
+        // descendants of included transactions, with the totals of their remaining packages
+        HashMap<Entry, Package> modified = new HashMap<Entry, Package>();
+        TreeSet<Package> modifiedOrder = new TreeSet<Package>(PACKAGE_ORDER);
+        Iterator<Entry> index = byFeeRate.iterator();
+        Entry next = null;
+        long bytes = 0;
+        while (bytes < maxBytes) {
+            if (next != null && (included.contains(next) || modified.containsKey(next)))
+                next = null;
+            while (next == null && index.hasNext()) {
+                Entry e = index.next();
+                if (!included.contains(e) && !modified.containsKey(e) && !skipped.contains(e))
+                    next = e;
+            }
+            Package best = modifiedOrder.isEmpty() ? null : modifiedOrder.first();
+            Package chosen;
+            if (next != null && (best == null
+                    || compareFeeRates(next.packageFee, next.packageSize, best.fee, best.size) >= 0)) {
+                chosen = new Package(next, next.packageFee, next.packageSize);
+                next = null;
+            } else if (best != null) {
+                modifiedOrder.pollFirst();
+                modified.remove(best.entry);
+                chosen = best;
+            } else {
+                break;
+            }
+            if (bytes + chosen.size > maxBytes) {
+                skipped.add(chosen.entry);
+                continue;
+            }
+
+            ArrayList<Entry> members = new ArrayList<Entry>(ancestors(chosen.entry, included));
+            members.add(chosen.entry);
+            Collections.sort(members, TOPOLOGICAL_ORDER);
+            for (Entry e : members) {
+                included.add(e);
+                T.add(e.tx);
+                Package p = modified.remove(e);
+                if (p != null)
+                    modifiedOrder.remove(p);
+            }
+            bytes += chosen.size;
+            // each member was counted once in the package of each of its descendants
+            for (Entry e : members) {
+                for (Entry d : descendants(e)) {
+                    if (included.contains(d))
+                        continue;
+                    Package p = modified.remove(d);
+                    if (p != null)
+                        modifiedOrder.remove(p);
+                    else
+                        p = new Package(d, d.packageFee, d.packageSize);
+                    p = new Package(d, p.fee - e.fee, p.size - e.size);
+                    modified.put(d, p);
+                    modifiedOrder.add(p);
+                }
+            }
+        }
+        return T;
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    private double getMinFeeRate(long now) {
+        if (minFeeRate > 0 && now > minFeeRateTime) {
+            minFeeRate *= Math.pow(0.5, (double) (now - minFeeRateTime) / MIN_FEE_RATE_HALF_LIFE);
+            minFeeRateTime = now;
+            if (minFeeRate < INCREMENTAL_FEE_RATE / 2)
+                minFeeRate = 0;
+        }
+        return minFeeRate;
+    }
+
+    /**
+     * Evicts the transactions with the lowest eviction rate, with their descendants, until the
+     * pool is within its memory budget
+     */
+    private void trim(long now) {
+        while (memoryUsage > maxMemoryUsage && !byEvictionRate.isEmpty()) {
+            Entry victim = byEvictionRate.first();
+            double rate = victim.evictionRate + INCREMENTAL_FEE_RATE;
+            if (rate > getMinFeeRate(now)) {
+                minFeeRate = rate;
+                minFeeRateTime = now;
+            }
+            removeTransactionAndDescendants(victim.hash);
+        }
+    }
+
+    /** Puts {@code entry} in the slot of the tick it expires at, if transactions expire */
+    private void schedule(Entry entry) {
+        if (wheel == null)
+            return;
+        long expiry = entry.time + expiryMillis;
+        long tick = expiry / tickMillis + (expiry % tickMillis == 0 ? 0 : 1);
+        // every slot holds a single tick, so one expiring later than the wheel covers, or already
+        // expired, goes in the last or first slot it can
+        entry.expiryTick = Math.max(wheelTick + 1, Math.min(tick, wheelTick + WHEEL_SLOTS));
+        wheel.get((int) (entry.expiryTick % WHEEL_SLOTS)).add(entry);
+    }
+
+    /** Rebuilds the timing wheel starting at {@code now} and schedules every transaction on it */
+    private void buildWheel(long now) {
+        // a transaction expires at most one tick late, and at most WHEEL_SLOTS - 1 ticks ahead
+        tickMillis = Math.max(1, expiryMillis / (WHEEL_SLOTS - 2) + 1);
+        wheelTick = now / tickMillis;
+        wheel = new ArrayList<HashSet<Entry>>(WHEEL_SLOTS);
+        for (int i = 0; i < WHEEL_SLOTS; i++)
+            wheel.add(new HashSet<Entry>());
+        for (Entry entry : H.values())
+            schedule(entry);
+    }
+
+    /**
+     * @return true if adding {@code tx}, which is not in the pool, keeps every package within
+     *         {@code ANCESTOR_LIMIT} transactions and every transaction within
+     *         {@code DESCENDANT_LIMIT} descendants, itself included
+     */
+    private boolean withinLimits(Transaction tx) {
+        HashSet<Entry> parents = new HashSet<Entry>();
+        for (Transaction.Input in : tx.getInputs()) {
+            Entry parent = H.get(new ByteArrayWrapper(in.prevTxHash));
+            if (parent != null)
+                parents.add(parent);
+        }
+        LinkedHashSet<Entry> ancestors = ancestors(parents, Collections.<Entry> emptySet());
+        if (ancestors.size() + 1 > ANCESTOR_LIMIT)
+            return false;
+        HashSet<Entry> waiting = spenders.get(new ByteArrayWrapper(tx.hashBytes()));
+        if (waiting == null) {
+            // the usual case: it only joins the descendants of its ancestors
+            for (Entry a : ancestors) {
+                if (a.descendantCount + 1 > DESCENDANT_LIMIT)
+                    return false;
+            }
+            return true;
+        }
+        // transactions already spending its outputs may share ancestors or descendants with it
+        LinkedHashSet<Entry> descendants = descendants(waiting);
+        if (descendants.size() + 1 > DESCENDANT_LIMIT)
+            return false;
+        for (Entry a : ancestors) {
+            LinkedHashSet<Entry> joined = descendants(a);
+            joined.addAll(descendants);
+            // joined with a itself and the transaction added
+            if (joined.size() + 2 > DESCENDANT_LIMIT)
+                return false;
+        }
+        for (Entry d : descendants) {
+            LinkedHashSet<Entry> joined = ancestors(d, Collections.<Entry> emptySet());
+            joined.addAll(ancestors);
+            if (joined.size() + 2 > ANCESTOR_LIMIT)
+                return false;
+        }
+        return true;
+    }
+
+    /** Adds {@code member}, a new ancestor of {@code entry}, to its package, or removes it if sign is -1 */
+    private void addToPackage(Entry entry, Entry member, int sign) {
+        byFeeRate.remove(entry);
+        entry.packageFee += sign * member.fee;
+        entry.packageSize += sign * member.size;
+        entry.packageCount += sign;
+        byFeeRate.add(entry);
+    }
+
+    /** Adds {@code member}, a new descendant of {@code entry}, to its totals, or removes it if sign is -1 */
+    private void addToDescendants(Entry entry, Entry member, int sign) {
+        byEvictionRate.remove(entry);
+        entry.descendantFee += sign * member.fee;
+        entry.descendantSize += sign * member.size;
+        entry.descendantCount += sign;
+        entry.updateEvictionRate();
+        byEvictionRate.add(entry);
+    }
+
+    /** Recomputes the package totals of {@code entry} from its ancestors, keeping it indexed */
+    private void updatePackage(Entry entry) {
+        byFeeRate.remove(entry);
+        entry.packageFee = entry.fee;
+        entry.packageSize = entry.size;
+        entry.packageCount = 1;
+        for (Entry a : ancestors(entry, Collections.<Entry> emptySet())) {
+            entry.packageFee += a.fee;
+            entry.packageSize += a.size;
+            entry.packageCount++;
+        }
+        byFeeRate.add(entry);
+    }
+
+    /** Recomputes the descendant totals of {@code entry}, keeping it indexed for eviction */
+    private void updateDescendantTotals(Entry entry) {
+        byEvictionRate.remove(entry);
+        entry.descendantFee = entry.fee;
+        entry.descendantSize = entry.size;
+        entry.descendantCount = 1;
+        for (Entry d : descendants(entry)) {
+            entry.descendantFee += d.fee;
+            entry.descendantSize += d.size;
+            entry.descendantCount++;
+        }
+        entry.updateEvictionRate();
+        byEvictionRate.add(entry);
+    }
+
+    /**
+     * @return an estimate of the memory taken by {@code tx} and by its entry in the pool and its
+     *         indexes, in bytes
+     */
+    private static long memoryUsage(Transaction tx) {
+        long bytes = ENTRY_BYTES + TRANSACTION_BYTES + arrayBytes(tx.hashBytes().length);
+        int inputsLength = 0;
+        for (Transaction.Input in : tx.getInputs()) {
+            int hashLength = in.prevTxHash == null ? 0 : in.prevTxHash.length;
+            int signatureLength = in.signature == null ? 0 : in.signature.length;
+            bytes += INPUT_BYTES + arrayBytes(hashLength) + arrayBytes(signatureLength);
+            inputsLength += hashLength + Integer.SIZE / 8 + signatureLength;
+        }
+        // the cached serialized transaction and outputs, and the address each output caches
+        int outputsLength = tx.getRawLength() - inputsLength;
+        bytes += arrayBytes(tx.getRawLength()) + arrayBytes(outputsLength);
+        bytes += tx.numOutputs() * (OUTPUT_BYTES - Long.SIZE / 8) + outputsLength;
+        return bytes;
+    }
+
+    /** @return the size of a byte array of {@code length}, rounded up to 8 bytes */
+    private static long arrayBytes(int length) {
+        return (16 + length + 7) & ~7L;
+    }
+
+    /** @return the ancestors of {@code entry} in the pool, leaving out those in {@code excluded} */
+    private static LinkedHashSet<Entry> ancestors(Entry entry, Set<Entry> excluded) {
+        return ancestors(entry.parents, excluded);
+    }
+
+    /** @return {@code parents} and their ancestors in the pool, leaving out those in {@code excluded} */
+    private static LinkedHashSet<Entry> ancestors(Collection<Entry> parents, Set<Entry> excluded) {
+        LinkedHashSet<Entry> found = new LinkedHashSet<Entry>();
+        ArrayList<Entry> stack = new ArrayList<Entry>(parents);
+        while (!stack.isEmpty()) {
+            Entry e = stack.remove(stack.size() - 1);
+            if (!excluded.contains(e) && found.add(e))
+                stack.addAll(e.parents);
+        }
+        return found;
+    }
+
+    /** @return the descendants of {@code entry} in the pool */
+    private static LinkedHashSet<Entry> descendants(Entry entry) {
+        return descendants(entry.children);
+    }
+
+    /** @return {@code children} and their descendants in the pool */
+    private static LinkedHashSet<Entry> descendants(Collection<Entry> children) {
+        LinkedHashSet<Entry> found = new LinkedHashSet<Entry>();
+        ArrayList<Entry> stack = new ArrayList<Entry>(children);
+        while (!stack.isEmpty()) {
+            Entry e = stack.remove(stack.size() - 1);
+            if (found.add(e))
+                stack.addAll(e.children);
+        }
+        return found;
+    }
+
+    private static int compareHashes(byte[] x, byte[] y) {
+        for (int i = 0; i < Math.min(x.length, y.length); i++) {
+            if (x[i] != y[i])
+                return x[i] < y[i] ? -1 : 1;
+        }
+        return x.length - y.length;
+    }
+
+    /**
+     * @return the sign of {@code feeA / sizeA - feeB / sizeB}, computed exactly for non-negative
+     *         fees, an empty transaction counting as one byte
+     */
+    private static int compareFeeRates(long feeA, long sizeA, long feeB, long sizeB) {
+        sizeA = Math.max(sizeA, 1);
+        sizeB = Math.max(sizeB, 1);
+        int c = Long.compare(feeA / sizeA, feeB / sizeB);
+        // the remainders are below the sizes, so their products cannot overflow
+        return c != 0 ? c : Long.compare(feeA % sizeA * sizeB, feeB % sizeB * sizeA);
+    }
+
+    /** highest package fee rate first, then highest fee, then by hash so entries never tie */
+    private static final Comparator<Entry> FEE_RATE_ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = compareFeeRates(b.packageFee, b.packageSize, a.packageFee, a.packageSize);
+            if (c == 0)
+                c = Long.compare(b.fee, a.fee);
+            return c != 0 ? c : compareHashes(a.hash, b.hash);
+        }
+    };
+
+    /** lowest eviction rate first, then by hash so entries never tie */
+    private static final Comparator<Entry> EVICTION_ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = Double.compare(a.evictionRate, b.evictionRate);
+            return c != 0 ? c : compareHashes(a.hash, b.hash);
+        }
+    };
+
+    /** fewest ancestors first, which puts every transaction after its ancestors */
+    private static final Comparator<Entry> TOPOLOGICAL_ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = Integer.compare(a.packageCount, b.packageCount);
+            return c != 0 ? c : compareHashes(a.hash, b.hash);
+        }
+    };
+
+    private static final Comparator<Package> PACKAGE_ORDER = new Comparator<Package>() {
+        public int compare(Package a, Package b) {
+            int c = compareFeeRates(b.fee, b.size, a.fee, a.size);
+            return c != 0 ? c : compareHashes(a.entry.hash, b.entry.hash);
+        }
+    };
+
+    /** a transaction in the pool, with the totals of its package */
+    private static class Entry {
+        private final Transaction tx;
+        private final byte[] hash;
+        private final long fee;
+        private final int size;
+        /** transactions in the pool this one spends outputs of, and those spending its outputs */
+        private final HashSet<Entry> parents = new HashSet<Entry>();
+        private final HashSet<Entry> children = new HashSet<Entry>();
+        /** totals over this transaction and its ancestors in the pool */
+        private long packageFee;
+        private long packageSize;
+        private int packageCount;
+        /** totals over this transaction and its descendants in the pool */
+        private long descendantFee;
+        private long descendantSize;
+        private int descendantCount;
+        /** the higher of its own fee rate and that of it with its descendants */
+        private double evictionRate;
+        /** when it was added, in milliseconds since the epoch, and the wheel tick it expires at */
+        private final long time;
+        private long expiryTick;
+        private final long memoryUsage;
+
+        private Entry(Transaction tx, long fee, long time) {
+            this.tx = tx;
+            hash = tx.hashBytes();
+            this.fee = fee;
+            size = tx.getRawLength();
+            packageFee = fee;
+            packageSize = size;
+            packageCount = 1;
+            descendantFee = fee;
+            descendantSize = size;
+            descendantCount = 1;
+            updateEvictionRate();
+            this.time = time;
+            memoryUsage = memoryUsage(tx);
+        }
+
+        private void updateEvictionRate() {
+            // a transaction paying well for itself is kept even if its descendants pay little
+            evictionRate = Math.max((double) fee / Math.max(size, 1),
+                    (double) descendantFee / Math.max(descendantSize, 1));
+        }
+    }
+
+    /** what taking {@code entry} into a block would add: it and its ancestors not yet taken */
+    private static class Package {
+        private final Entry entry;
+        private final long fee;
+        private final long size;
+
+        private Package(Entry entry, long fee, long size) {
+            this.entry = entry;
+            this.fee = fee;
+            this.size = size;
+        }
+    }
 }
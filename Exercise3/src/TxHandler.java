@@ -1,7 +1,14 @@
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 
 public class TxHandler {
     private UTXOPool utxoPool;
+    /** index of {@code utxoPool} by address, or null */
+    private AddressIndex addressIndex;
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -11,6 +18,15 @@ public class TxHandler {
         this.utxoPool = new UTXOPool(utxoPool);
     }
 
+    /**
+     * Same as {@link #TxHandler(UTXOPool)}, also keeping {@code addressIndex}, an index of
+     * {@code utxoPool}, up to date with every change {@link #handleTxs} makes to the pool
+     */
+    public TxHandler(UTXOPool utxoPool, AddressIndex addressIndex) {
+        this(utxoPool);
+        this.addressIndex = addressIndex;
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool, 
@@ -21,31 +37,46 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        double sumInputValue = 0;
-        int inputIdx = 0;
-        UTXOPool doubleSpent = new UTXOPool();
-        for(Transaction.Input input : tx.getInputs()) {
-            UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
-            // 1. Output claimed by input is in current UTXO pool
-            if (!utxoPool.contains(ut)) return false;
-            Transaction.Output output = utxoPool.getTxOutput(ut);
-            // 2. Signature is valid and 3. No double spent
-            if (!Crypto.verifySignature(output.address, tx.getRawDataToSign(inputIdx), input.signature)
-                    || doubleSpent.contains(ut)) return false;
-            sumInputValue += output.value;
-            doubleSpent.addUTXO(ut, output);
-            inputIdx++;
-        }
+        return isValidTx(tx, null);
+    }
 
-        // 4. All of tx output values are non-negative
-        double sumOutputValue = 0;
-        for(Transaction.Output output : tx.getOutputs()) {
-            if (output.value < 0) return false;
-            sumOutputValue += output.value;
-        }
+    /**
+     * Same as {@link #isValidTx(Transaction)}, reusing the signature checks of {@code check} for
+     * every input that still spends the output it was checked against.
+     */
+    private boolean isValidTx(Transaction tx, Precheck check) {
+        try {
+            long sumInputValue = 0;
+            int inputIdx = 0;
+            UTXOPool doubleSpent = new UTXOPool();
+            for(Transaction.Input input : tx.getInputs()) {
+                UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
+                // 1. Output claimed by input is in current UTXO pool
+                if (!utxoPool.contains(ut)) return false;
+                Transaction.Output output = utxoPool.getTxOutput(ut);
+                // 2. Signature is valid and 3. No double spent
+                boolean validSignature = check != null && sameOutput(check.spent[inputIdx], output)
+                        ? check.validSignatures[inputIdx]
+                        : SignatureCache.getInstance().verifySignature(output.address, tx.getRawDataToSign(inputIdx), input.signature);
+                if (!validSignature || doubleSpent.contains(ut)) return false;
+                sumInputValue = Math.addExact(sumInputValue, output.value);
+                doubleSpent.addUTXO(ut, output);
+                inputIdx++;
+            }
+
+            // 4. All of tx output values are non-negative
+            long sumOutputValue = 0;
+            for(Transaction.Output output : tx.getOutputs()) {
+                if (output.value < 0) return false;
+                sumOutputValue = Math.addExact(sumOutputValue, output.value);
+            }
 
-        // 5. Sum of all
-        return sumInputValue >= sumOutputValue;
+            // 5. Sum of all
+            return sumInputValue >= sumOutputValue;
+        } catch (ArithmeticException e) {
+            // the values add up to more than a long holds
+            return false;
+        }
     }
 
     /**
@@ -54,21 +85,36 @@ public class TxHandler {
      * updating the current UTXO pool as appropriate.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        return handleTxs(possibleTxs, null);
+    }
+
+    /**
+     * Same as {@link #handleTxs(Transaction[])}, but first runs the checks that do not depend on
+     * the order of the transactions (serialization, signatures against the spent outputs,
+     * non-negative outputs) for all of them, the signatures of the whole epoch being verified in
+     * one batch on {@code pool}. The UTXO pool is then updated sequentially in the given order, so
+     * the accepted transactions are the same.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs, ForkJoinPool pool) {
+        Precheck[] checks = pool == null ? null : precheck(possibleTxs, pool);
+
         ArrayList<Transaction> validTransactions = new ArrayList<>();
 
         for(int i = 0; i < possibleTxs.length; i++) {
             Transaction tx = possibleTxs[i];
-            if (this.isValidTx(tx)) {
+            Precheck check = checks == null ? null : checks[i];
+            if (check != null && check.rejected) continue;
+            if (this.isValidTx(tx, check)) {
                 // Remove all input transactions
                 for (Transaction.Input input : tx.getInputs()) {
                     UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
-                    this.utxoPool.removeUTXO(ut);
+                    removeUTXO(ut);
                 }
 
                 // Add all unspent outputs
                 int idxOutput = 0;
                 for (Transaction.Output output : tx.getOutputs()) {
-                    this.utxoPool.addUTXO(new UTXO(tx.getHash(), idxOutput), output);
+                    addUTXO(new UTXO(tx.hashBytes(), idxOutput), output);
                     idxOutput++;
                 }
                 validTransactions.add(tx);
@@ -78,8 +124,116 @@ public class TxHandler {
         return validTransactions.toArray(new Transaction[validTransactions.size()]);
     }
 
+    private void removeUTXO(UTXO ut) {
+        if (addressIndex != null) {
+            Transaction.Output spent = utxoPool.getTxOutput(ut);
+            if (spent != null)
+                addressIndex.remove(ut, spent);
+        }
+        utxoPool.removeUTXO(ut);
+    }
+
+    /** adds {@code ut}, which replaces the output of a transaction with the same hash, if any */
+    private void addUTXO(UTXO ut, Transaction.Output output) {
+        if (addressIndex != null) {
+            Transaction.Output replaced = utxoPool.getTxOutput(ut);
+            if (replaced != null)
+                addressIndex.remove(ut, replaced);
+            addressIndex.add(ut, output);
+        }
+        utxoPool.addUTXO(ut, output);
+    }
+
+    /**
+     * @return true if {@code checked}, the output a signature was checked against, has the value
+     *         and address of {@code output}. A store may return a new object for every lookup.
+     */
+    private static boolean sameOutput(Transaction.Output checked, Transaction.Output output) {
+        return checked == output || checked != null && checked.value == output.value
+                && Objects.equals(checked.address, output.address);
+    }
+
+    /** Order independent checks of one transaction, see {@link #handleTxs(Transaction[], ForkJoinPool)} */
+    private static class Precheck {
+        /** true if the transaction can never be valid */
+        private boolean rejected;
+        /** output each input was checked against, null if it could not be found */
+        private Transaction.Output[] spent;
+        private boolean[] validSignatures;
+
+        private Precheck(int numInputs) {
+            spent = new Transaction.Output[numInputs];
+            validSignatures = new boolean[numInputs];
+        }
+    }
+
+    /**
+     * @return the order independent checks of {@code txs}, with the signatures of all their inputs
+     *         verified in one batch on {@code pool}
+     */
+    private Precheck[] precheck(Transaction[] txs, ForkJoinPool pool) {
+        // outputs an earlier transaction of this epoch may create
+        UTXOPool epochOutputs = new UTXOPool();
+        int numInputs = 0;
+        for (Transaction tx : txs) {
+            numInputs += tx.numInputs();
+            if (tx.hashBytes() == null) continue;
+            for (int i = 0; i < tx.numOutputs(); i++)
+                epochOutputs.addUTXO(new UTXO(tx.hashBytes(), i), tx.getOutput(i));
+        }
+
+        Precheck[] checks = new Precheck[txs.length];
+        // signature j of the batch is that of input inputOf[j] of transaction txOf[j]
+        PublicKey[] pubKeys = new PublicKey[numInputs];
+        byte[][] messages = new byte[numInputs][];
+        byte[][] signatures = new byte[numInputs][];
+        int[] txOf = new int[numInputs];
+        int[] inputOf = new int[numInputs];
+        int count = 0;
+        for (int t = 0; t < txs.length; t++) {
+            Transaction tx = txs[t];
+            Precheck check = new Precheck(tx.numInputs());
+            checks[t] = check;
+            // 4. All of tx output values are non-negative
+            for (Transaction.Output output : tx.getOutputs()) {
+                if (output.value < 0) {
+                    check.rejected = true;
+                    break;
+                }
+            }
+            if (check.rejected) continue;
+            // 2. Signature is valid, against the output in the pool or created in this epoch
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
+                Transaction.Output output = utxoPool.getTxOutput(ut);
+                if (output == null)
+                    output = epochOutputs.getTxOutput(ut);
+                if (output == null)
+                    continue;
+                check.spent[i] = output;
+                pubKeys[count] = output.address;
+                messages[count] = tx.getRawDataToSign(i);
+                signatures[count] = input.signature;
+                txOf[count] = t;
+                inputOf[count] = i;
+                count++;
+            }
+        }
+
+        BitSet valid = SignatureCache.getInstance().verifyAll(Arrays.copyOf(pubKeys, count),
+                Arrays.copyOf(messages, count), Arrays.copyOf(signatures, count), pool);
+        for (int j = valid.nextSetBit(0); j >= 0; j = valid.nextSetBit(j + 1))
+            checks[txOf[j]].validSignatures[inputOf[j]] = true;
+        return checks;
+    }
+
     public UTXOPool getUTXOPool() {
         return this.utxoPool;
     }
 
+    /** @return the index kept up to date by this handler, or null */
+    public AddressIndex getAddressIndex() {
+        return addressIndex;
+    }
 }
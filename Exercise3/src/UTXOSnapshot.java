@@ -0,0 +1,335 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The UTXO set at a block, with the block and its height, as saved to or loaded from a snapshot
+ * file. Starting a {@link BlockChain} from a snapshot takes time proportional to the size of the
+ * UTXO set instead of replaying and verifying every block since the genesis block.
+ *
+ * <p>
+ * A snapshot file holds, in order:
+ *
+ * <pre>
+ * magic | version | height | block | address count | addresses | UTXO count | UTXOs | checksum
+ * </pre>
+ *
+ * Addresses are X.509 encoded public keys, each written once; a UTXO is its transaction hash,
+ * output index, value and the index of its address. Values are written as varints, 7 bits to a
+ * byte with the lowest first and the top bit set on all but the last byte, so the small amounts
+ * most outputs hold take a few bytes instead of eight. The checksum is the SHA-256 hash of
+ * everything before it, and a file that does not match it is rejected.
+ */
+public class UTXOSnapshot {
+
+    private static final int MAGIC = 0x5554584f;
+    private static final int VERSION = 2;
+    /** longest byte string a snapshot may hold, so a damaged length cannot exhaust the heap */
+    private static final int MAX_BYTES = 1 << 16;
+
+    private Block block;
+    private int height;
+    private UTXOStore store;
+
+    private UTXOSnapshot(Block block, int height, UTXOStore store) {
+        this.block = block;
+        this.height = height;
+        this.store = store;
+    }
+
+    /** @return the block the UTXO set is taken after, with its transactions */
+    public Block getBlock() {
+        return block;
+    }
+
+    /** @return the height of {@link #getBlock()}, the genesis block being at height 1 */
+    public int getHeight() {
+        return height;
+    }
+
+    /** @return the store the UTXOs were loaded into */
+    public UTXOStore getStore() {
+        return store;
+    }
+
+    /**
+     * Saves {@code utxoPool}, the UTXO set after {@code block} at {@code height}, to {@code file}.
+     * The snapshot is written to a new file next to it, forced to the disk and then moved over
+     * {@code file} in one step, so a failure on the way leaves any snapshot already there whole.
+     */
+    public static void write(File file, Block block, int height, UTXOPool utxoPool)
+            throws IOException {
+        File temp = File.createTempFile("utxo", ".snapshot", file.getAbsoluteFile().getParentFile());
+        boolean moved = false;
+        try {
+            MessageDigest md = newDigest();
+            try (FileOutputStream fileOut = new FileOutputStream(temp);
+                    DigestOutputStream digest = new DigestOutputStream(
+                            new BufferedOutputStream(fileOut), md)) {
+                DataOutputStream out = new DataOutputStream(digest);
+                write(out, block, height, utxoPool);
+                digest.on(false);
+                out.write(md.digest());
+                out.flush();
+                fileOut.getChannel().force(true);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            if (!moved)
+                temp.delete();
+        }
+    }
+
+    private static void write(DataOutputStream out, Block block, int height, UTXOPool utxoPool)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(height);
+
+        ArrayList<UTXO> utxos = utxoPool.getAllUTXO();
+        Transaction.Output[] outputs = new Transaction.Output[utxos.size()];
+        ArrayList<PublicKey> addresses = new ArrayList<>();
+        HashMap<PublicKey, Integer> addressIds = new HashMap<>();
+        addressId(block.getCoinbase().getOutput(0).address, addresses, addressIds);
+        for (Transaction tx : block.getTransactions()) {
+            for (Transaction.Output op : tx.getOutputs())
+                addressId(op.address, addresses, addressIds);
+        }
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = utxoPool.getTxOutput(utxos.get(i));
+            addressId(outputs[i].address, addresses, addressIds);
+        }
+        out.writeInt(addresses.size());
+        for (PublicKey address : addresses)
+            writeBytes(out, address.getEncoded());
+
+        writeBytes(out, block.getPrevBlockHash());
+        out.writeInt(addressIds.get(block.getCoinbase().getOutput(0).address));
+        out.writeInt(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions()) {
+            out.writeInt(tx.numInputs());
+            for (Transaction.Input in : tx.getInputs()) {
+                writeBytes(out, in.prevTxHash);
+                out.writeInt(in.outputIndex);
+                writeBytes(out, in.signature);
+            }
+            out.writeInt(tx.numOutputs());
+            for (Transaction.Output op : tx.getOutputs()) {
+                writeValue(out, op.value);
+                out.writeInt(addressIds.get(op.address));
+            }
+        }
+        writeBytes(out, block.getHash());
+
+        out.writeInt(utxos.size());
+        for (int i = 0; i < outputs.length; i++) {
+            writeBytes(out, utxos.get(i).getTxHash());
+            out.writeInt(utxos.get(i).getIndex());
+            writeValue(out, outputs[i].value);
+            out.writeInt(addressIds.get(outputs[i].address));
+        }
+    }
+
+    /** Loads a snapshot from {@code file}, keeping the UTXOs in a {@link PersistentUTXOStore} */
+    public static UTXOSnapshot read(File file) throws IOException {
+        return read(file, new PersistentUTXOStore());
+    }
+
+    /**
+     * Loads a snapshot from {@code file}, adding its UTXOs to the empty {@code store}. The whole
+     * file is checked against its checksum before anything is added, and {@code store} is left
+     * empty if the snapshot cannot be loaded.
+     *
+     * @throws IOException if the file cannot be read, is not a snapshot, is damaged or fails its
+     *         checksum
+     * @throws IllegalArgumentException if {@code store} is not empty
+     */
+    public static UTXOSnapshot read(File file, UTXOStore store) throws IOException {
+        if (store.size() != 0)
+            throw new IllegalArgumentException("snapshot must be loaded into an empty store");
+        verifyChecksum(file);
+        MessageDigest md = newDigest();
+        try (DigestInputStream digest = new DigestInputStream(
+                new BufferedInputStream(new FileInputStream(file)), md)) {
+            DataInputStream in = new DataInputStream(digest);
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a UTXO snapshot");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported snapshot version " + version);
+            int height = in.readInt();
+
+            int numAddresses = in.readInt();
+            if (numAddresses < 0)
+                throw new IOException("bad address count in snapshot");
+            PublicKey[] addresses = new PublicKey[numAddresses];
+            try {
+                KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+                for (int i = 0; i < addresses.length; i++)
+                    addresses[i] = keyFactory.generatePublic(new X509EncodedKeySpec(readBytes(in)));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("bad address in snapshot", e);
+            }
+
+            Block block = new Block(readBytes(in), readAddress(in, addresses));
+            int numTxs = in.readInt();
+            for (int t = 0; t < numTxs; t++) {
+                ImmutableTransaction.Builder tx = new ImmutableTransaction.Builder();
+                int numInputs = in.readInt();
+                for (int i = 0; i < numInputs; i++) {
+                    tx.addInput(readBytes(in), in.readInt());
+                    tx.addSignature(readBytes(in), i);
+                }
+                int numOutputs = in.readInt();
+                for (int i = 0; i < numOutputs; i++)
+                    tx.addOutput(readValue(in), readAddress(in, addresses));
+                block.addTransaction(tx.build());
+            }
+            block.finalize();
+            if (!Arrays.equals(readBytes(in), block.getHash()))
+                throw new IOException("snapshot block does not match its hash");
+
+            int numUTXOs = in.readInt();
+            Transaction holder = new Transaction();
+            boolean loaded = false;
+            try {
+                for (int i = 0; i < numUTXOs; i++) {
+                    byte[] txHash = readBytes(in);
+                    if (txHash == null)
+                        throw new IOException("bad UTXO in snapshot");
+                    UTXO utxo = new UTXO(txHash, in.readInt());
+                    store.put(utxo, holder.new Output(readValue(in), readAddress(in, addresses)));
+                }
+
+                // checked again, as the file may have been replaced since it was verified
+                digest.on(false);
+                byte[] checksum = new byte[md.getDigestLength()];
+                in.readFully(checksum);
+                if (!MessageDigest.isEqual(checksum, md.digest()))
+                    throw new IOException("snapshot checksum mismatch");
+                loaded = true;
+            } finally {
+                if (!loaded) {
+                    for (UTXO utxo : store.keys())
+                        store.remove(utxo);
+                }
+            }
+            return new UTXOSnapshot(block, height, store);
+        }
+    }
+
+    /**
+     * @throws IOException unless the last bytes of {@code file} are the SHA-256 hash of all the
+     *         bytes before them
+     */
+    private static void verifyChecksum(File file) throws IOException {
+        MessageDigest md = newDigest();
+        try (FileInputStream in = new FileInputStream(file)) {
+            long left = in.getChannel().size() - md.getDigestLength();
+            if (left < 0)
+                throw new IOException(file + " is not a UTXO snapshot");
+            byte[] buffer = new byte[1 << 16];
+            while (left > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (n < 0)
+                    throw new EOFException();
+                md.update(buffer, 0, n);
+                left -= n;
+            }
+            byte[] checksum = new byte[md.getDigestLength()];
+            new DataInputStream(in).readFully(checksum);
+            if (!MessageDigest.isEqual(checksum, md.digest()))
+                throw new IOException("snapshot checksum mismatch");
+        }
+    }
+
+    /** a digest of its own, as rebuilding the block uses the thread's shared one */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int addressId(PublicKey address, ArrayList<PublicKey> addresses,
+            HashMap<PublicKey, Integer> addressIds) {
+        Integer id = addressIds.get(address);
+        if (id == null) {
+            id = addresses.size();
+            addresses.add(address);
+            addressIds.put(address, id);
+        }
+        return id;
+    }
+
+    private static PublicKey readAddress(DataInputStream in, PublicKey[] addresses)
+            throws IOException {
+        int id = in.readInt();
+        if (id < 0 || id >= addresses.length)
+            throw new IOException("bad address index in snapshot");
+        return addresses[id];
+    }
+
+    /** writes {@code bytes} after its length, with -1 standing for null */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** writes {@code value} as a varint, a negative value taking ten bytes */
+    private static void writeValue(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readValue(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("bad value in snapshot");
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length > MAX_BYTES)
+            throw new IOException("bad length in snapshot");
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
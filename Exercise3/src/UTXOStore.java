@@ -0,0 +1,28 @@
+import java.util.ArrayList;
+
+/**
+ * The storage behind a {@link UTXOPool}, mapping each UTXO to its transaction output. Different
+ * stores trade lookup speed, memory and the cost of copying a pool.
+ */
+public interface UTXOStore {
+
+    /** @return the output of {@code utxo}, or null if it is not in the store */
+    Transaction.Output get(UTXO utxo);
+
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    void remove(UTXO utxo);
+
+    boolean containsKey(UTXO utxo);
+
+    int size();
+
+    /** @return a new list of every UTXO in the store */
+    ArrayList<UTXO> keys();
+
+    /**
+     * @return a store holding the same mappings, normally of the same kind and unaffected by later
+     *         changes to this one
+     */
+    UTXOStore copy();
+}
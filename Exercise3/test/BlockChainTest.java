@@ -0,0 +1,240 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockChainTest {
+
+    private KeyPairGenerator gen;
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private Block genesis;
+    private BlockChain chain;
+
+    @Before
+    public void setUp() throws Exception {
+        gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        scrooge = gen.generateKeyPair();
+        alice = gen.generateKeyPair();
+        genesis = new Block(null, scrooge.getPublic());
+        genesis.finalize();
+        chain = new BlockChain(genesis);
+    }
+
+    private Block block(Block prev, KeyPair miner) {
+        Block block = new Block(prev.getHash(), miner.getPublic());
+        block.finalize();
+        return block;
+    }
+
+    @Test
+    public void knownBlockIsRejected() {
+        Block block1 = block(genesis, alice);
+        assertTrue(chain.addBlock(block1));
+        long retainedBytes = chain.getRetainedBytes();
+
+        assertFalse(chain.addBlock(block1));
+        assertFalse(chain.addBlock(genesis));
+        assertEquals(2, chain.getRetainedBlockCount());
+        assertEquals(retainedBytes, chain.getRetainedBytes());
+        assertArrayEquals(block1.getHash(), chain.getMaxHeightBlock().getHash());
+    }
+
+    @Test
+    public void resubmittedSideBranchBlockDoesNotBreakPruning() {
+        Block side = block(genesis, scrooge);
+        Block tip = block(genesis, alice);
+        assertTrue(chain.addBlock(tip));
+        assertTrue(chain.addBlock(side));
+        assertFalse(chain.addBlock(side));
+
+        // moving the chain on drops the side branch once, then it can be built on no more
+        for (int i = 0; i < BlockChain.CUT_OFF_AGE + 1; i++) {
+            tip = block(tip, alice);
+            assertTrue(chain.addBlock(tip));
+        }
+        assertFalse(chain.addBlock(block(side, scrooge)));
+        assertArrayEquals(tip.getHash(), chain.getMaxHeightBlock().getHash());
+        assertTrue(chain.addBlock(block(tip, scrooge)));
+    }
+
+    @Test
+    public void maxHeightPoolCanBeChangedWithoutAffectingTheChain() {
+        UTXOPool pool = chain.getMaxHeightUTXOPool();
+        UTXO coinbase = new UTXO(genesis.getCoinbase().getHash(), 0);
+        pool.removeUTXO(coinbase);
+        assertFalse(pool.contains(coinbase));
+        assertTrue(chain.getMaxHeightUTXOPool().contains(coinbase));
+    }
+
+    @Test
+    public void maxHeightPoolFromACoinDatabaseCanBeChangedWithoutAffectingTheChain() {
+        BlockChain cached = new BlockChain(genesis, new HashUTXOStore(), 16);
+        UTXOPool pool = cached.getMaxHeightUTXOPool();
+        UTXO coinbase = new UTXO(genesis.getCoinbase().getHash(), 0);
+        pool.removeUTXO(coinbase);
+        assertFalse(pool.contains(coinbase));
+        assertTrue(cached.getMaxHeightUTXOPool().contains(coinbase));
+    }
+
+    @Test
+    public void coinDatabaseHoldsEveryConnectedBlockAndOldPoolsStayAsTheyWere() {
+        HashUTXOStore database = new HashUTXOStore();
+        BlockChain cached = new BlockChain(genesis, database, 16);
+        UTXOPool before = cached.getMaxHeightUTXOPool();
+        Block block1 = block(genesis, alice);
+        assertTrue(cached.addBlock(block1));
+
+        UTXO coinbase = new UTXO(block1.getCoinbase().getHash(), 0);
+        assertTrue(database.containsKey(coinbase));
+        assertEquals(2, database.size());
+        assertFalse(before.contains(coinbase));
+        assertEquals(1, before.size());
+        assertTrue(cached.getMaxHeightUTXOPool().contains(coinbase));
+    }
+
+    /** Checks the chain's index against one built from its max height pool, for {@code keys} */
+    private void assertIndexMatchesPool(KeyPair... keys) {
+        AddressIndex expected = new AddressIndex(chain.getMaxHeightUTXOPool());
+        AddressIndex index = chain.getAddressIndex();
+        assertEquals(expected.numAddresses(), index.numAddresses());
+        for (KeyPair key : keys) {
+            assertEquals(expected.getBalance(key.getPublic()), index.getBalance(key.getPublic()));
+            assertEquals(new HashSet<>(expected.getUTXOs(key.getPublic())),
+                    new HashSet<>(index.getUTXOs(key.getPublic())));
+        }
+    }
+
+    @Test
+    public void addressIndexFollowsTheMaxHeightBlockAcrossReorganizations() throws Exception {
+        // a miner per block, as two blocks with nothing but the coinbase of one key have one hash
+        KeyPair bob = gen.generateKeyPair();
+        KeyPair carol = gen.generateKeyPair();
+        KeyPair dave = gen.generateKeyPair();
+        KeyPair erin = gen.generateKeyPair();
+        assertEquals(Block.COINBASE, chain.getAddressIndex().getBalance(scrooge.getPublic()));
+
+        // connect: alice mines a block paying scrooge's coinbase to bob
+        Block a1 = new Block(genesis.getHash(), alice.getPublic());
+        a1.addTransaction(new ImmutableTransaction.Builder()
+                .addInput(genesis.getCoinbase().getHash(), 0)
+                .addOutput(Block.COINBASE, bob.getPublic())
+                .sign(scrooge.getPrivate(), 0)
+                .build());
+        a1.finalize();
+        assertTrue(chain.addBlock(a1));
+        assertEquals(0, chain.getAddressIndex().getBalance(scrooge.getPublic()));
+        assertEquals(Block.COINBASE, chain.getAddressIndex().getBalance(bob.getPublic()));
+        assertIndexMatchesPool(scrooge, alice, bob, carol, dave, erin);
+
+        // reorganization: a longer branch without the payment disconnects a1
+        Block b1 = block(genesis, carol);
+        assertTrue(chain.addBlock(b1));
+        assertIndexMatchesPool(scrooge, alice, bob, carol, dave, erin);
+        Block b2 = block(b1, dave);
+        assertTrue(chain.addBlock(b2));
+        assertArrayEquals(b2.getHash(), chain.getMaxHeightBlock().getHash());
+        assertEquals(0, chain.getAddressIndex().getBalance(bob.getPublic()));
+        assertEquals(0, chain.getAddressIndex().getBalance(alice.getPublic()));
+        assertEquals(Block.COINBASE, chain.getAddressIndex().getBalance(scrooge.getPublic()));
+        assertEquals(Block.COINBASE, chain.getAddressIndex().getBalance(carol.getPublic()));
+        assertIndexMatchesPool(scrooge, alice, bob, carol, dave, erin);
+
+        // and back: the first branch grows longer again and a1 is connected once more
+        Block a2 = block(a1, bob);
+        assertTrue(chain.addBlock(a2));
+        assertTrue(chain.addBlock(block(a2, erin)));
+        assertEquals(2 * Block.COINBASE, chain.getAddressIndex().getBalance(bob.getPublic()));
+        assertEquals(Block.COINBASE, chain.getAddressIndex().getBalance(alice.getPublic()));
+        assertEquals(0, chain.getAddressIndex().getBalance(scrooge.getPublic()));
+        assertEquals(0, chain.getAddressIndex().getBalance(carol.getPublic()));
+        assertEquals(0, chain.getAddressIndex().getBalance(dave.getPublic()));
+        assertIndexMatchesPool(scrooge, alice, bob, carol, dave, erin);
+    }
+
+    /**
+     * Readers take the max height pool while blocks are added, each block moving every coin to a
+     * new output, and must always see the pool after some whole block: one output per block, all
+     * holding a coinbase each, never fewer blocks than the last pool they saw, and never older
+     * than the max height block read just before it
+     */
+    @Test
+    public void maxHeightPoolIsConsistentWhileBlocksAreAdded() throws Exception {
+        final int blocks = 40;
+        // a key per block, so no two coinbases have the same hash
+        List<KeyPair> miners = new ArrayList<>();
+        for (int i = 0; i < blocks; i++)
+            miners.add(gen.generateKeyPair());
+        genesis = new Block(null, miners.get(0).getPublic());
+        genesis.finalize();
+        chain = new BlockChain(genesis);
+        final Map<ByteArrayWrapper, Integer> heights = new ConcurrentHashMap<>();
+        heights.put(new ByteArrayWrapper(genesis.getHash()), 1);
+
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final boolean[] done = new boolean[1];
+        Runnable reader = new Runnable() {
+            public void run() {
+                int seen = 0;
+                while (failure.get() == null) {
+                    boolean last;
+                    synchronized (done) {
+                        last = done[0];
+                    }
+                    Block tip = chain.getMaxHeightBlock();
+                    int height = heights.get(new ByteArrayWrapper(tip.getHash()));
+                    UTXOPool pool = chain.getMaxHeightUTXOPool();
+                    if (pool.size() < height)
+                        failure.set("saw " + pool.size() + " outputs after block " + height);
+                    long total = 0;
+                    for (UTXO ut : pool.getAllUTXO())
+                        total += pool.getTxOutput(ut).value;
+                    if (total != pool.size() * Block.COINBASE || pool.size() < seen)
+                        failure.set("saw " + pool.size() + " outputs worth " + total + " after " + seen);
+                    seen = pool.size();
+                    pool.removeUTXO(pool.getAllUTXO().get(0));
+                    if (last)
+                        return;
+                }
+            }
+        };
+        Thread[] readers = { new Thread(reader), new Thread(reader) };
+        for (Thread t : readers)
+            t.start();
+
+        Block prev = genesis;
+        for (int i = 1; i < blocks; i++) {
+            KeyPair previousMiner = miners.get(i - 1);
+            Block block = new Block(prev.getHash(), miners.get(i).getPublic());
+            block.addTransaction(new ImmutableTransaction.Builder()
+                    .addInput(prev.getCoinbase().getHash(), 0)
+                    .addOutput(Block.COINBASE, previousMiner.getPublic())
+                    .sign(previousMiner.getPrivate(), 0)
+                    .build());
+            block.finalize();
+            heights.put(new ByteArrayWrapper(block.getHash()), i + 1);
+            assertTrue(chain.addBlock(block));
+            prev = block;
+        }
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (Thread t : readers)
+            t.join();
+        assertEquals(null, failure.get());
+        assertEquals(blocks, chain.getMaxHeightUTXOPool().size());
+    }
+}
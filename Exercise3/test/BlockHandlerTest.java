@@ -0,0 +1,80 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockHandlerTest {
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private KeyPair bob;
+    private BlockChain chain;
+    private BlockHandler handler;
+    private Transaction parent;
+    private Transaction child;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        scrooge = gen.generateKeyPair();
+        alice = gen.generateKeyPair();
+        bob = gen.generateKeyPair();
+        Block genesis = new Block(null, scrooge.getPublic());
+        genesis.finalize();
+        chain = new BlockChain(genesis);
+        handler = new BlockHandler(chain);
+
+        parent = new ImmutableTransaction.Builder()
+                .addInput(genesis.getCoinbase().getHash(), 0)
+                .addOutput(Block.COINBASE - 1000, alice.getPublic())
+                .sign(scrooge.getPrivate(), 0)
+                .build();
+        child = new ImmutableTransaction.Builder()
+                .addInput(parent.getHash(), 0)
+                .addOutput(Block.COINBASE - 2000, bob.getPublic())
+                .sign(alice.getPrivate(), 0)
+                .build();
+        assertTrue(handler.processTx(parent));
+        assertTrue(handler.processTx(child));
+    }
+
+    @Test
+    public void childOfATransactionRemovedFromThePoolIsLeftOut() {
+        handler.getBlockTemplate(bob.getPublic());
+        // not confirmed, so the child is left spending an output no block created
+        chain.getTransactionPool().removeTransaction(parent.getHash());
+        Block block = handler.createBlock(bob.getPublic());
+        assertNotNull(block);
+        assertEquals(0, block.getTransactions().size());
+    }
+
+    @Test
+    public void childOfATransactionRemovedBeforeAnyTemplateIsLeftOut() {
+        chain.getTransactionPool().removeTransaction(parent.getHash());
+        Block block = handler.createBlock(bob.getPublic());
+        assertNotNull(block);
+        assertEquals(0, block.getTransactions().size());
+    }
+
+    @Test
+    public void transactionAddedToThePoolUncheckedCannotSpendAnOutputTwice() {
+        Transaction conflict = new ImmutableTransaction.Builder()
+                .addInput(parent.getInput(0).prevTxHash, 0)
+                .addOutput(Block.COINBASE - 500, scrooge.getPublic())
+                .sign(scrooge.getPrivate(), 0)
+                .build();
+        chain.getTransactionPool().addTransaction(conflict, 500);
+
+        // a new handler chooses its template from the pool as it stands
+        Block block = new BlockHandler(chain).createBlock(bob.getPublic());
+        assertNotNull(block);
+        assertEquals(Arrays.asList(parent, child), block.getTransactions());
+    }
+}
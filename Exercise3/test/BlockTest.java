@@ -0,0 +1,112 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockTest {
+
+    private PublicKey address;
+    private Transaction[] txs;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        address = gen.generateKeyPair().getPublic();
+        txs = new Transaction[9];
+        for (int i = 0; i < txs.length; i++)
+            txs[i] = new Transaction(i + 1, address);
+    }
+
+    private Block block(Transaction... blockTxs) {
+        Block block = new Block(new byte[32], address);
+        for (Transaction tx : blockTxs)
+            block.addTransaction(tx);
+        return block;
+    }
+
+    @Test
+    public void emptyBlockHasNoRoot() {
+        assertNull(block().getMerkleRoot());
+    }
+
+    @Test
+    public void incrementalRootMatchesRebuiltRoot() {
+        for (int n = 1; n <= txs.length; n++) {
+            Transaction[] prefix = Arrays.copyOf(txs, n);
+            Block rebuilt = new Block(new byte[32], address);
+            rebuilt.getTransactions().addAll(Arrays.asList(prefix));
+            assertArrayEquals("n = " + n, rebuilt.getMerkleRoot(), block(prefix).getMerkleRoot());
+        }
+    }
+
+    @Test
+    public void repeatingTheLastTransactionsChangesTheRoot() {
+        byte[] three = block(txs[0], txs[1], txs[2]).getMerkleRoot();
+        assertFalse(Arrays.equals(three, block(txs[0], txs[1], txs[2], txs[2]).getMerkleRoot()));
+
+        byte[] five = block(txs[0], txs[1], txs[2], txs[3], txs[4]).getMerkleRoot();
+        assertFalse(Arrays.equals(five,
+                block(txs[0], txs[1], txs[2], txs[3], txs[4], txs[4]).getMerkleRoot()));
+        assertFalse(Arrays.equals(five, block(txs[0], txs[1], txs[2], txs[3], txs[4], txs[4],
+                txs[4], txs[4]).getMerkleRoot()));
+    }
+
+    @Test
+    public void rootFollowsReplacedTransaction() {
+        Block block = block(txs[0], txs[1], txs[2]);
+        block.getMerkleRoot();
+        block.getTransactions().set(1, txs[3]);
+        assertArrayEquals(block(txs[0], txs[3], txs[2]).getMerkleRoot(), block.getMerkleRoot());
+    }
+
+    @Test
+    public void rootFollowsChangedTransactionHash() {
+        Transaction tx = new Transaction(100, address);
+        Block block = block(txs[0], tx);
+        block.getMerkleRoot();
+        tx.addOutput(1, address);
+        tx.finalize();
+        assertArrayEquals(block(txs[0], tx).getMerkleRoot(), block.getMerkleRoot());
+    }
+
+    @Test
+    public void rootFollowsSwappedTransactions() {
+        Block block = block(txs[0], txs[1], txs[2]);
+        block.getMerkleRoot();
+        Collections.swap(block.getTransactions(), 0, 2);
+        assertArrayEquals(block(txs[2], txs[1], txs[0]).getMerkleRoot(), block.getMerkleRoot());
+    }
+
+    @Test
+    public void rootFollowsChangedHashOfTransactionPutInThroughTheList() {
+        Transaction tx = new Transaction(100, address);
+        Block block = block(txs[0], txs[1]);
+        block.getTransactions().set(1, tx);
+        block.getMerkleRoot();
+        tx.addOutput(1, address);
+        tx.finalize();
+        assertArrayEquals(block(txs[0], tx).getMerkleRoot(), block.getMerkleRoot());
+    }
+
+    @Test
+    public void rootOfCopyFollowsChangedTransactionHash() {
+        Transaction tx = new Transaction(100, address);
+        Block copy = block(txs[0], tx).copy(address);
+        tx.setHash(txs[1].getHash());
+        assertArrayEquals(block(txs[0], txs[1]).getMerkleRoot(), copy.getMerkleRoot());
+    }
+
+    @Test
+    public void copySharesTheRoot() {
+        Block block = block(txs[0], txs[1], txs[2]);
+        assertArrayEquals(block.getMerkleRoot(), block.copy(address).getMerkleRoot());
+    }
+}
@@ -0,0 +1,185 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachedUTXOStoreTest {
+
+    private PublicKey address;
+    private Transaction holder;
+    private HashUTXOStore base;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        address = gen.generateKeyPair().getPublic();
+        holder = new Transaction();
+        base = new HashUTXOStore();
+        for (int i = 0; i < 5; i++)
+            base.put(utxo(i), output(i));
+    }
+
+    private static UTXO utxo(int n) {
+        byte[] hash = new byte[32];
+        new Random(n).nextBytes(hash);
+        return new UTXO(hash, 0);
+    }
+
+    private Transaction.Output output(long value) {
+        return holder.new Output(value, address);
+    }
+
+    @Test
+    public void changesReachTheBaseOnlyWhenFlushed() {
+        CachedUTXOStore cache = new CachedUTXOStore(base, 16);
+        cache.put(utxo(5), output(5));
+        cache.put(utxo(0), output(100));
+        cache.remove(utxo(1));
+
+        assertEquals(3, cache.getDirtyCount());
+        assertEquals(5, cache.size());
+        assertEquals(100, cache.get(utxo(0)).value);
+        assertFalse(cache.containsKey(utxo(1)));
+        assertFalse(base.containsKey(utxo(5)));
+        assertEquals(0, base.get(utxo(0)).value);
+        assertTrue(base.containsKey(utxo(1)));
+
+        cache.flush();
+        assertEquals(0, cache.getDirtyCount());
+        assertEquals(5, base.size());
+        assertEquals(5, base.get(utxo(5)).value);
+        assertEquals(100, base.get(utxo(0)).value);
+        assertFalse(base.containsKey(utxo(1)));
+        assertEquals(new HashSet<>(base.keys()), new HashSet<>(cache.keys()));
+    }
+
+    @Test
+    public void freshUTXORemovedBeforeAFlushIsNeverWritten() {
+        CachedUTXOStore cache = new CachedUTXOStore(base, 16);
+        cache.put(utxo(5), output(5));
+        cache.remove(utxo(5));
+        assertEquals(0, cache.getDirtyCount());
+        assertEquals(5, cache.size());
+        cache.flush();
+        assertFalse(base.containsKey(utxo(5)));
+    }
+
+    @Test
+    public void removedThenAddedAgainIsWrittenAsAChange() {
+        CachedUTXOStore cache = new CachedUTXOStore(base, 16);
+        cache.remove(utxo(2));
+        cache.put(utxo(2), output(200));
+        assertEquals(5, cache.size());
+        assertEquals(1, cache.getDirtyCount());
+        cache.flush();
+        assertEquals(200, base.get(utxo(2)).value);
+        assertEquals(5, base.size());
+    }
+
+    @Test
+    public void cleanEntriesAreEvictedLeastRecentlyUsedFirst() {
+        CachedUTXOStore cache = new CachedUTXOStore(base, 2);
+        cache.get(utxo(0));
+        cache.get(utxo(1));
+        cache.get(utxo(0));
+        cache.get(utxo(2));
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        // utxo(1) was the least recently used when utxo(2) came in
+        cache.get(utxo(0));
+        assertEquals(2, cache.getHits());
+        cache.get(utxo(1));
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void dirtyEntriesStayOverCapacityUntilFlushed() {
+        CachedUTXOStore cache = new CachedUTXOStore(base, 2);
+        for (int i = 5; i < 10; i++)
+            cache.put(utxo(i), output(i));
+        assertEquals(5, cache.getDirtyCount());
+        for (int i = 5; i < 10; i++)
+            assertEquals(i, cache.get(utxo(i)).value);
+        assertEquals(0, cache.getMisses());
+        cache.flush();
+        assertEquals(10, base.size());
+    }
+
+    @Test
+    public void copyKeepsItsContentsWhileTheStoreChanges() {
+        CachedUTXOStore cache = new CachedUTXOStore(base, 16);
+        cache.get(utxo(2));
+        UTXOStore copy = cache.copy();
+        copy.remove(utxo(0));
+        copy.put(utxo(5), output(5));
+        cache.put(utxo(6), output(6));
+        cache.put(utxo(2), output(200));
+        cache.remove(utxo(3));
+        cache.remove(utxo(0));
+        cache.put(utxo(0), output(100));
+        cache.flush();
+
+        assertEquals(5, copy.size());
+        assertNull(copy.get(utxo(0)));
+        assertNull(copy.get(utxo(6)));
+        assertEquals(2, copy.get(utxo(2)).value);
+        assertEquals(3, copy.get(utxo(3)).value);
+        assertEquals(5, copy.get(utxo(5)).value);
+        assertEquals(new HashSet<>(Arrays.asList(utxo(1), utxo(2), utxo(3), utxo(4), utxo(5))),
+                new HashSet<>(copy.keys()));
+        assertEquals(100, cache.get(utxo(0)).value);
+        assertFalse(cache.containsKey(utxo(5)));
+        assertEquals(0, cache.getDirtyCount());
+    }
+
+    @Test
+    public void copiesOfCopiesMatchSeparateMaps() {
+        Random random = new Random(11);
+        CachedUTXOStore cache = new CachedUTXOStore(base, 8);
+        List<UTXOStore> stores = new ArrayList<>();
+        List<Map<UTXO, Long>> maps = new ArrayList<>();
+        stores.add(cache);
+        maps.add(new HashMap<UTXO, Long>());
+        for (int i = 0; i < 5; i++)
+            maps.get(0).put(utxo(i), (long) i);
+        for (int step = 0; step < 5000; step++) {
+            int k = random.nextInt(stores.size());
+            UTXO ut = utxo(random.nextInt(40));
+            int op = random.nextInt(100);
+            if (op < 50) {
+                long value = random.nextInt(1000);
+                stores.get(k).put(ut, output(value));
+                maps.get(k).put(ut, value);
+            } else if (op < 95) {
+                stores.get(k).remove(ut);
+                maps.get(k).remove(ut);
+            } else if (op < 98) {
+                cache.flush();
+            } else if (stores.size() < 6) {
+                stores.add(stores.get(k).copy());
+                maps.add(new HashMap<>(maps.get(k)));
+            }
+        }
+        for (int k = 0; k < stores.size(); k++) {
+            UTXOStore store = stores.get(k);
+            assertEquals(maps.get(k).size(), store.size());
+            assertEquals(maps.get(k).keySet(), new HashSet<>(store.keys()));
+            for (Map.Entry<UTXO, Long> e : maps.get(k).entrySet())
+                assertEquals(e.getValue().longValue(), store.get(e.getKey()).value);
+        }
+    }
+}
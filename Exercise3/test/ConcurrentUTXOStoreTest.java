@@ -0,0 +1,113 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrentUTXOStoreTest {
+
+    private PublicKey address;
+    private Transaction holder;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        address = gen.generateKeyPair().getPublic();
+        holder = new Transaction();
+    }
+
+    private static UTXO utxo(int n) {
+        byte[] hash = new byte[32];
+        new Random(n).nextBytes(hash);
+        return new UTXO(hash, 0);
+    }
+
+    private Transaction.Output output(long value) {
+        return holder.new Output(value, address);
+    }
+
+    @Test
+    public void snapshotKeepsTheContentsAtItsPublish() {
+        ConcurrentUTXOStore store = new ConcurrentUTXOStore();
+        store.put(utxo(0), output(0));
+        store.publish();
+        ConcurrentUTXOStore.Snapshot snapshot = store.getSnapshot();
+        assertEquals(1, snapshot.getVersion());
+
+        store.remove(utxo(0));
+        store.put(utxo(1), output(1));
+        assertEquals(1, snapshot.size());
+        assertTrue(snapshot.containsKey(utxo(0)));
+        assertFalse(snapshot.containsKey(utxo(1)));
+
+        store.publish();
+        assertEquals(2, store.getSnapshot().getVersion());
+        assertTrue(store.getSnapshot().containsKey(utxo(1)));
+        assertTrue(snapshot.containsKey(utxo(0)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotCannotBeChanged() {
+        new ConcurrentUTXOStore().getSnapshot().put(utxo(0), output(0));
+    }
+
+    @Test
+    public void copyOfASnapshotCanBeChangedOnItsOwn() {
+        ConcurrentUTXOStore store = new ConcurrentUTXOStore();
+        store.put(utxo(0), output(0));
+        store.publish();
+        UTXOStore copy = store.getSnapshot().copy();
+        copy.remove(utxo(0));
+        copy.put(utxo(1), output(1));
+        assertNull(copy.get(utxo(0)));
+        assertTrue(store.getSnapshot().containsKey(utxo(0)));
+        assertTrue(store.containsKey(utxo(0)));
+        assertFalse(store.containsKey(utxo(1)));
+    }
+
+    /**
+     * The writer moves a single coin from UTXO to UTXO, publishing after each move, while readers
+     * check every snapshot holds exactly one UTXO and never an older one than the last they saw
+     */
+    @Test
+    public void readersAlwaysSeeAPublishedState() throws Exception {
+        final ConcurrentUTXOStore store = new ConcurrentUTXOStore();
+        store.put(utxo(0), output(0));
+        store.publish();
+        final int moves = 20000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Runnable reader = new Runnable() {
+            public void run() {
+                long seen = 0;
+                while (failure.get() == null && seen < moves) {
+                    ConcurrentUTXOStore.Snapshot snapshot = store.getSnapshot();
+                    long version = snapshot.getVersion();
+                    if (version < seen || snapshot.size() != 1 || snapshot.keys().size() != 1
+                            || snapshot.get(utxo((int) version - 1)).value != version - 1)
+                        failure.set("bad snapshot at version " + version + " after " + seen);
+                    seen = version;
+                }
+            }
+        };
+        Thread[] readers = { new Thread(reader), new Thread(reader) };
+        for (Thread t : readers)
+            t.start();
+        for (int i = 1; i < moves; i++) {
+            store.remove(utxo(i - 1));
+            store.put(utxo(i), output(i));
+            // version i + 1 holds utxo(i) alone, and the last one is the version readers wait for
+            store.publish();
+        }
+        for (Thread t : readers)
+            t.join();
+        assertNull(failure.get());
+    }
+}
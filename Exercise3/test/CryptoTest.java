@@ -0,0 +1,133 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.PrivateKey;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CryptoTest {
+
+    private static final int N = 20;
+
+    private PublicKey[] pubKeys;
+    private byte[][] messages;
+    private byte[][] signatures;
+    /** the signatures left valid by {@link #setUp()} */
+    private BitSet expected;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        KeyPair alice = gen.generateKeyPair();
+        KeyPair bob = gen.generateKeyPair();
+        pubKeys = new PublicKey[N];
+        messages = new byte[N][];
+        signatures = new byte[N][];
+        expected = new BitSet(N);
+        for (int i = 0; i < N; i++) {
+            messages[i] = ("pay " + i + " coins to bob").getBytes("UTF-8");
+            signatures[i] = Crypto.sign(alice.getPrivate(), messages[i]);
+            pubKeys[i] = alice.getPublic();
+            // a forged signature, another key, another message, or valid
+            switch (i % 4) {
+            case 0:
+                signatures[i][0] ^= 1;
+                break;
+            case 1:
+                pubKeys[i] = bob.getPublic();
+                break;
+            case 2:
+                messages[i] = ("pay " + i + " coins to carol").getBytes("UTF-8");
+                break;
+            default:
+                expected.set(i);
+            }
+        }
+    }
+
+    @Test
+    public void verifyAllSetsTheBitsOfTheValidSignaturesOnly() {
+        assertEquals(expected, Crypto.verifyAll(pubKeys, messages, signatures));
+        assertEquals(expected, Crypto.verifyAll(pubKeys, messages, signatures, null));
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            assertEquals(expected, Crypto.verifyAll(pubKeys, messages, signatures, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void verifyAllOfNothingIsEmpty() {
+        assertEquals(new BitSet(), Crypto.verifyAll(new PublicKey[0], new byte[0][], new byte[0][]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verifyAllRejectsFewerSignaturesThanKeys() {
+        Crypto.verifyAll(pubKeys, messages, new byte[N - 1][]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verifyAllRejectsFewerMessagesThanKeys() {
+        Crypto.verifyAll(pubKeys, new byte[N + 1][], signatures);
+    }
+
+    /** with a single worker, waiting on the batches from a task would never let them run */
+    @Test(timeout = 60000)
+    public void verifyAllCanBeCalledFromATaskOfItsPool() throws Exception {
+        final ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            BitSet valid = pool.submit(() -> Crypto.verifyAll(pubKeys, messages, signatures, pool)).get();
+            assertEquals(expected, valid);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void signAllSignsEveryMessageUnderItsKey() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        KeyPair carol = gen.generateKeyPair();
+        PrivateKey[] privKeys = new PrivateKey[N];
+        for (int i = 0; i < N; i++)
+            privKeys[i] = carol.getPrivate();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            byte[][] signed = Crypto.signAll(privKeys, messages, pool);
+            for (int i = 0; i < N; i++)
+                assertTrue(Crypto.verifySignature(carol.getPublic(), messages[i], signed[i]));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void signAllRejectsFewerKeysThanMessages() {
+        Crypto.signAll(new PrivateKey[N - 1], messages, null);
+    }
+
+    /** the failure of a batch reaches the caller, not a worker of the pool */
+    @Test(expected = IllegalArgumentException.class)
+    public void signAllFailsIfAKeyCannotSign() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("DSA");
+        gen.initialize(1024);
+        PrivateKey dsa = gen.generateKeyPair().getPrivate();
+        PrivateKey[] privKeys = new PrivateKey[N];
+        for (int i = 0; i < N; i++)
+            privKeys[i] = dsa;
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            Crypto.signAll(privKeys, messages, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImmutableTransactionTest {
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private byte[] prevTxHash;
+    private ImmutableTransaction.Builder builder;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        scrooge = gen.generateKeyPair();
+        alice = gen.generateKeyPair();
+        prevTxHash = Crypto.sha256(new byte[] { 1 });
+        builder = new ImmutableTransaction.Builder()
+                .addInput(prevTxHash, 0)
+                .addInput(prevTxHash, 1)
+                .addOutput(3 * Transaction.COIN, alice.getPublic())
+                .addOutput(Transaction.COIN, scrooge.getPublic());
+    }
+
+    /** @return a plain transaction with the same inputs and outputs as {@code tx} */
+    private Transaction mutableCopy(ImmutableTransaction tx) {
+        Transaction copy = new Transaction();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            copy.addInput(tx.getInput(i).prevTxHash, tx.getInput(i).outputIndex);
+            copy.addSignature(tx.getInput(i).signature, i);
+        }
+        for (Transaction.Output op : tx.getOutputs())
+            copy.addOutput(op.value, op.address);
+        copy.finalize();
+        return copy;
+    }
+
+    @Test
+    public void changingWhatIsHandedOutLeavesTheTransactionAsBuilt() {
+        ImmutableTransaction tx = builder.sign(scrooge.getPrivate(), 0).sign(scrooge.getPrivate(), 1).build();
+        byte[] hash = tx.getHash();
+        byte[] raw = tx.getRawTx();
+        int hashCode = tx.hashCode();
+
+        tx.getHash()[0] ^= 1;
+        tx.getRawTx()[0] ^= 1;
+        new Transaction(tx).getInputs().get(0).prevTxHash[0] ^= 1;
+        new Transaction(tx).getInput(1).addSignature(null);
+
+        assertArrayEquals(hash, tx.getHash());
+        assertArrayEquals(hash, tx.hashBytes());
+        assertArrayEquals(raw, tx.getRawTx());
+        assertArrayEquals(hash, Crypto.sha256(tx.getRawTx()));
+        assertEquals(raw.length, tx.getRawLength());
+        assertEquals(2, tx.numInputs());
+        assertArrayEquals(prevTxHash, tx.getInput(0).prevTxHash);
+        assertEquals(hashCode, tx.hashCode());
+    }
+
+    @Test
+    public void inputsAndOutputsAreHandedOutAsTheyAre() {
+        ImmutableTransaction tx = builder.sign(scrooge.getPrivate(), 0).build();
+        assertSame(tx.getInputs(), tx.getInputs());
+        assertSame(tx.getOutputs(), tx.getOutputs());
+        assertSame(tx.getInputs().get(1), tx.getInput(1));
+        assertSame(tx.getOutputs().get(0), tx.getOutput(0));
+        assertNull(tx.getInput(2));
+        assertNull(tx.getOutput(2));
+    }
+
+    @Test
+    public void listsAndInputsHandedOutCannotBeChanged() {
+        final ImmutableTransaction tx = builder.sign(scrooge.getPrivate(), 0).build();
+        final Transaction.Input input = tx.getInput(0);
+        final Transaction.Output output = tx.getOutput(0);
+        List<Runnable> changes = Arrays.asList(
+                () -> tx.getInputs().clear(),
+                () -> tx.getInputs().add(input),
+                () -> tx.getInputs().remove(0),
+                () -> tx.getInputs().set(0, input),
+                () -> tx.getOutputs().remove(output),
+                () -> tx.getOutputs().addAll(Arrays.asList(output)),
+                () -> tx.getOutputs().removeIf(op -> true),
+                () -> tx.getOutputs().sort(null),
+                () -> tx.getOutputs().subList(0, 1).clear(),
+                () -> {
+                    Iterator<Transaction.Input> inputs = tx.getInputs().iterator();
+                    inputs.next();
+                    inputs.remove();
+                },
+                () -> tx.getOutputs().listIterator().add(output),
+                () -> input.addSignature(null));
+        for (int i = 0; i < changes.size(); i++) {
+            try {
+                changes.get(i).run();
+                fail("change " + i + " went through");
+            } catch (UnsupportedOperationException expected) {
+                // as it should
+            }
+        }
+        assertEquals(2, tx.numInputs());
+        assertEquals(2, tx.numOutputs());
+        assertSame(input, tx.getInput(0));
+        assertTrue(Crypto.verifySignature(scrooge.getPublic(), tx.getRawDataToSign(0),
+                tx.getInput(0).signature));
+    }
+
+    @Test
+    public void equalToATransactionWithTheSameContents() {
+        ImmutableTransaction tx = builder.sign(scrooge.getPrivate(), 0).sign(scrooge.getPrivate(), 1).build();
+        Transaction same = mutableCopy(tx);
+        assertTrue(tx.equals(same));
+        assertTrue(same.equals(tx));
+        assertEquals(same.hashCode(), tx.hashCode());
+        assertArrayEquals(same.getHash(), tx.getHash());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cannotBeChanged() {
+        builder.build().addOutput(1, alice.getPublic());
+    }
+
+    @Test
+    public void signAllSignsLikeSign() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            PrivateKey[] keys = { scrooge.getPrivate(), scrooge.getPrivate() };
+            ImmutableTransaction parallel = builder.signAll(keys, pool).build();
+            ImmutableTransaction sequential = builder.signAll(keys, null).build();
+            assertEquals(sequential, parallel);
+            for (int i = 0; i < parallel.numInputs(); i++) {
+                assertTrue(Crypto.verifySignature(scrooge.getPublic(), parallel.getRawDataToSign(i),
+                        parallel.getInput(i).signature));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
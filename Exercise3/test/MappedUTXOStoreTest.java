@@ -0,0 +1,251 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedUTXOStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PublicKey[] addresses;
+    private Transaction holder;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        addresses = new PublicKey[] { gen.generateKeyPair().getPublic(),
+                gen.generateKeyPair().getPublic() };
+        holder = new Transaction();
+    }
+
+    private static UTXO utxo(int n) {
+        byte[] hash = new byte[MappedUTXOStore.HASH_LENGTH];
+        new Random(n).nextBytes(hash);
+        return new UTXO(hash, n % 3);
+    }
+
+    private Transaction.Output output(long value) {
+        return holder.new Output(value, addresses[(int) (value % addresses.length)]);
+    }
+
+    private static void assertSameContents(Map<UTXO, Long> expected, UTXOStore store) {
+        assertEquals(expected.size(), store.size());
+        assertEquals(expected.keySet(), new HashSet<>(store.keys()));
+        for (Map.Entry<UTXO, Long> e : expected.entrySet())
+            assertEquals(e.getValue().longValue(), store.get(e.getKey()).value);
+    }
+
+    @Test
+    public void growingStoreKeepsEveryUTXO() throws Exception {
+        MappedUTXOStore store = new MappedUTXOStore(folder.getRoot(), 16);
+        Map<UTXO, Long> expected = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            store.put(utxo(i), output(i));
+            expected.put(utxo(i), (long) i);
+            if (i % 3 == 0) {
+                store.remove(utxo(i / 2));
+                expected.remove(utxo(i / 2));
+            }
+        }
+        assertSameContents(expected, store);
+        assertNull(store.get(utxo(0)));
+        assertFalse(store.containsKey(utxo(0)));
+        // resizing leaves only the current file behind
+        assertEquals(1, folder.getRoot().list().length);
+        store.close();
+    }
+
+    @Test
+    public void copiesAndOriginalsDoNotSeeEachOthersChanges() throws Exception {
+        MappedUTXOStore store = new MappedUTXOStore(folder.getRoot(), 16);
+        Map<UTXO, Long> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            store.put(utxo(i), output(i));
+            expected.put(utxo(i), (long) i);
+        }
+        UTXOStore copy = store.copy();
+        Map<UTXO, Long> copied = new HashMap<>(expected);
+        // the copy shares the file rather than copying it
+        assertEquals(1, folder.getRoot().list().length);
+
+        store.remove(utxo(1));
+        expected.remove(utxo(1));
+        store.put(utxo(2), output(1000));
+        expected.put(utxo(2), 1000L);
+        copy.put(utxo(100), output(100));
+        copied.put(utxo(100), 100L);
+        copy.remove(utxo(3));
+        copied.remove(utxo(3));
+
+        assertSameContents(expected, store);
+        assertSameContents(copied, copy);
+        ((MappedUTXOStore) copy).close();
+        assertSameContents(expected, store);
+        store.close();
+    }
+
+    @Test
+    public void largeOverlayMovesToAFileOfItsOwn() throws Exception {
+        MappedUTXOStore store = new MappedUTXOStore(folder.getRoot(), 16);
+        store.put(utxo(-1), output(1));
+        MappedUTXOStore copy = (MappedUTXOStore) store.copy();
+        Map<UTXO, Long> copied = new HashMap<>();
+        copied.put(utxo(-1), 1L);
+        for (int i = 0; i <= MappedUTXOStore.MAX_OVERLAY + 1; i++) {
+            copy.put(utxo(i), output(i));
+            copied.put(utxo(i), (long) i);
+        }
+        assertEquals(2, folder.getRoot().list().length);
+        assertSameContents(copied, copy);
+        assertEquals(1, store.size());
+        assertEquals(1, store.get(utxo(-1)).value);
+        copy.close();
+        store.close();
+    }
+
+    @Test
+    public void fileIsDeletedWhenTheLastSharingStoreIsClosed() throws Exception {
+        MappedUTXOStore store = new MappedUTXOStore(folder.getRoot(), 16);
+        store.put(utxo(0), output(0));
+        MappedUTXOStore copy = (MappedUTXOStore) store.copy();
+        store.close();
+        store.close();
+        assertEquals(1, folder.getRoot().list().length);
+        assertEquals(0, copy.get(utxo(0)).value);
+        // no store shares the file any more, so the copy changes it in place
+        copy.put(utxo(1), output(1));
+        assertTrue(copy.containsKey(utxo(1)));
+        assertEquals(1, folder.getRoot().list().length);
+        copy.close();
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void unusedAddressesAreDroppedWhenTheFileIsRebuilt() throws Exception {
+        MappedUTXOStore store = new MappedUTXOStore(folder.getRoot(), 16);
+        for (int i = 0; i < 1000; i++) {
+            store.put(utxo(i), holder.new Output(i, addresses[i < 10 ? 0 : 1]));
+            if (i >= 10)
+                store.remove(utxo(i));
+        }
+        assertEquals(2, store.getAddressCount());
+        // enough short lived UTXOs paying the first address to rebuild the file
+        for (int i = 1000; i < 1100; i++) {
+            store.put(utxo(i), holder.new Output(i, addresses[0]));
+            store.remove(utxo(i));
+        }
+        assertEquals(1, store.getAddressCount());
+        for (int i = 0; i < 10; i++)
+            assertEquals(addresses[0], store.get(utxo(i)).address);
+        assertEquals(10, store.size());
+        store.close();
+    }
+
+    @Test
+    public void storeOpenedByNameReadsBackAfterItIsClosed() throws Exception {
+        File file = new File(folder.getRoot(), "utxo.db");
+        MappedUTXOStore store = new MappedUTXOStore(file);
+        Map<UTXO, Long> expected = new HashMap<>();
+        // enough to rebuild the file several times
+        for (int i = 0; i < 200000; i++) {
+            store.put(utxo(i), output(i));
+            expected.put(utxo(i), (long) i);
+            if (i % 3 == 0) {
+                store.remove(utxo(i / 2));
+                expected.remove(utxo(i / 2));
+            }
+        }
+        store.close();
+        assertArrayEquals(new String[] { "utxo.db" }, folder.getRoot().list());
+
+        store = new MappedUTXOStore(file);
+        assertSameContents(expected, store);
+        for (Map.Entry<UTXO, Long> e : expected.entrySet())
+            assertEquals(output(e.getValue()).address, store.get(e.getKey()).address);
+        store.remove(utxo(199999));
+        expected.remove(utxo(199999));
+        store.put(utxo(-1), output(1));
+        expected.put(utxo(-1), 1L);
+        store.flush();
+        store.close();
+
+        store = new MappedUTXOStore(file);
+        assertSameContents(expected, store);
+        store.close();
+    }
+
+    @Test
+    public void copiesNeverChangeTheFileOpenedByName() throws Exception {
+        File file = new File(folder.getRoot(), "utxo.db");
+        MappedUTXOStore store = new MappedUTXOStore(file);
+        Map<UTXO, Long> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            store.put(utxo(i), output(i));
+            expected.put(utxo(i), (long) i);
+        }
+        MappedUTXOStore copy = (MappedUTXOStore) store.copy();
+        copy.remove(utxo(0));
+        copy.put(utxo(100), output(100));
+        // the original writes to its file, so the copy moves to a copy of it
+        store.flush();
+        assertEquals(2, folder.getRoot().list().length);
+        store.put(utxo(101), output(101));
+        expected.put(utxo(101), 101L);
+        store.close();
+        for (int i = 0; i < 100; i++)
+            copy.put(utxo(1000 + i), output(i));
+        copy.close();
+        assertArrayEquals(new String[] { "utxo.db" }, folder.getRoot().list());
+
+        store = new MappedUTXOStore(file);
+        assertSameContents(expected, store);
+        store.close();
+    }
+
+    @Test
+    public void fileNotHoldingAStoreIsRejected() throws Exception {
+        File file = folder.newFile("utxo.db");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[100]);
+        }
+        try {
+            new MappedUTXOStore(file);
+            fail("opened a file of zeros");
+        } catch (IOException expected) {
+            // no magic number
+        }
+
+        file.delete();
+        MappedUTXOStore store = new MappedUTXOStore(file);
+        store.put(utxo(0), output(0));
+        store.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        try {
+            new MappedUTXOStore(file);
+            fail("opened a truncated file");
+        } catch (IOException expected) {
+            // wrong length
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistentUTXOStoreTest {
+
+    private PublicKey address;
+    private Transaction holder;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        address = gen.generateKeyPair().getPublic();
+        holder = new Transaction();
+    }
+
+    private static UTXO utxo(int n) {
+        byte[] hash = new byte[32];
+        new Random(n).nextBytes(hash);
+        return new UTXO(hash, n % 3);
+    }
+
+    private Transaction.Output output(long value) {
+        return holder.new Output(value, address);
+    }
+
+    private static void assertSameContents(Map<UTXO, Long> expected, UTXOStore store) {
+        assertEquals(expected.size(), store.size());
+        assertEquals(expected.keySet(), new HashSet<>(store.keys()));
+        for (Map.Entry<UTXO, Long> e : expected.entrySet())
+            assertEquals(e.getValue().longValue(), store.get(e.getKey()).value);
+    }
+
+    @Test
+    public void copiesAndOriginalsDoNotSeeEachOthersChanges() {
+        PersistentUTXOStore store = new PersistentUTXOStore();
+        Map<UTXO, Long> expected = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            store.put(utxo(i), output(i));
+            expected.put(utxo(i), (long) i);
+        }
+        PersistentUTXOStore copy = store.copy();
+        Map<UTXO, Long> copied = new HashMap<>(expected);
+        for (int i = 0; i < 2000; i += 2) {
+            store.remove(utxo(i));
+            expected.remove(utxo(i));
+            copy.put(utxo(i + 1), output(-i));
+            copied.put(utxo(i + 1), (long) -i);
+            copy.put(utxo(2000 + i), output(i));
+            copied.put(utxo(2000 + i), (long) i);
+        }
+        PersistentUTXOStore copyOfCopy = copy.copy();
+        Map<UTXO, Long> copiedTwice = new HashMap<>(copied);
+        copyOfCopy.remove(utxo(1));
+        copiedTwice.remove(utxo(1));
+
+        assertSameContents(expected, store);
+        assertSameContents(copied, copy);
+        assertSameContents(copiedTwice, copyOfCopy);
+    }
+
+    @Test
+    public void randomChangesToSeveralCopiesMatchSeparateMaps() {
+        Random random = new Random(7);
+        List<PersistentUTXOStore> stores = new ArrayList<>();
+        List<Map<UTXO, Long>> maps = new ArrayList<>();
+        stores.add(new PersistentUTXOStore());
+        maps.add(new HashMap<UTXO, Long>());
+        for (int step = 0; step < 20000; step++) {
+            int k = random.nextInt(stores.size());
+            UTXO ut = utxo(random.nextInt(500));
+            int op = random.nextInt(100);
+            if (op < 55) {
+                long value = random.nextInt(1000);
+                stores.get(k).put(ut, output(value));
+                maps.get(k).put(ut, value);
+            } else if (op < 99) {
+                stores.get(k).remove(ut);
+                maps.get(k).remove(ut);
+            } else if (stores.size() < 8) {
+                stores.add(stores.get(k).copy());
+                maps.add(new HashMap<>(maps.get(k)));
+            }
+        }
+        for (int k = 0; k < stores.size(); k++)
+            assertSameContents(maps.get(k), stores.get(k));
+    }
+
+    @Test
+    public void collidingUTXOsAreKeptApart() {
+        // both hash to the same code: (17 + index) * 31 + Arrays.hashCode(txHash) = 589
+        UTXO first = new UTXO(new byte[] { 0 }, 1);
+        UTXO second = new UTXO(new byte[] { 31 }, 0);
+        assertEquals(first.hashCode(), second.hashCode());
+
+        PersistentUTXOStore store = new PersistentUTXOStore();
+        store.put(first, output(1));
+        store.put(second, output(2));
+        PersistentUTXOStore copy = store.copy();
+        copy.remove(first);
+        copy.put(second, output(3));
+
+        assertEquals(2, store.size());
+        assertEquals(1, store.get(first).value);
+        assertEquals(2, store.get(second).value);
+        assertEquals(1, copy.size());
+        assertNull(copy.get(first));
+        assertFalse(copy.containsKey(first));
+        assertTrue(copy.containsKey(second));
+        assertEquals(3, copy.get(second).value);
+    }
+}
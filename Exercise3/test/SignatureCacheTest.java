@@ -0,0 +1,90 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignatureCacheTest {
+
+    private KeyPair keys;
+    private byte[] message;
+    private byte[] signature;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        keys = gen.generateKeyPair();
+        message = "pay 1 coin to bob".getBytes("UTF-8");
+        signature = Crypto.sign(keys.getPrivate(), message);
+    }
+
+    @Test
+    public void verifiedSignatureIsAnsweredFromTheCache() {
+        SignatureCache cache = new SignatureCache(10);
+        assertTrue(cache.verifySignature(keys.getPublic(), message, signature));
+        assertTrue(cache.verifySignature(keys.getPublic(), message, signature));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidSignatureIsNotCached() {
+        SignatureCache cache = new SignatureCache(10);
+        byte[] forged = signature.clone();
+        forged[0] ^= 1;
+        assertFalse(cache.verifySignature(keys.getPublic(), message, forged));
+        assertFalse(cache.verifySignature(keys.getPublic(), message, forged));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void bytesShiftedFromSignatureToMessageMissTheCache() {
+        SignatureCache cache = new SignatureCache(10);
+        assertTrue(cache.verifySignature(keys.getPublic(), message, signature));
+
+        // same bytes in the same order, with the first signature byte moved into the message
+        byte[] shiftedMessage = Arrays.copyOf(message, message.length + 1);
+        shiftedMessage[message.length] = signature[0];
+        byte[] shiftedSignature = Arrays.copyOfRange(signature, 1, signature.length);
+
+        assertFalse(cache.verifySignature(keys.getPublic(), shiftedMessage, shiftedSignature));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void verifyAllRunsOnlyWhatIsNotCachedAndCachesOnlyValidSignatures() {
+        SignatureCache cache = new SignatureCache(10);
+        assertTrue(cache.verifySignature(keys.getPublic(), message, signature));
+        byte[] forged = signature.clone();
+        forged[0] ^= 1;
+        PublicKey[] pubKeys = { keys.getPublic(), keys.getPublic(), keys.getPublic() };
+        byte[][] messages = { message, message, "pay 2 coins to bob".getBytes() };
+        byte[][] signatures = { signature, forged, signature };
+
+        BitSet valid = cache.verifyAll(pubKeys, messages, signatures, ForkJoinPool.commonPool());
+        BitSet expected = new BitSet();
+        expected.set(0);
+        assertEquals(expected, valid);
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verifyAllRejectsArraysOfDifferentLengths() {
+        new SignatureCache(10).verifyAll(new PublicKey[] { keys.getPublic() }, new byte[][] { message },
+                new byte[0][], null);
+    }
+}
@@ -0,0 +1,160 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionPoolTest {
+
+    private PublicKey address;
+    private Random random;
+    private TransactionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        address = KeyPairGenerator.getInstance("RSA").generateKeyPair().getPublic();
+        random = new Random(1);
+        pool = new TransactionPool();
+    }
+
+    /** @return a transaction spending output {@code index} of {@code parent}, or a new outpoint */
+    private Transaction spend(Transaction parent, int index, int outputs) {
+        Transaction tx = new Transaction();
+        if (parent != null) {
+            tx.addInput(parent.getHash(), index);
+        } else {
+            byte[] prevTxHash = new byte[32];
+            random.nextBytes(prevTxHash);
+            tx.addInput(prevTxHash, 0);
+        }
+        tx.addSignature(new byte[128], 0);
+        for (int i = 0; i < outputs; i++)
+            tx.addOutput(Transaction.COIN, address);
+        tx.finalize();
+        return tx;
+    }
+
+    private List<Transaction> chain(int length) {
+        List<Transaction> chain = new ArrayList<>();
+        Transaction tx = spend(null, 0, 1);
+        chain.add(tx);
+        for (int i = 1; i < length; i++) {
+            tx = spend(tx, 0, 1);
+            chain.add(tx);
+        }
+        return chain;
+    }
+
+    @Test
+    public void childPaysForParent() {
+        Transaction parent = spend(null, 0, 1);
+        Transaction child = spend(parent, 0, 1);
+        Transaction other = spend(null, 0, 1);
+        pool.addTransaction(child, 10000);
+        pool.addTransaction(other, 3000);
+        pool.addTransaction(parent, 0);
+
+        int bytes = parent.getRawLength() + child.getRawLength();
+        assertEquals(Arrays.asList(parent, child), pool.getTransactionsByFeeRate(bytes));
+    }
+
+    @Test
+    public void removingAParentShrinksThePackagesOfItsDescendants() {
+        Transaction parent = spend(null, 0, 1);
+        Transaction child = spend(parent, 0, 1);
+        Transaction other = spend(null, 0, 1);
+        pool.addTransaction(parent, 0);
+        pool.addTransaction(child, 1000);
+        pool.addTransaction(other, 800);
+        assertEquals(Arrays.asList(other, parent, child), pool.getTransactionsByFeeRate(Long.MAX_VALUE));
+
+        // confirmed in a block, the child no longer has to pay for it
+        pool.removeTransaction(parent.getHash());
+        assertEquals(Arrays.asList(child, other), pool.getTransactionsByFeeRate(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void evictionCountsWhatDescendantsPay() {
+        Transaction parent = spend(null, 0, 1);
+        Transaction child = spend(parent, 0, 1);
+        Transaction other = spend(null, 0, 1);
+        pool.addTransaction(parent, 0);
+        pool.addTransaction(child, 10000);
+        pool.addTransaction(other, 2000);
+
+        // room for two transactions: the parent is kept for what its child pays
+        pool.setLimits(pool.getMemoryUsage() * 3 / 4, Long.MAX_VALUE);
+        assertEquals(Arrays.asList(parent, child), pool.getTransactionsByFeeRate(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void removingAChildLowersTheEvictionRateOfItsAncestors() {
+        Transaction parent = spend(null, 0, 1);
+        Transaction child = spend(parent, 0, 1);
+        Transaction grandchild = spend(child, 0, 1);
+        Transaction other = spend(null, 0, 1);
+        pool.addTransaction(parent, 0);
+        pool.addTransaction(child, 0);
+        pool.addTransaction(grandchild, 30000);
+        pool.addTransaction(other, 2000);
+        pool.removeTransaction(grandchild.getHash());
+
+        // room for one transaction: the parent and child now pay nothing, so both go first
+        pool.setLimits(pool.getMemoryUsage() / 2, Long.MAX_VALUE);
+        assertEquals(Arrays.asList(other), pool.getTransactionsByFeeRate(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void chainLongerThanTheAncestorLimitIsRefused() {
+        List<Transaction> chain = chain(TransactionPool.ANCESTOR_LIMIT + 1);
+        for (int i = 0; i < TransactionPool.ANCESTOR_LIMIT; i++)
+            assertTrue(pool.addTransaction(chain.get(i), 1000));
+        Transaction last = chain.get(TransactionPool.ANCESTOR_LIMIT);
+        assertFalse(pool.addTransaction(last, 1000));
+
+        pool.removeTransaction(chain.get(0).getHash());
+        assertTrue(pool.addTransaction(last, 1000));
+        assertEquals(TransactionPool.ANCESTOR_LIMIT, pool.size());
+    }
+
+    @Test
+    public void childrenBeyondTheDescendantLimitAreRefused() {
+        Transaction parent = spend(null, 0, TransactionPool.DESCENDANT_LIMIT);
+        assertTrue(pool.addTransaction(parent, 1000));
+        for (int i = 0; i < TransactionPool.DESCENDANT_LIMIT - 1; i++)
+            assertTrue(pool.addTransaction(spend(parent, i, 1), 1000));
+        assertFalse(pool.addTransaction(spend(parent, TransactionPool.DESCENDANT_LIMIT - 1, 1), 1000));
+    }
+
+    @Test
+    public void limitsCountTransactionsAddedBeforeTheirParents() {
+        List<Transaction> chain = chain(TransactionPool.ANCESTOR_LIMIT + 1);
+        // every transaction but the one in the middle, which would join the two halves
+        int middle = chain.size() / 2;
+        for (int i = 0; i < chain.size(); i++) {
+            if (i != middle)
+                assertTrue(pool.addTransaction(chain.get(i), 1000));
+        }
+        assertFalse(pool.addTransaction(chain.get(middle), 1000));
+        assertNotNull(pool.getTransaction(chain.get(middle + 1).getHash()));
+    }
+
+    @Test
+    public void removingWithDescendantsEmptiesAChain() {
+        List<Transaction> chain = chain(TransactionPool.ANCESTOR_LIMIT);
+        for (Transaction tx : chain)
+            pool.addTransaction(tx, 1000);
+        pool.removeTransactionAndDescendants(chain.get(0).getHash());
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.getMemoryUsage());
+    }
+}
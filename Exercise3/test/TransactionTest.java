@@ -0,0 +1,40 @@
+import static org.junit.Assert.assertArrayEquals;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionTest {
+
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        KeyPair scrooge = gen.generateKeyPair();
+        tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addSignature(new byte[128], 0);
+        tx.addOutput(10, scrooge.getPublic());
+        tx.finalize();
+    }
+
+    @Test
+    public void changingTheSerializedTransactionHandedOutLeavesTheTransactionAlone() {
+        byte[] raw = tx.getRawTx();
+        byte[] hash = tx.getHash().clone();
+        raw[0] ^= 1;
+        raw[raw.length - 1] ^= 1;
+
+        byte[] expected = raw.clone();
+        expected[0] ^= 1;
+        expected[raw.length - 1] ^= 1;
+        assertArrayEquals(expected, tx.getRawTx());
+        tx.finalize();
+        assertArrayEquals(hash, tx.getHash());
+        assertArrayEquals(hash, Crypto.sha256(tx.getRawTx()));
+    }
+}
@@ -0,0 +1,73 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TxHandlerTest {
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private Transaction coinbase;
+    private MappedUTXOStore store;
+    private UTXOPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        scrooge = gen.generateKeyPair();
+        alice = gen.generateKeyPair();
+        coinbase = new Transaction(Block.COINBASE, scrooge.getPublic());
+        store = new MappedUTXOStore(null, 16);
+        pool = new UTXOPool(store);
+        pool.addUTXO(new UTXO(coinbase.getHash(), 0), coinbase.getOutput(0));
+        SignatureCache.getInstance().clear();
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    private Transaction pay(byte[] prevTxHash, KeyPair from, long value, KeyPair to) {
+        return new ImmutableTransaction.Builder()
+                .addInput(prevTxHash, 0)
+                .addOutput(value, to.getPublic())
+                .sign(from.getPrivate(), 0)
+                .build();
+    }
+
+    @Test
+    public void parallelChecksAcceptTheSameTransactions() {
+        Transaction tx1 = pay(coinbase.getHash(), scrooge, Block.COINBASE, alice);
+        Transaction tx2 = pay(tx1.getHash(), alice, Block.COINBASE, scrooge);
+        Transaction doubleSpend = pay(coinbase.getHash(), scrooge, Block.COINBASE, scrooge);
+        Transaction badSignature = pay(tx1.getHash(), scrooge, Block.COINBASE, scrooge);
+        Transaction[] txs = { tx1, doubleSpend, badSignature, tx2 };
+
+        Transaction[] sequential = new TxHandler(pool).handleTxs(txs);
+        Transaction[] parallel = new TxHandler(pool).handleTxs(txs, ForkJoinPool.commonPool());
+        assertArrayEquals(new Transaction[] { tx1, tx2 }, sequential);
+        assertArrayEquals(sequential, parallel);
+    }
+
+    @Test
+    public void precheckedSignaturesAreNotCheckedAgain() {
+        // the store returns a new output object on every lookup
+        Transaction tx = pay(coinbase.getHash(), scrooge, Block.COINBASE, alice);
+        // the shared cache keeps counting across tests, clearing it only drops the signatures
+        long misses = SignatureCache.getInstance().getMisses();
+        long hits = SignatureCache.getInstance().getHits();
+        Transaction[] accepted = new TxHandler(pool).handleTxs(new Transaction[] { tx },
+                ForkJoinPool.commonPool());
+        assertEquals(1, accepted.length);
+        assertEquals(misses + 1, SignatureCache.getInstance().getMisses());
+        assertEquals(hits, SignatureCache.getInstance().getHits());
+    }
+}
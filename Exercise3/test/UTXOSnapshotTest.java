@@ -0,0 +1,149 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UTXOSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Block genesis;
+    private Block block;
+    private UTXOPool pool;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        KeyPair scrooge = gen.generateKeyPair();
+        KeyPair alice = gen.generateKeyPair();
+        genesis = new Block(null, scrooge.getPublic());
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis);
+
+        block = new Block(genesis.getHash(), alice.getPublic());
+        block.addTransaction(new ImmutableTransaction.Builder()
+                .addInput(genesis.getCoinbase().getHash(), 0)
+                // values written as varints of several bytes and of one
+                .addOutput(Block.COINBASE - 1, alice.getPublic())
+                .addOutput(1, scrooge.getPublic())
+                .sign(scrooge.getPrivate(), 0)
+                .build());
+        block.finalize();
+        chain.addBlock(block);
+        pool = chain.getMaxHeightUTXOPool();
+        file = folder.newFile("utxo.snapshot");
+        UTXOSnapshot.write(file, block, 2, pool);
+    }
+
+    @Test
+    public void snapshotReadsBackAsWritten() throws Exception {
+        UTXOSnapshot snapshot = UTXOSnapshot.read(file);
+        assertEquals(2, snapshot.getHeight());
+        assertArrayEquals(block.getHash(), snapshot.getBlock().getHash());
+        assertEquals(block.getTransactions().size(), snapshot.getBlock().getTransactions().size());
+
+        UTXOStore store = snapshot.getStore();
+        assertEquals(pool.size(), store.size());
+        assertEquals(new HashSet<>(pool.getAllUTXO()), new HashSet<>(store.keys()));
+        for (UTXO ut : pool.getAllUTXO()) {
+            assertEquals(pool.getTxOutput(ut).value, store.get(ut).value);
+            assertEquals(pool.getTxOutput(ut).address, store.get(ut).address);
+        }
+    }
+
+    @Test
+    public void chainStartsFromASnapshot() throws Exception {
+        BlockChain chain = new BlockChain(UTXOSnapshot.read(file));
+        assertArrayEquals(block.getHash(), chain.getMaxHeightBlock().getHash());
+        assertEquals(new HashSet<>(pool.getAllUTXO()),
+                new HashSet<>(chain.getMaxHeightUTXOPool().getAllUTXO()));
+    }
+
+    @Test
+    public void everyChangedByteIsRejected() throws Exception {
+        long length = file.length();
+        for (long pos = 0; pos < length; pos++) {
+            flip(pos);
+            try {
+                UTXOSnapshot.read(file);
+                fail("byte " + pos + " changed but the snapshot was read");
+            } catch (IOException expected) {
+                // magic, version, a bad length or the checksum
+            }
+            flip(pos);
+        }
+        UTXOSnapshot.read(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshotIsRejected() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        UTXOSnapshot.read(file);
+    }
+
+    @Test
+    public void storeIsLeftEmptyWhenTheSnapshotIsDamaged() throws Exception {
+        // the value of the last UTXO, loaded after every other one: checksum, address index, value
+        flip(file.length() - 32 - 4 - 1);
+        UTXOStore store = new PersistentUTXOStore();
+        try {
+            UTXOSnapshot.read(file, store);
+            fail("damaged snapshot was read");
+        } catch (IOException expected) {
+            // the checksum
+        }
+        assertEquals(0, store.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void snapshotIsOnlyLoadedIntoAnEmptyStore() throws Exception {
+        UTXOStore store = new PersistentUTXOStore();
+        UTXO utxo = pool.getAllUTXO().get(0);
+        store.put(utxo, pool.getTxOutput(utxo));
+        UTXOSnapshot.read(file, store);
+    }
+
+    @Test
+    public void failedWriteLeavesTheSnapshotThereWhole() throws Exception {
+        UTXOPool broken = new UTXOPool(pool);
+        broken.addUTXO(new UTXO(block.getHash(), 9), new Transaction().new Output(1, null));
+        try {
+            UTXOSnapshot.write(file, block, 3, broken);
+            fail("output without an address was written");
+        } catch (RuntimeException expected) {
+            // no encoding of a null address
+        }
+        assertEquals(2, UTXOSnapshot.read(file).getHeight());
+        assertEquals(Arrays.asList(file.getName()), Arrays.asList(folder.getRoot().list()));
+
+        UTXOSnapshot.write(file, block, 3, pool);
+        assertEquals(3, UTXOSnapshot.read(file).getHeight());
+        assertEquals(Arrays.asList(file.getName()), Arrays.asList(folder.getRoot().list()));
+    }
+
+    private void flip(long pos) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x01);
+        }
+    }
+}